@@ -0,0 +1,48 @@
+package bestsss.cache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+/**
+ * W-TinyLFU alike admission: all accesses are recorded in a {@link FrequencySketch}, new keys are admitted
+ * unconditionally into a small window (~1% of the capacity). When a key leaves the window it becomes a candidate
+ * that has to be estimated more frequent than a sampled victim to remain in the cache.
+ *
+ * @author Stanimir Simeonoff
+ */
+class Admission {
+  private final FrequencySketch sketch;
+  private final AtomicReferenceArray<Object> window;
+  private final AtomicInteger cursor = new AtomicInteger();
+
+  Admission(int maxElements){
+    this.sketch = new FrequencySketch(maxElements);
+    int windowSize = Math.max(16, maxElements/100);
+    this.window = new AtomicReferenceArray<>(Integer.highestOneBit(windowSize-1)<<1);
+  }
+
+  void record(Object key){
+    sketch.increment(key);
+  }
+
+  /**
+   * @param key newly added key
+   * @return the key leaving the window (i.e. the candidate for admission into the main region) or null
+   */
+  Object enterWindow(Object key){
+    final int idx = cursor.getAndIncrement() & (window.length()-1);
+    return window.getAndSet(idx, key);
+  }
+
+  /**
+   * @return true if the candidate should replace the victim
+   */
+  boolean admit(Object candidate, Object victim){
+    return sketch.frequency(candidate) > sketch.frequency(victim);
+  }
+}
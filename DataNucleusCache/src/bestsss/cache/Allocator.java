@@ -1,8 +1,9 @@
 package bestsss.cache;
 
-import java.util.ArrayDeque;
 import java.util.Arrays;
 
+import bestsss.cache.alloc.MagazinePool;
+
 /*
  * Written by Stanimir Simeonoff and released as public domain as described at
  * http://creativecommons.org/publicdomain/zero/1.0/
@@ -12,6 +13,7 @@ import java.util.Arrays;
   * @author Stanimir Simeonoff
  */
 //allocates new arrays up for 256-4 fields
+//the pools are magazine based (per thread stacks exchanged with a depot), no shared monitor or index on the common path
 class Allocator {
   private static final int SHIFT = 2;//each 4 size share same element;
 
@@ -19,27 +21,32 @@ class Allocator {
   private static final int MASK = ~OR; //zero last 2 bits, so it's always div by 4
 
   final int maxPooled;
-  final ArrayDeque<Object[]>[] pools;
+  final MagazinePool<Object[]>[] pools;
 
-  @SuppressWarnings("unchecked")
+  /**
+   * @param maxPooled - max retained arrays per size class
+   */
   public Allocator(int maxPooled){
+    this(maxPooled, MagazinePool.carriers());
+  }
+
+  Allocator(int maxPooled, int carriers){
     maxPooled = Math.max(maxPooled,0);
     this.maxPooled = maxPooled;
-    pools = new ArrayDeque[maxPooled==0?0:idx(256)];
+    @SuppressWarnings("unchecked")
+    final MagazinePool<Object[]>[] pools = (MagazinePool<Object[]>[]) new MagazinePool<?>[maxPooled==0?0:idx(256)];
+    this.pools = pools;
     for (int i = 1; i < pools.length; i++) {//skip the zero length array
-      pools[i]=new ArrayDeque<Object[]>();
+      pools[i]=new MagazinePool<Object[]>(maxPooled, carriers);
     }
   }
 
   public Object[] get(int length){
-    final  ArrayDeque<Object[]> pool = getPool(idx(length));
+    final MagazinePool<Object[]> pool = getPool(idx(length));
     if (pool==null){
       return zap(new Object[length]);//don't cache 
     }
-    final Object[] result;
-    synchronized(pool){
-      result = pool.pollLast();
-    }
+    final Object[] result = pool.poll();//zapped on offer
     return result!=null?result:zap(new Object[length(length)]);
 
   }
@@ -58,42 +65,24 @@ class Allocator {
     if (array.length!=length(array.length))
       return false;
 
-    final ArrayDeque<Object[]> pool = getPool(idx(array.length));
+    final MagazinePool<Object[]> pool = getPool(idx(array.length));
     if (pool==null)
       return false;
 
-    final int maxPooled = this.maxPooled;
-    if (pool.size()>= maxPooled){//NOTE: this is benign data race, and relied on the impl of ArrayDeque
-      //it tried to save the sync. and zap costs, and it will be correct over 99% of time when the pool is full
-      //still it's a data race that any static analysis is to catch and warn about
-      return false;
-    }
-    zap(array);//zap before synchronized
-    synchronized(pool){
-      int size = pool.size(); 
-      if (size < maxPooled){
-        pool.offerFirst(array);//temporary fight vs concurrent use
-      }
-      int i=maxPooled>>>4;
-      if (++size > i) //prefill
-        for (int len =length(array.length) ; i-->0;){
-          pool.offerLast(zap(new Object[len]));
-        }
-    }
-    return true;
+    zap(array);//outside the pool, if rejected it's just garbage
+    return pool.offer(array);
   }
 
-  private ArrayDeque<Object[]> getPool(int idx){
-    ArrayDeque<Object[]>[] pools = this.pools;
+  private MagazinePool<Object[]> getPool(int idx){
+    MagazinePool<Object[]>[] pools = this.pools;
     return idx>=0 && idx<pools.length?pools[idx]:null;
   }
 
   public int size(){//JMX
     int size = 0;
-    for (ArrayDeque<?> q : pools){
-      synchronized (q) {
-        size+=q.size();
-      }
+    for (MagazinePool<?> p : pools){
+      if (p!=null)
+        size+=p.size();
     }
     return size;
   }
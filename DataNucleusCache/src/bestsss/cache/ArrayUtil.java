@@ -16,24 +16,60 @@ class ArrayUtil {
   //order has to be preserved
   private static final int CLASS = 1;
           static final int VERSION = 2;//package private used by CachedX
-  private static final int HITS = 3;
-  private static final int TIME = 4;
-  private static final int ACCESS = 5;
-  static final int RESERVED = ACCESS;
+  private static final int STAMP = 3;
+  static final int RESERVED = STAMP;
 
-  static Object[] newArray(CachedPC<?> pc, int length, int time) {
-    length += RESERVED;
-    Object[] fields = newArray(length);
-    length = fields.length;
+  /**
+   * The mutable part of the header: creation/access time, hits and weight as primitives, i.e. no boxing (nor allocation) on the read path.
+   * Updated via plain writes, racy (lost hits, etc.) but that's acceptable.
+   * The loaded flags/numbers are the exception: computed once before the record is published (see setLoaded) and read-only afterwards,
+   * so CachedX can hand them out w/o allocation. They are not copied along with the stamp as the copies are meant for changed fields.
+   */
+  static final class Stamp{
+    int created;
+    int accessed;
+    int hits;//saturating
+    int weight;
+    boolean[] loaded;//null - not computed
+    int[] loadedNumbers;//null if there are no loaded fields (like ClassUtils.getFlagsSetTo)
+    boolean exposed;//referenced outside the cache (CachedX, read buffer) - never recycled
+
+    Stamp(int created, int accessed, int hits){
+      this.created = created;
+      this.accessed = accessed;
+      this.hits = hits;
+    }
+
+    Stamp copy(){
+      Stamp copy = new Stamp(created, accessed, hits);
+      copy.weight = weight;
+      return copy;
+    }
+  }
 
+  /**
+   * @param fields new or recycled array, the fields are NOT_PRESENT
+   */
+  static Object[] init(Object[] fields, CachedPC<?> pc, int time) {
+    final int length = fields.length;
     fields[length-CLASS] = pc.getObjectClass();
     fields[length-VERSION] = pc.getVersion();
-    fields[length-HITS] = IntegerProvider.ZERO;
-    fields[length-ACCESS] = fields[length-TIME] = getTime(time);
+    fields[length-STAMP] = new Stamp(time, time, 0);
+    return fields;
+  }
+
+  /**
+   * @param length the entire length, incl. the header
+   */
+  static Object[] restore(int length, Class<?> clazz, Object version, int hits, int created, int accessed) {
+    Object[] fields = newArray(length);
+    fields[length-CLASS] = clazz;
+    fields[length-VERSION] = version;
+    fields[length-STAMP] = new Stamp(created, accessed, hits);
     return fields;
   }
 
-  private static Object[] newArray(int length) {
+  static Object[] newArray(int length) {
     Object[] result = new Object[length];
     Arrays.fill(result, CachedX.NOT_PRESENT);
     return result;
@@ -48,61 +84,134 @@ class ArrayUtil {
     for (int i=1; i<=RESERVED ;i++){
       copy[copy.length-i] = allFields[allFields.length-i];
     }
+    copy[copy.length-STAMP] = stamp(allFields).copy();//never share the mutable part
     return copy;
   }
 
+  /**
+   * @return a new array with the fields of record, the missing ones taken from existing; the creation time and hits of existing
+   */
+  static Object[] union(Object[] record, Object[] existing, int time) {
+    final int length = maxLength(record);
+    final int existingLength = maxLength(existing);
+    final Object[] merged = existingLength > length? extend(record, length, existingLength-1) : record.clone();
+    for (int i=0; i<existingLength; i++){
+      if (merged[i]==CachedX.NOT_PRESENT){
+        merged[i] = existing[i];
+      }
+    }
+    final Stamp stamp = stamp(existing).copy();
+    stamp.accessed = time;
+    merged[merged.length-STAMP] = stamp;
+    return merged;
+  }
+
   static int maxLength(Object[] allFields) {
     return allFields.length - RESERVED;
   }
-  
-  private static void incHitCount(Object[] fields){
-    final int idx = fields.length - HITS;
-    Object n = fields[idx];
-    if (n instanceof Integer){
-      n = IntegerProvider.get( ((Integer)n)+1);//this requires CAS not to miss some elements but we can live with non-precise
-    } else{ 
-      n = IntegerProvider.ZERO;
-    }
-    fields[idx] = n;
-  }
-  
-  //"cache" the last seen time, generally increments, so the within second there should be plenty of hits 
-  private static Integer lastTime = IntegerProvider.ZERO;//accessed via races but volatile is overkill here (need lazySet instead)
-  private static final Integer getTime(int time){
-	  Integer last = lastTime;
-	  if (last.intValue()==time)
-		  return last;
-	  last = IntegerProvider.get(time);
-	  lastTime = last;
-	  return last;
+
+  static Stamp stamp(Object[] o1){
+    return (Stamp) o1[o1.length - STAMP];
   }
   
   static void setTimeAndHitCount(Object[] fields, int time){
-    //increase hit count 
-    //and set time    
-    incHitCount(fields);
-    fields[fields.length - ACCESS] = getTime(time);
+    final Stamp stamp = stamp(fields);
+    if (stamp.hits!=Integer.MAX_VALUE){//this requires CAS not to miss some elements but we can live with non-precise
+      stamp.hits++;
+    }
+    if (stamp.accessed!=time){//don't dirty the cache line w/o need
+      stamp.accessed = time;
+    }
   }
 
   public static int getCreationTime(Object[] o1) {
-    return (Integer) o1[o1.length - TIME];
+    return stamp(o1).created;
   }
 
   public static int getHits(Object[] o1) {
-    return (Integer) o1[o1.length - HITS];
+    return stamp(o1).hits;
   }
   public static Class<?> getClass(Object[] o1) {
     return (Class<?>)o1[o1.length - CLASS];
   }
 
+  static Object getVersion(Object[] o1) {
+    return o1[o1.length - VERSION];
+  }
+
   static int getAccessTime(Object[] o1) {
-    return (Integer) o1[o1.length - ACCESS];
+    return stamp(o1).accessed;
   }
   
+  static int getWeight(Object[] o1) {
+    return stamp(o1).weight;
+  }
+
+  static void setWeight(Object[] fields, int weight){
+    stamp(fields).weight = weight;
+  }
+
+  /**
+   * Precomputes the loaded flags and field numbers, has to be called before the record is published (placed in the cache)
+   */
+  static void setLoaded(Object[] fields){
+    final int length = maxLength(fields);
+    final boolean[] loaded = new boolean[length];
+    int count = 0;
+    for (int i=0; i<length; i++){
+      if (loaded[i] = fields[i]!=CachedX.NOT_PRESENT)
+        count++;
+    }
+    int[] numbers = null;
+    if (count>0){
+      numbers = new int[count];
+      for (int i=0, j=0; j<count; i++){
+        if (loaded[i])
+          numbers[j++] = i;
+      }
+    }
+    final Stamp stamp = stamp(fields);
+    stamp.loadedNumbers = numbers;
+    stamp.loaded = loaded;
+  }
+
+  /**
+   * @return the precomputed (shared, read-only) loaded flags, null if not available
+   */
+  static boolean[] getLoaded(Object[] fields){
+    final Stamp stamp = stamp(fields);
+    return stamp!=null? stamp.loaded : null;
+  }
+
+  static int[] getLoadedNumbers(Object[] fields){
+    return stamp(fields).loadedNumbers;
+  }
+
+  static void expose(Object[] fields){
+    final Stamp stamp = stamp(fields);
+    if (!stamp.exposed){//don't dirty the cache line w/o need
+      stamp.exposed = true;
+    }
+  }
+
+  /**
+   * Prepares an unlinked, quiescent record for reuse: the fields become NOT_PRESENT, the header is left intact.
+   * Once handed out again (allocate/init) the array is another record, possibly of another entity: a stale reference (e.g. a resumed iterator)
+   * has to act on it only via a conditional remove/replace against the table, never by the key alone.
+   * @return false if the record has been exposed, i.e. it cannot be reused
+   */
+  static boolean recycle(Object[] fields){
+    final Stamp stamp = stamp(fields);
+    if (stamp==null || stamp.exposed)
+      return false;
+    Arrays.fill(fields, 0, maxLength(fields), CachedX.NOT_PRESENT);
+    return true;
+  }
+
+  /**
+   * Installs a new stamp (the array might be a copy sharing the old one): created/accessed at time, no hits
+   */
   static void setTimeAndAccess(Object[] fields, int time){
-    int length = fields.length;
-    fields[length-ACCESS] = fields[length-TIME] = getTime(time);
-    fields[length-HITS] = IntegerProvider.ZERO;
-  
+    fields[fields.length-STAMP] = new Stamp(time, time, 0);
   }
 }
\ No newline at end of file
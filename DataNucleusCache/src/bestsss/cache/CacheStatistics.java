@@ -1,5 +1,7 @@
 package bestsss.cache;
 
+import java.util.Map;
+
 /*
  * Written by Stanimir Simeonoff and released as public domain as described at
  * http://creativecommons.org/publicdomain/zero/1.0/
@@ -21,6 +23,8 @@ public interface CacheStatistics {
   double getExpirationTimeMillis();
   long getExpiredElements();  
   long getExpirationCount();
+  Map<String, Long> getExpiredElementsPerClass();//class name -> expired elements
+  Map<String, Long> getEvictedElementsPerClass();//class name -> elements evicted by class eviction
   
 
   long getHits();
@@ -29,4 +33,20 @@ public interface CacheStatistics {
   long getRemovals();
   
   long getObsolete();
+
+  long getTotalWeight();//estimated heap retained by the cached records, in bytes
+
+  long getAdmitted();//candidates that replaced a victim (admission filter)
+  long getRejected();//candidates rejected by the admission filter
+  long getStalePuts();//puts dropped due to evict(oid), i.e. not newer than the evicted version
+  long getCollapsedMisses();//getOrLoad misses served by another caller's load
+  long getNegativeHits();//gets of oids known to be absent, neither hits nor misses
+  long getRefreshes();//refresh-ahead requests
+  long getRedundantPuts();//puts of the cached version w/o new fields, the record is only touched
+  long getOutdatedPuts();//puts older than the cached version, rejected
+  long getMergedPuts();//puts of the cached version merged into the record (union of the loaded fields)
+  long getOffHeapHits();//heap misses promoted from the off-heap tier
+  long getOffHeapMisses();//heap misses not found in the off-heap tier either
+  long getOffHeapStored();//evicted records demoted to the off-heap tier
+  long getOffHeapEvicted();//records dropped by the off-heap tier itself
 }
\ No newline at end of file
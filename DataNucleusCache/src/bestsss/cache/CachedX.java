@@ -1,6 +1,5 @@
 package bestsss.cache;
 
-import java.lang.reflect.Field;
 import java.util.Arrays;
 
 import org.datanucleus.cache.CachedPC;
@@ -15,6 +14,10 @@ import org.datanucleus.cache.CachedPC;
  * The class doesn't rely on a HashMap that's very memory intense as it requires a HashMap.Entry per each loaded field. 
  * Instead it utilizes a plain Object[] that serves as a replacement of the "boolean[] loadedFields".
  * Unless there are very few loaded fields the class is a clear win, also the access to the Object[] offers a lot better spacial caching properties.
+ * The loaded flags/numbers of a cached record are precomputed (see ArrayUtil.setLoaded) and returned as is until the instance is modified,
+ * i.e. the read path allocates only the CachedX itself; the returned arrays are not to be modified by the caller.
+ * The array passed to the public constructor is considered shared (the live cached record): it's never written to,
+ * the first modification (set/setFieldValue/setLoadedField/setVersion) copies it privately.
  * 
  * @author Stanimir Simeonoff
  */
@@ -28,40 +31,44 @@ public class CachedX<T> extends CachedPC<T>{
     NOT_PRESENT;
   }
 
-  
-  private static final Field loadFieldsSetter=resolveloadedFields();
-
-  private static Field resolveloadedFields() {
-    try {
-      Field f = CachedPC.class.getDeclaredField("loadedFields");
-      f.setAccessible(true);
-      return f;    
-    } catch (Exception _ex) {
-      _ex.printStackTrace();
-      return null;
-    }
-  } 
   private int length;
   private Object[] allFields;
+  private boolean shared;//allFields is not owned: copy on write; also the precomputed loaded flags apply only while shared
    
   public CachedX(Class<T> cls, Object[] allFields, int length, Object vers) {
-    super(cls, EMPTY, vers);
+    this(cls, allFields, length, vers, true);
+  }
+
+  private CachedX(Class<T> cls, Object[] allFields, int length, Object vers, boolean shared) {
+    super(cls, EMPTY, vers);//the super copies EMPTY into a zero length array (16 bytes); cheaper than zapping it reflectively on each get
     this.length = length;
     this.allFields = allFields;
-    zapSuperLoadedFields();
+    this.shared = shared;
   }
 
   Object[] getArray(){
     return allFields;
   }
 
-  private void zapSuperLoadedFields() {//this object is supposed to have short life span, so zapping the field is likely superflous here
-    if (loadFieldsSetter!=null){//remove the useless empty boolean array
-      try{
-        loadFieldsSetter.set(this, EMPTY);
-      }catch (Exception _ex) {//skip
-      }
+  /**
+   * @return the precomputed loaded flags if they still apply, null otherwise
+   */
+  private boolean[] sharedLoaded(){
+    if (!shared)
+      return null;
+    final boolean[] loaded = ArrayUtil.getLoaded(allFields);
+    return loaded!=null && loaded.length==Math.min(length, allFields.length)? loaded : null;
+  }
+
+  /**
+   * @return allFields, copied first if shared; the stamp (time/hits) of the copy remains shared but CachedX doesn't write it
+   */
+  private Object[] writable(){
+    if (shared){
+      allFields = allFields.clone();
+      shared = false;
     }
+    return allFields;
   }
 
 
@@ -88,6 +95,9 @@ public class CachedX<T> extends CachedPC<T>{
 
   @Override
   public boolean[] getLoadedFields() {
+    final boolean[] shared = sharedLoaded();
+    if (shared!=null)
+      return shared;
     boolean[] result = new boolean[Math.min(length, allFields.length)];//reduce the lattice, remove bound checks
     for (int i=0;i<result.length;i++){
       result[i] = allFields[i]!=NOT_PRESENT;
@@ -106,13 +116,14 @@ public class CachedX<T> extends CachedPC<T>{
     if (f<0)
       throw new IndexOutOfBoundsException();
     
-    if (f>length){
-      if (f>=ArrayUtil.maxLength(allFields)){//extend if doesn't fit the current array
+    if (f>=length){
+      if (f>=ArrayUtil.maxLength(allFields)){//extend if doesn't fit the current array, extend copies, so no need to copy on write
         allFields = ArrayUtil.extend(allFields, length, f);
+        shared = false;
       }
       length=f+1;
     }
-    allFields[f] = value;
+    writable()[f] = value;
   }
 
    private static int[] getFlagsSetTo(Object[] fields, int length){
@@ -135,6 +146,8 @@ public class CachedX<T> extends CachedPC<T>{
 
    @Override
    public int[] getLoadedFieldNumbers() {
+     if (sharedLoaded()!=null)
+       return ArrayUtil.getLoadedNumbers(allFields);
      return getFlagsSetTo(allFields, this.length);
    }
   
@@ -149,8 +162,8 @@ public class CachedX<T> extends CachedPC<T>{
     if (f<0)
       throw new IndexOutOfBoundsException();
     
-    if (f<length){
-      allFields[f] = NOT_PRESENT;
+    if (f<length && allFields[f]!=NOT_PRESENT){
+      writable()[f] = NOT_PRESENT;
     }
     //ignore fields above length
   }
@@ -166,7 +179,7 @@ public class CachedX<T> extends CachedPC<T>{
         copy[i]=v;
       }
     }
-    CachedX<T> result = new CachedX<T>(getObjectClass(), copy, length, getVersion());   
+    CachedX<T> result = new CachedX<T>(getObjectClass(), copy, length, getVersion(), false);   
     return result;
   }
 
@@ -175,6 +188,7 @@ public class CachedX<T> extends CachedPC<T>{
   }
   @Override public void setVersion(Object version){
     super.setVersion(version);
-    allFields[allFields.length - ArrayUtil.VERSION] = version; //update immediately, similar to the regualar fields
+    final Object[] fields = writable();
+    fields[fields.length - ArrayUtil.VERSION] = version; //update immediately, similar to the regualar fields
   }
 }
\ No newline at end of file
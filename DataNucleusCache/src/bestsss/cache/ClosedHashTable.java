@@ -10,6 +10,7 @@ import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
@@ -18,6 +19,8 @@ import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 import bestsss.cache.sort.CacheComparator;
+import bestsss.cache.sort.Scorer;
+import bestsss.cache.sort.Selection;
 
 /**
  *
@@ -25,6 +28,9 @@ import bestsss.cache.sort.CacheComparator;
  * CloseHashTable, i.e. open addressing
  * Main aim is low memory footprint and less garbage collection pressure, along with reasonable concurrency.
  * Presently in MapLoops tests in java.util.concurrent this implementation outperforms java7's CHM.
+ * <p>
+ * Optional CLOCK mode (see {@link #ClosedHashTable(boolean)}): each segment keeps a reference bit per entry, set on get, 
+ * and a hand; {@link #clockSweep(Object[])} moves the hand forward clearing the bits and picks the unreferenced entries as victims w/o allocating.
  *  
  * @author Stanimir Simeonoff
  * 
@@ -46,13 +52,23 @@ public class  ClosedHashTable<K, V> implements Table<K, V>{
 
   private final Segment[] segments;//sort of need volatile read/write
   private final int shiftSegment;
+  private final boolean clock;
+  private final AtomicInteger clockSegment = new AtomicInteger();//round robin over the segments, clock mode only
   
   private float loadFactor = 0.67f;
 
   public ClosedHashTable(){
+    this(false);
+  }
+
+  /**
+   * @param clock maintain reference bits (set on get) for {@link #clockSweep(Object[])}
+   */
+  public ClosedHashTable(boolean clock){
+    this.clock = clock;
     Segment[] segments = new Segment[4 * nextPow2(Math.max(2,CPUs))];
     for (int i = 0; i < segments.length; i++) {
-      segments[i] = new Segment(32, loadFactor, new ReentrantLock());
+      segments[i] = new Segment(32, loadFactor, new ReentrantLock(), clock);
     }
     this.shiftSegment = Integer.numberOfLeadingZeros(segments.length);
     this.segments = segments;
@@ -117,6 +133,7 @@ public class  ClosedHashTable<K, V> implements Table<K, V>{
       int i=index(hash, len);
       final int start=i;
       int lockIndex=-1;
+      boolean full = false;
       for (int loop=0, failures = 0;;) {
         if (lockIndex!=Segment.getLockIndex(i) && segment.lock(i)<0){
           processLoopCounter(loop++);
@@ -135,23 +152,31 @@ public class  ClosedHashTable<K, V> implements Table<K, V>{
               badKey(segment, loadedKey, key); 
             }
             segment.lazySet(i+1, value);
+            if (loadedKey==null){//new entries start unreferenced
+              segment.clearReference(i);
+            }
                         
           } 
           else if (loadedKey!=null){//remove and found
             segment.lazySet(i+1, null);
             segment.lazySet(i, null);
+            segment.clearReference(i);
             closeDeletion2(segment, i, len, start);
           }
           break;
         }
         if (failures++ > (len>>>4)){
-          resize(segment, hash);
+          full = true;
           break;
         }
         i=nextKeyIndex(i, len);
       }
       
       unlockFromTo(segment, start, i, len);
+      if (full){//resize w/o holding any lock, the rehash has to lock each cell
+        resize(segment, hash);
+        continue;
+      }
       if (segment.isReplacementActive()){//start all over
         continue;
       }
@@ -236,6 +261,7 @@ public class  ClosedHashTable<K, V> implements Table<K, V>{
 
           s.lazySet(i, null);
           s.lazySet(i+1, null);
+          s.moveReference(i, deleted);
 
           deleted=i;
           result++;
@@ -378,16 +404,17 @@ public class  ClosedHashTable<K, V> implements Table<K, V>{
         }
       }
 
-      Segment resized = new Segment(length, this.loadFactor, s.lock);
+      Segment resized = new Segment(length, this.loadFactor, s.lock, clock);
       if (!s.casReplacement(null, resized)){//mark resize in progress
         return s;
       }
       //fill the new segment with the exisiting elements, i.e. rehash
       int size=0;
       for (int len=s.length(), i=0; i<len;i+=2){
-        int lock = s.lock(i);
-        if (lock<0)
-          continue;
+        int lock;
+        for (int loop=0; (lock = s.lock(i))<0;){//wait for the writer, skipping would lose the entries under the lock
+          processLoopCounter(loop++);
+        }
         
         K key = (K) s.get(i);
         Object value = s.get(i+1);
@@ -406,6 +433,9 @@ public class  ClosedHashTable<K, V> implements Table<K, V>{
           if (resized.get(index)==null){
             resized.lazySet(index, key);
             resized.lazySet(index+1, value);
+            if (s.isReferenced(i)){
+              resized.reference(index);
+            }
             break;
           }
           index=nextKeyIndex(index, length);
@@ -500,6 +530,7 @@ public class  ClosedHashTable<K, V> implements Table<K, V>{
 
         s.lazySet(i, null);
         s.lazySet(i+1, null);
+        s.moveReference(i, d);
 
         d=i;//d is modified, one tombstone less, keep moving the rest, skip tombstones, though
         result++;
@@ -557,9 +588,7 @@ public class  ClosedHashTable<K, V> implements Table<K, V>{
       
       if (loadedKey!=TOMBSTONE ){
         if (equals(key, loadedKey)){
-          if (!loadedKey.equals(loadedValue)){
-            badKey(segment, loadedKey, loadedValue);
-          }
+          segment.reference(i);
           return (V) loadedValue;
         }
       }
@@ -651,15 +680,60 @@ public class  ClosedHashTable<K, V> implements Table<K, V>{
     private final AtomicIntegerArray changeLock;
     private final Lock lock;
     final int threshold;
+    private final int[] references;//clock mode: a bit per entry, racy - lost updates are of no concern
+    int hand;//clock mode, racy as well; concurrent sweepers may pick the same victim
 
     volatile Segment replacement;
 
-    public Segment(int length, float loadFactor, Lock lock) {
+    public Segment(int length, float loadFactor, Lock lock, boolean clock) {
       super(length);//size is doubled
       this.threshold = Math.round( (length>>>1)*loadFactor);
 
       this.lock = lock!=null?lock:new ReentrantLock();
       changeLock = new AtomicIntegerArray(Math.max(1, getLockIndex(length))+2);//2 extra for size and tombstone count
+      references = clock? new int[Math.max(1, length>>>6)] : null;//length/2 entries, 32 per int
+    }
+
+    void reference(int i){
+      final int[] references = this.references;
+      if (references==null)
+        return;
+      final int entry = i>>>1;
+      final int bit = 1<<entry;
+      final int word = references[entry>>>5];
+      if ((word & bit)==0){//read before write, keep the cache line shared for the hot entries
+        references[entry>>>5] = word | bit;
+      }
+    }
+
+    boolean isReferenced(int i){
+      final int[] references = this.references;
+      if (references==null)
+        return false;
+      final int entry = i>>>1;
+      return (references[entry>>>5] & (1<<entry))!=0;
+    }
+
+    void clearReference(int i){
+      final int[] references = this.references;
+      if (references==null)
+        return;
+      final int entry = i>>>1;
+      final int word = references[entry>>>5];
+      if ((word & (1<<entry))!=0){
+        references[entry>>>5] = word & ~(1<<entry);
+      }
+    }
+
+    void moveReference(int from, int to){
+      if (references==null)
+        return;
+      if (isReferenced(from)){
+        clearReference(from);
+        reference(to);
+      } else{
+        clearReference(to);
+      }
     }
 
     public boolean casReplacement(Segment existing, Segment replacement) {
@@ -843,14 +917,104 @@ public class  ClosedHashTable<K, V> implements Table<K, V>{
     }
     return keys;
   }
+
+  /**
+   * Same sampling as {@link #getExpirable(int, Comparator)}, the consecutive segments (from a random one) are sampled, 
+   * the values are scored once into the thread's Selection. No allocation.
+   */
+  @Override
+  public int getExpirable(int entries, Scorer<? super V> scorer, Object[] victims){
+    entries = Math.min(entries, victims.length);
+    if (entries<=0)
+      return 0;
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    final int sampleSize = entries * 17;//k=17 should be 99% chance to hit bottom 15%
+    final Selection selection = Selection.begin(sampleSize);
+
+    final Segment[] segments=this.segments;
+    final int maxTestSegments= Math.min(4, segments.length);
+    final int first = random.nextInt(segments.length);
+    for (int s=0; s<maxTestSegments && !selection.isFull(); s++){
+      final Segment segment = segments[(first+s) & (segments.length-1)];
+      final int length = segment.length();
+      selection.resetMarks();
+      for(int retries = Math.max(1, sampleSize>>2); !selection.isFull() && retries>0;){//find not locked keys in the entire set 
+        final int index = random.nextInt(length) & (Integer.MAX_VALUE-1);//lowest bit is 0, so always a key
+        final int lock = segment.getChangeLock(index);
+        if (Segment.isLocked(lock)){
+          retries--;         
+          continue;
+        }
+        final Object key = segment.get(index);
+        final Object value = segment.get(index+1);
+
+        if (key==null || key==TOMBSTONE || lock!=segment.getChangeLock(index) || !selection.mark(index)){//null is quite common, check it 1st
+          retries--;
+          continue;
+        }
+        selection.add(key, scorer.score((V) value));
+      }
+    }
+    return selection.select(entries, victims);
+  }
   
+  /**
+   * CLOCK eviction: starting from the next segment (round robin) moves the hand forward,
+   * referenced entries get their bit cleared (second chance), unreferenced ones are the victims. 
+   * Each segment contributes its share of the victims, at most two rotations of the hand per segment.
+   * The keys are not removed, the caller is expected to do so. No allocation.
+   * 
+   * @param victims out, filled from index 0
+   * @return number of victims stored in the array
+   */
+  public int clockSweep(Object[] victims){
+    if (!clock)
+      throw new IllegalStateException("Not in clock mode");
+
+    final Segment[] segments = this.segments;
+    final int segmentCount = Math.min(4, segments.length);
+    final int share = (victims.length + segmentCount - 1) / segmentCount;
+    int count = 0;
+    for (int s=0; s<segments.length && count<victims.length; s++){
+      final Segment segment = segments[clockSegment.getAndIncrement() & (segments.length-1)];
+      count = sweep(segment, victims, count, Math.min(victims.length, count + share));
+    }
+    return count;
+  }
+
+  private static int sweep(Segment segment, Object[] victims, int count, int limit){
+    if (segment.size()==0)
+      return count;
+
+    final int length = segment.length();
+    int hand = segment.hand;
+    for (int scanned=0; count<limit && scanned<length; scanned++){//length/2 entries, i.e. 2 rotations
+      hand = nextKeyIndex(hand & (length-2), length);//the segment might have been replaced, mask the hand
+      final int lock = segment.getChangeLock(hand);
+      if (Segment.isLocked(lock))
+        continue;
+
+      final Object key = segment.get(hand);
+      if (key==null || key==TOMBSTONE || lock!=segment.getChangeLock(hand))
+        continue;
+
+      if (segment.isReferenced(hand)){
+        segment.clearReference(hand);//second chance
+        continue;
+      }
+      victims[count++] = key;
+    }
+    segment.hand = hand;
+    return count;
+  }
+
   public void clear() {    
     final Segment[] segments = this.segments;
     for (int i=0;i<segments.length;i++){
       Segment s  = segments[i];
       s.lock.lock();
       try{
-        segments[i] = new Segment(32, loadFactor, s.lock);
+        segments[i] = new Segment(32, loadFactor, s.lock, clock);
       }finally{
         s.lock.lock();
       }
@@ -32,6 +32,11 @@ class CollectionReplacement implements SCOWrapper{
     return c;
   }
 
+  @Override
+  public int estimateSize() {
+    return 24 + Weigher.shallow(elements);//ctor is a non-capturing lambda, i.e. shared
+  }
+
   static Object wrap(Collection<?> c){
     if (c.isEmpty()){ //extra handling for empty collections, a total const cost for the common ones
       if (c instanceof ArrayList) return EMPTY_ARRAYLIST;
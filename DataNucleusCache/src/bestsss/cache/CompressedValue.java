@@ -0,0 +1,115 @@
+package bestsss.cache;
+
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+/**
+ * LZ compressed String, byte[] or char[] field value, see JdoExtensions.COMPRESS.
+ * Decompressed on each unwrap (CachedX.getFieldValue), i.e. the value is meant for large and rarely read fields.
+ * The unwrapped arrays are fresh copies, so the callers can't modify the cached value.
+ *
+ * @author Stanimir Simeonoff
+ */
+final class CompressedValue implements SCOWrapper{
+  static final int DEFAULT_THRESHOLD = 512;//bytes
+
+  private static final byte LATIN1 = 0;
+  private static final byte UTF8 = 1;
+  private static final byte UTF16 = 2;//strings w/ surrogates, UTF-8 would replace the unpaired ones
+  private static final byte BYTES = 3;
+  private static final byte CHARS = 4;
+
+  private final byte[] data;
+  private final int length;//uncompressed, in bytes
+  private final byte kind;
+
+  private CompressedValue(byte[] data, int length, byte kind){
+    this.data = data;
+    this.length = length;
+    this.kind = kind;
+  }
+
+  /**
+   * @param threshold - minimum size (in bytes) of the value to attempt compression
+   * @return CompressedValue or the value itself if not applicable or compresses poorly (less than 1/8)
+   */
+  static Object wrap(Object value, int threshold){
+    final byte[] raw;
+    final byte kind;
+    if (value instanceof String){
+      final String s = (String) value;
+      if (s.length()<threshold)
+        return value;
+      kind = kindOf(s);
+      raw = kind==LATIN1? s.getBytes(StandardCharsets.ISO_8859_1) : kind==UTF8? s.getBytes(StandardCharsets.UTF_8) : toBytes(s.toCharArray());
+    } else if (value instanceof byte[]){
+      raw = (byte[]) value;
+      kind = BYTES;
+    } else if (value instanceof char[]){
+      raw = toBytes((char[]) value);
+      kind = CHARS;
+    } else{
+      return value;
+    }
+    if (raw.length<threshold)
+      return value;
+    final byte[] data = LZ.compress(raw, raw.length>>>3);
+    return data==null? value : new CompressedValue(data, raw.length, kind);
+  }
+
+  @Override
+  public Object unwrap() {
+    final byte[] raw = new byte[length];
+    LZ.decompress(data, raw);
+    switch (kind){
+      case LATIN1: return new String(raw, StandardCharsets.ISO_8859_1);
+      case UTF8: return new String(raw, StandardCharsets.UTF_8);
+      case UTF16: return new String(toChars(raw));
+      case CHARS: return toChars(raw);
+      default: return raw;
+    }
+  }
+
+  @Override
+  public int estimateSize() {
+    return Weigher.array(data.length, 1) + 16;
+  }
+
+  int compressedLength(){
+    return data.length;
+  }
+
+  private static byte kindOf(String s){
+    byte kind = LATIN1;
+    for (int i=0, len=s.length(); i<len; i++){
+      final char c = s.charAt(i);
+      if (c<0x100)
+        continue;
+      if (Character.isSurrogate(c))
+        return UTF16;
+      kind = UTF8;
+    }
+    return kind;
+  }
+
+  private static byte[] toBytes(char[] chars){
+    final byte[] result = new byte[chars.length*2];
+    for (int i=0; i<chars.length; i++){
+      result[i*2] = (byte) (chars[i]>>>8);
+      result[i*2+1] = (byte) chars[i];
+    }
+    return result;
+  }
+
+  private static char[] toChars(byte[] bytes){
+    final char[] result = new char[bytes.length/2];
+    for (int i=0; i<result.length; i++){
+      result[i] = (char) ((bytes[i*2] & 0xff)<<8 | (bytes[i*2+1] & 0xff));
+    }
+    return result;
+  }
+}
@@ -0,0 +1,97 @@
+package bestsss.cache;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+/**
+ * Count-min sketch with 4bit counters (16 per long), depth 4.
+ * The counters are halved once the number of increments reaches the sample size (aging), so the
+ * sketch keeps track of the recent frequency only.
+ * All updates are racy (no CAS), lost increments just lower the estimation a bit, which is ok for an admission filter.
+ *
+ * @author Stanimir Simeonoff
+ */
+class FrequencySketch {
+  private static final long RESET_MASK = 0x7777777777777777L;//clear the highest bit of each counter after the shift
+  private static final long ONE_MASK = 0x1111111111111111L;
+  private static final int MAX_COUNT = 15;
+  private static final int[] SEEDS = {0x97cb3127, 0xe3437f33, 0x8424f851, 0xb3f08ca5};//odd primes
+
+  private final long[] table;
+  private final int mask;
+  private final int sampleSize;
+  private int additions;//racy, it's fine to miss an increment
+
+  FrequencySketch(int maxElements){
+    maxElements = Math.max(maxElements, 64);
+    int length = Integer.highestOneBit(maxElements-1)<<1;//ceil to pow2, 16 counters per long, 4 longs per key
+    this.table = new long[length];
+    this.mask = length-1;
+    this.sampleSize = maxElements>=(Integer.MAX_VALUE/10)? Integer.MAX_VALUE : maxElements*10;
+  }
+
+  void increment(Object key){
+    final int hash = spread(key.hashCode());
+    boolean added = false;
+    for (int i=0; i<SEEDS.length; i++){
+      added |= incrementAt(hash, i);
+    }
+    if (added && ++additions >= sampleSize){
+      reset();
+    }
+  }
+
+  int frequency(Object key){
+    final int hash = spread(key.hashCode());
+    int frequency = MAX_COUNT;
+    for (int i=0; i<SEEDS.length; i++){
+      final int h = rehash(hash, i);
+      final int count = (int) (table[h & mask] >>> offset(h)) & MAX_COUNT;
+      frequency = Math.min(frequency, count);
+    }
+    return frequency;
+  }
+
+  private boolean incrementAt(int hash, int depth){
+    final int h = rehash(hash, depth);
+    final int idx = h & mask;
+    final int offset = offset(h);
+    final long v = table[idx];
+    if (((v >>> offset) & MAX_COUNT) == MAX_COUNT){//saturated
+      return false;
+    }
+    table[idx] = v + (1L<<offset);
+    return true;
+  }
+
+  private void reset(){//halve all counters, the count of odd ones gives the exact correction of additions
+    int odd = 0;
+    final long[] table = this.table;
+    for (int i=0; i<table.length; i++){
+      odd += Long.bitCount(table[i] & ONE_MASK);
+      table[i] = (table[i]>>>1) & RESET_MASK;
+    }
+    additions = (additions - (odd>>>2))>>>1;
+  }
+
+  private static int offset(int h){
+    return (h>>>28)<<2;//use the top bits for the counter (the low ones select the long)
+  }
+
+  private static int rehash(int hash, int depth){
+    int h = hash * SEEDS[depth];
+    return h + (h>>>16);
+  }
+
+  private static int spread(int h){
+    // variant of single-word Wang/Jenkins hash, same as ClosedHashTable
+    h += (h <<  15) ^ 0xffffcd7d;
+    h ^= (h >>> 10);
+    h += (h <<   3);
+    h ^= (h >>>  6);
+    h += (h <<   2) + (h << 14);
+    return h ^ (h >>> 16);
+  }
+}
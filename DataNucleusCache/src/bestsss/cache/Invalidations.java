@@ -0,0 +1,95 @@
+package bestsss.cache;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import jsr166e.ConcurrentHashMapV8;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+/**
+ * Short lived invalidation markers, left behind by evict(oid). While a marker is alive any put of the same key
+ * that doesn't carry a strictly newer version than the evicted record is stale (e.g. a transaction that has read the object before the update)
+ * and should be dropped. If there was no record (or the version is unknown/not comparable) all puts are dropped until the marker expires.
+ * <p>
+ * The markers expire after <code>ttl</code> (in L2Cache.time() units) in FIFO order, the purge is amortized over the invalidations;
+ * the count is bounded by the capacity, the oldest markers being dropped first.
+ *
+ * @author Stanimir Simeonoff
+ */
+class Invalidations {
+  private static final class Marker{
+    final Object key;
+    final Object version;
+    final int time;
+    Marker(Object key, Object version, int time){
+      this.key = key;
+      this.version = version;
+      this.time = time;
+    }
+  }
+
+  private final ConcurrentHashMapV8<Object, Marker> markers = new ConcurrentHashMapV8<>();
+  private final ConcurrentLinkedQueue<Marker> fifo = new ConcurrentLinkedQueue<>();
+  private final int ttl;
+  private final int capacity;
+
+  Invalidations(int ttl, int capacity){
+    this.ttl = ttl;
+    this.capacity = capacity;
+  }
+
+  /**
+   * Must be called before the removal of the record, so a racing put either gets removed or sees the marker
+   */
+  void invalidate(Object key, Object version, int time){
+    final Marker marker = new Marker(key, version, time);
+    markers.put(key, marker);
+    fifo.offer(marker);
+    purge(time);
+  }
+
+  boolean isEmpty(){
+    return markers.isEmpty();
+  }
+
+  /**
+   * @return true if a put carrying the version should be dropped
+   */
+  boolean isStale(Object key, Object version, int time){
+    final Marker marker = markers.get(key);
+    if (marker==null)
+      return false;
+    if (time - marker.time > ttl){
+      markers.remove(key, marker);
+      return false;
+    }
+    return !isNewer(version, marker.version);
+  }
+
+  /**
+   * @return true only if both versions are known, of the same class and comparable, and version is greater
+   */
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  static boolean isNewer(Object version, Object evicted){
+    if (version==null || evicted==null || version.getClass()!=evicted.getClass() || !(version instanceof Comparable))
+      return false;
+    return ((Comparable) version).compareTo(evicted) > 0;
+  }
+
+  void purge(int time){
+    for (Marker marker; (marker=fifo.peek())!=null;){
+      if (time - marker.time <= ttl && markers.size() <= capacity)
+        return;
+      if ((marker=fifo.poll())==null)//lost a race w/ another purge
+        return;
+      markers.remove(marker.key, marker);//no-op if the key has been invalidated again
+    }
+  }
+
+  int size(){
+    return markers.size();
+  }
+}
@@ -9,5 +9,12 @@ package bestsss.cache;
  */
 public class JdoExtensions {
   public static final String INTERN = "bestsss.l2cache.intern";
+  //field level or class level (all String, byte[], char[] fields, inherited by the subclasses); "true" or the min size in bytes (default 512), "false" to exclude a field
+  public static final String COMPRESS = "bestsss.l2cache.compress";
+
+  //class level, inherited by the subclasses
+  public static final String EXPIRATION = "bestsss.l2cache.expiration";//idle time in seconds, default 45
+  public static final String MAX_LIFETIME = "bestsss.l2cache.maxLifetime";//seconds since placed in the cache, default 4x expiration
+  public static final String EVICT_ONLY = "bestsss.l2cache.evictOnly";//"true" - never expire, subject to eviction only
 
 }
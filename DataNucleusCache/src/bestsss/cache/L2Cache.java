@@ -1,23 +1,30 @@
 package bestsss.cache;
 
+import java.io.IOException;
 import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicReference;
 
 import jsr166e.ConcurrentHashMapV8;
+import jsr166e.LongAdder;
 
 import org.datanucleus.NucleusContext;
+import org.datanucleus.PersistenceNucleusContext;
 import org.datanucleus.cache.CachedPC;
 import org.datanucleus.cache.Level2Cache;
 import org.datanucleus.identity.DatastoreId;
@@ -40,8 +47,12 @@ import org.datanucleus.metadata.AbstractMemberMetaData;
 
 
 import org.datanucleus.metadata.MetaData;
+import org.datanucleus.util.NucleusLogger;
 
 import bestsss.cache.CacheStatistics.CacheStatisticsProvider;
+import bestsss.cache.alloc.DelayedAllocator;
+import bestsss.cache.sort.Scorer;
+import bestsss.cache.sort.Selection;
 
 /**
  * @author Stanimir Simeonoff
@@ -57,7 +68,23 @@ public class L2Cache implements Level2Cache, CacheStatisticsProvider{
   private final long created = System.currentTimeMillis();
 
   private final Table<Object, Object[]> table = new ConcurrentHashMapV8<>(); 
+  private final ConcurrentHashMapV8<Object, Object[]> pinned = new ConcurrentHashMapV8<>();//eviction/expiration exempt region, never sampled
+  private final Set<Object> pinnedOids = Collections.newSetFromMap(new ConcurrentHashMapV8<Object, Boolean>());
+  private volatile ClassPin[] classPins = ClassPin.EMPTY;//copy on write, guarded by pinnedOids
   private final int maxElements;//65536 default
+  private final long maxBytes;//0 - no limit by weight
+  private final Admission admission;//null, unless enabled by bestsss.l2cache.admission
+  private final TimerWheel timerWheel;//null, unless enabled by bestsss.l2cache.timerWheel
+  private final WheelExpiry wheelExpiry = new WheelExpiry();
+  private final Invalidations invalidations;//evict(oid) markers
+  private final SingleFlight singleFlight = new SingleFlight(4*Runtime.getRuntime().availableProcessors());//getOrLoad
+  private final NegativeCache negativeCache;//null, unless enabled by bestsss.l2cache.negativeSize
+  private final RefreshAhead refreshAhead;//null, unless bestsss.l2cache.refresher is set
+  private final OffHeapTier offHeap;//null, unless enabled by bestsss.l2cache.offHeapBytes
+  private final RecordCodec codec = new RecordCodec();
+  private final Path snapshot;//null, unless bestsss.l2cache.snapshot is set
+  private final DelayedAllocator recycler;//null, unless enabled by bestsss.l2cache.recycle
+  private final ReadBuffer readBuffer;//null, unless enabled by bestsss.l2cache.readBuffer - the readers update the records directly
   private final Stats stats = new Stats();
   private final ConcurrentHashMap<String, InternMap<Object>> globalInterns = new ConcurrentHashMap<String, InternMap<Object>>();
 
@@ -65,22 +92,48 @@ public class L2Cache implements Level2Cache, CacheStatisticsProvider{
     final Class<?> clazz;
     final int length;
     final boolean cacheable;
-    final int expiration;
+    final int expiration;//idle time
+    final int maxLifetime;
+    final boolean evictOnly;//never expires
     final InternEntry[] interns;
-    public ClassMeta(Class<?> clazz, InternEntry[] interns, int length, boolean cacheable, int expiration) {
+    final CompressEntry[] compressed;
+    final LongAdder expired;//shared with Stats
+    final LongAdder evicted;//shared with Stats
+    final Set<Object> keys;//membership, allows evictAll(Class) w/o flushing the entire cache
+    public ClassMeta(Class<?> clazz, InternEntry[] interns, CompressEntry[] compressed, int length, boolean cacheable, int expiration, int maxLifetime, boolean evictOnly, LongAdder expired, LongAdder evicted, Set<Object> keys) {
       super();
       this.clazz=clazz;
       this.interns = interns;
+      this.compressed = compressed;
       this.length = length;
       this.cacheable = cacheable;
       this.expiration = expiration;
+      this.maxLifetime = maxLifetime;
+      this.evictOnly = evictOnly;
+      this.expired = expired;
+      this.evicted = evicted;
+      this.keys = keys;
     }
 
     public ClassMeta newLength(int length) {
-      return new ClassMeta(clazz, interns, length, cacheable, expiration);
+      return new ClassMeta(clazz, interns, compressed, length, cacheable, expiration, maxLifetime, evictOnly, expired, evicted, keys);
     }
   }
   
+  private static class ClassPin{
+    static final ClassPin[] EMPTY={};
+    final Class<?> clazz;
+    final boolean subclasses;
+    ClassPin(Class<?> clazz, boolean subclasses){
+      this.clazz = clazz;
+      this.subclasses = subclasses;
+    }
+
+    boolean matches(Class<?> clazz){
+      return this.clazz==clazz || (subclasses && this.clazz.isAssignableFrom(clazz));
+    }
+  }
+
   private static class EvictionInfo{
     int expiredAt;
     int evictedAt;
@@ -102,20 +155,185 @@ public class L2Cache implements Level2Cache, CacheStatisticsProvider{
     }
 
   }
+
+  private static class CompressEntry{
+    static final CompressEntry[] EMPTY={};
+    final int field;
+    final int threshold;//bytes
+
+    CompressEntry(int field, int threshold) {
+      this.field = field;
+      this.threshold = threshold;
+    }
+  }
   private final AtomicReference<IdentityHashMap<Class<?>, ClassMeta>> metaMap=new AtomicReference<IdentityHashMap<Class<?>,ClassMeta>>(new IdentityHashMap<Class<?>,ClassMeta>());
   private final Set<String> datastoreCacheable = Collections.newSetFromMap(new ConcurrentHashMapV8<String, Boolean>());
   private NucleusContext nucleusContext;
 
-  private final ThreadLocal<EvictionInfo> evictionDone = new ThreadLocal<EvictionInfo>(){
-    @Override
-    protected EvictionInfo initialValue() {
-      return new EvictionInfo(time());
-    } 	
-  };
+  private final Maintenance maintenance;//null - inline, i.e. the writers perform eviction/expiration
+  private final EvictionInfo maintenanceInfo = new EvictionInfo(time());//maintenance thread only
+  private final ThreadLocal<EvictionInfo> evictionDone;//inline mode only
 
   public L2Cache(NucleusContext nucleusContext){
     this.nucleusContext = nucleusContext;
     this.maxElements = resolveMaxElements(nucleusContext);
+    this.maxBytes = resolveBytes(nucleusContext, "bestsss.l2cache.maxBytes");
+    this.admission = nucleusContext.getConfiguration().getBooleanProperty("bestsss.l2cache.admission")? new Admission(maxElements) : null;
+    this.timerWheel = nucleusContext.getConfiguration().getBooleanProperty("bestsss.l2cache.timerWheel")? new TimerWheel(time(), wheelExpiry) : null;
+    this.invalidations = new Invalidations(resolveInvalidationTtl(nucleusContext), Math.max(1024, maxElements>>>4));
+    this.negativeCache = resolveNegativeCache(nucleusContext);
+    this.refreshAhead = resolveRefreshAhead(nucleusContext);
+    final long offHeapBytes = resolveBytes(nucleusContext, "bestsss.l2cache.offHeapBytes");
+    this.offHeap = offHeapBytes>0? new OffHeapTier(offHeapBytes) : null;
+    final int recycle = nucleusContext.getConfiguration().getIntProperty("bestsss.l2cache.recycle");//pooled arrays per length
+    this.recycler = recycle>0? new DelayedAllocator(recycle, RECLAIMER) : null;
+    this.readBuffer = nucleusContext.getConfiguration().getBooleanProperty("bestsss.l2cache.readBuffer")? new ReadBuffer(Runtime.getRuntime().availableProcessors()) : null;
+    this.maintenance = resolveMaintenance(nucleusContext.getConfiguration().getProperty("bestsss.l2cache.maintenance"));
+    this.evictionDone = maintenance==null? newEvictionDone() : null;
+    final String snapshot = nucleusContext.getConfiguration().getStringProperty("bestsss.l2cache.snapshot");
+    this.snapshot = snapshot!=null && !snapshot.trim().isEmpty()? Paths.get(snapshot.trim()) : null;
+    if (this.snapshot!=null && Files.isRegularFile(this.snapshot)){
+      loadSnapshot();
+    }
+    if (maintenance!=null){
+      maintenance.start("bestsss.L2Cache-maintenance");
+    }
+  }
+
+  private void loadSnapshot() {
+    try{
+      final int restored = Snapshot.read(snapshot, created, snapshotHost(), Runtime.getRuntime().availableProcessors());
+      NucleusLogger.CACHE.info("L2Cache: restored "+restored+" records from "+snapshot);
+      deleteSnapshot();
+      final long epoch = enter();
+      try{
+        afterPut();
+      }finally{
+        exit(epoch);
+      }
+    }catch(IOException | RuntimeException _ex){//a broken snapshot should never prevent the start
+      NucleusLogger.CACHE.warn("L2Cache: failed to load "+snapshot, _ex);
+    }
+  }
+
+  /**
+   * Loaded once: after a crash (no close, so no newer snapshot) the same, by then outdated, state must not be restored again
+   */
+  private void deleteSnapshot() {
+    try{
+      Files.deleteIfExists(snapshot);
+    }catch(IOException _ex){
+      NucleusLogger.CACHE.warn("L2Cache: failed to delete "+snapshot+", it'd be loaded on the next start again", _ex);
+    }
+  }
+
+  /**
+   * Writes the live records to bestsss.l2cache.snapshot, loaded on the next start. Called on close, available as a JMX operation as well.
+   * @return number of written records
+   */
+  public int writeSnapshot() throws IOException {
+    if (snapshot==null)
+      throw new IllegalStateException("bestsss.l2cache.snapshot is not set");
+    final Iterator<Map.Entry<Object, Object[]>> table = ((ConcurrentHashMapV8<Object, Object[]>) this.table).entrySet().iterator();
+    final Iterator<Map.Entry<Object, Object[]>> pinned = this.pinned.entrySet().iterator();
+    final long epoch = enter();
+    try{
+      return Snapshot.write(snapshot, created, new Iterator<Map.Entry<Object, Object[]>>() {
+        @Override
+        public boolean hasNext() {
+          return pinned.hasNext() || table.hasNext();
+        }
+        @Override
+        public Map.Entry<Object, Object[]> next() {
+          return pinned.hasNext()? pinned.next() : table.next();
+        }
+      }, snapshotHost());
+    }finally{
+      exit(epoch);
+    }
+  }
+
+  private Snapshot.Host snapshotHost() {
+    return new Snapshot.Host() {
+      @Override
+      public long fingerprint(Class<?> clazz) {
+        return classFingerprint(clazz);
+      }
+      @Override
+      public Class<?> resolve(String name) {
+        try{
+          return nucleusContext.getClassLoaderResolver(null).classForName(name);
+        }catch(RuntimeException _ex){//ClassNotResolvedException
+          return null;
+        }
+      }
+      @Override
+      public boolean isLive(Object key, Object[] record) {
+        return !isExpired(record, time()) && getMeta(ArrayUtil.getClass(record)).cacheable;
+      }
+      @Override
+      public void restore(Object key, Object[] record) {
+        install(key, record);
+      }
+    };
+  }
+
+  /**
+   * @return hash of the persistent fields (name, type, number), the enum constants or 0 for the rest (java serialization has serialVersionUID)
+   */
+  private long classFingerprint(Class<?> clazz) {
+    long hash = 0xcbf29ce484222325L;//FNV-1a
+    final AbstractClassMetaData meta = nucleusContext.getMetaDataManager().getMetaDataForClass(clazz, null);
+    if (meta!=null){
+      for (AbstractMemberMetaData field : getAllFields(meta)){
+        hash = fnv(fnv(fnv(hash, field.getName()), field.getTypeName()), String.valueOf(field.getAbsoluteFieldNumber()));
+      }
+    } else if (clazz.isEnum()){
+      for (Object e : clazz.getEnumConstants()){
+        hash = fnv(hash, ((Enum<?>) e).name());
+      }
+    } else{
+      return 0;
+    }
+    return hash;
+  }
+
+  private static long fnv(long hash, String s) {
+    for (int i=0; i<s.length(); i++){
+      hash = (hash ^ s.charAt(i)) * 0x100000001b3L;
+    }
+    return (hash ^ 0xff) * 0x100000001b3L;//separator
+  }
+
+  /**
+   * @param mode "background" for a dedicated daemon thread, an Executor instance to run the maintenance on, anything else - inline (default)
+   */
+  private Maintenance resolveMaintenance(Object mode) {
+    final Maintenance.Task task = new Maintenance.Task() {
+      @Override
+      public int maintain() {
+        final long epoch = enter();
+        try{
+          return L2Cache.this.maintain();
+        }finally{
+          exit(epoch);
+        }
+      }
+    };
+    if (mode instanceof Executor)
+      return new Maintenance(task, (Executor) mode);
+    if (mode instanceof String && "background".equalsIgnoreCase(((String) mode).trim()))
+      return new Maintenance(task, null);
+    return null;
+  }
+
+  private ThreadLocal<EvictionInfo> newEvictionDone() {
+    return new ThreadLocal<EvictionInfo>(){
+      @Override
+      protected EvictionInfo initialValue() {
+        return new EvictionInfo(time());
+      }
+    };
   }
 
   private static int resolveMaxElements(NucleusContext nucleusContext) {
@@ -133,14 +351,56 @@ public class L2Cache implements Level2Cache, CacheStatisticsProvider{
 
     return (int) ( maxMem/4678);//around 115k elements at 512MB
   }
-  private enum EvictionComparator implements Comparator<Object[]>{
+  private static int resolveInvalidationTtl(NucleusContext nucleusContext) {
+    int ttl = nucleusContext.getConfiguration().getIntProperty("bestsss.l2cache.invalidationTtl");
+    return ttl>0? ttl : 2;//time() units, i.e. ~seconds, long enough to cover a transaction that has read the old state
+  }
+
+  private static NegativeCache resolveNegativeCache(NucleusContext nucleusContext) {
+    final int size = nucleusContext.getConfiguration().getIntProperty("bestsss.l2cache.negativeSize");
+    if (size<=0)
+      return null;
+    final int ttl = nucleusContext.getConfiguration().getIntProperty("bestsss.l2cache.negativeTtl");
+    return new NegativeCache(size, ttl>0? ttl : 30);
+  }
+
+  /**
+   * bestsss.l2cache.refresher - a Refresher instance or class name, bestsss.l2cache.refreshHits (default 8), bestsss.l2cache.refreshWindow (default 5)
+   */
+  private static RefreshAhead resolveRefreshAhead(NucleusContext nucleusContext) {
+    Object refresher = nucleusContext.getConfiguration().getProperty("bestsss.l2cache.refresher");
+    if (refresher instanceof String && !((String) refresher).trim().isEmpty()){
+      try{
+        final Class<?> clazz = nucleusContext.getClassLoaderResolver(null).classForName(((String) refresher).trim());
+        refresher = clazz.getDeclaredConstructor().newInstance();
+      }catch(InvocationTargetException _ex){
+        throw new IllegalArgumentException("bestsss.l2cache.refresher: "+refresher, _ex.getCause());
+      }catch(ReflectiveOperationException _ex){//no public no-arg constructor, abstract
+        throw new IllegalArgumentException("bestsss.l2cache.refresher: "+refresher, _ex);
+      }
+    }
+    if (!(refresher instanceof Refresher))
+      return null;
+
+    final int hits = nucleusContext.getConfiguration().getIntProperty("bestsss.l2cache.refreshHits");
+    final int window = nucleusContext.getConfiguration().getIntProperty("bestsss.l2cache.refreshWindow");
+    return new RefreshAhead((Refresher) refresher, hits>0? hits : 8, window>0? window : 5);
+  }
+
+  private static long resolveBytes(NucleusContext nucleusContext, String property) {
+    Object maxBytes = nucleusContext.getConfiguration().getProperty(property);
+    if (maxBytes instanceof Number)
+      return Math.max(0, ((Number) maxBytes).longValue());
+    if (maxBytes instanceof String)
+      return Math.max(0, Long.parseLong(((String) maxBytes).trim()));
+    return 0;
+  }
+
+  private enum EvictionScorer implements Scorer<Object[]>{
     instance;
     @Override
-    public int compare(Object[] o1, Object[] o2) {
-      int v1 = calcEvictionValue(o1);       
-      int v2 = calcEvictionValue(o2);
-
-      return v1-v2;//lowest values are the ones to be evicted, i.e.higher is better
+    public int score(Object[] o) {//lowest values are the ones to be evicted, i.e.higher is better
+      return calcEvictionValue(o);
     }
 
     private static int calcEvictionValue(Object[] o) {
@@ -157,28 +417,71 @@ public class L2Cache implements Level2Cache, CacheStatisticsProvider{
     return created + (hits*5 >> 2) + accessed*2;//time + 5*hits/4 + access*2
   }
 
-  Comparator<Object[]> newExpirationComparator(final int time){//expired 1st
-    return new Comparator<Object[]>() {          
-      @Override
-      public int compare(Object[] o1, Object[] o2) {
-        boolean e1 = isExpired(o1, time);
-        boolean e2 = isExpired(o2, time);
-        
-        return e1==e2?0: (e1?-1:1);
-      }   
-    };
-  }
+  private final Scorer<Object[]> expirationScorer = new Scorer<Object[]>() {//the earliest expiration 1st, i.e. the expired ones; independent of the current time
+    @Override
+    public int score(Object[] o) {
+      return expiresAt(o);
+    }
+  };
 
   boolean isExpired(Object[] o1, int time){//keep it package private, avoid bridge methods
     ClassMeta meta = getMeta(ArrayUtil.getClass(o1));
+    if (meta.evictOnly)
+      return false;
+    
     int accessed =  ArrayUtil.getAccessTime(o1);
     if (time-accessed > meta.expiration)
       return true;
     
     int created =  ArrayUtil.getCreationTime(o1);    
-    return time-created > meta.expiration*4;
+    return time-created > meta.maxLifetime;
+  }
+
+  /**
+   * isExpired, unless a refresh-ahead is pending for the key
+   */
+  private boolean isExpired(Object key, Object[] o1, int time){
+    return isExpired(o1, time) && (refreshAhead==null || !refreshAhead.isPending(key, time));
+  }
+
+  private void recordExpired(Object[] o1){
+    getMeta(ArrayUtil.getClass(o1)).expired.increment();
+  }
+
+
+  /**
+   * @return the time() when the record would be expired, considering it's not accessed anymore
+   */
+  int expiresAt(Object[] o1){
+    ClassMeta meta = getMeta(ArrayUtil.getClass(o1));
+    if (meta.evictOnly)
+      return Integer.MAX_VALUE;
+    int accessed =  ArrayUtil.getAccessTime(o1);
+    int created =  ArrayUtil.getCreationTime(o1);
+    return (int) Math.min(Integer.MAX_VALUE, Math.min((long)accessed + meta.expiration, (long)created + meta.maxLifetime) + 1);
   }
 
+  private class WheelExpiry implements TimerWheel.Expiry{
+    @Override
+    public int expire(Object key, int stamp, int time) {
+      final Object[] record = table.get(key);
+      if (record==null || ArrayUtil.getCreationTime(record)!=stamp){//removed or replaced, the replacement has its own entry
+        return TimerWheel.STALE;
+      }
+      if (!isExpired(key, record, time)){//accessed meanwhile or refresh pending
+        return Math.max(expiresAt(record), time+1);
+      }
+      if (!expireImpl(key, record))//replaced meanwhile
+        return TimerWheel.STALE;
+      return TimerWheel.EXPIRED;
+    }
+
+    @Override
+    public boolean isLive(Object key, int stamp) {
+      final Object[] record = table.get(key);
+      return record!=null && ArrayUtil.getCreationTime(record)==stamp;
+    }
+  }
 
   private ClassMeta addMeta(Class<?> clazz, ClassMeta classMeta, Class<?> objectIdClass){
     for(;;){//copy on write
@@ -228,7 +531,38 @@ public class L2Cache implements Level2Cache, CacheStatisticsProvider{
   }
 
   protected int resolveExpiration(AbstractClassMetaData meta) {
-    return 45;
+    return getIntExtension(meta, JdoExtensions.EXPIRATION, 45);
+  }
+
+  protected int resolveMaxLifetime(AbstractClassMetaData meta, int expiration) {
+    return getIntExtension(meta, JdoExtensions.MAX_LIFETIME, (int) Math.min(Integer.MAX_VALUE, expiration*4L));
+  }
+
+  protected boolean resolveEvictOnly(AbstractClassMetaData meta) {
+    return Boolean.parseBoolean(getExtension(meta, JdoExtensions.EVICT_ONLY));
+  }
+
+  private static int getIntExtension(AbstractClassMetaData meta, String key, int defaultValue){
+    String value = getExtension(meta, key);
+    if (value==null)
+      return defaultValue;
+    try{
+      return Math.max(0, Integer.parseInt(value.trim()));
+    }catch(NumberFormatException _skip){
+      return defaultValue;
+    }
+  }
+
+  /**
+   * @return the extension value for the class or the closest superclass that has it, null if none
+   */
+  private static String getExtension(AbstractClassMetaData meta, String key){
+    for (;meta!=null; meta = meta.getSuperAbstractClassMetaData()){
+      String value = meta.getValueForExtension(key);
+      if (value!=null)
+        return value;
+    }
+    return null;
   }
 
   protected boolean resolveCacheable(AbstractClassMetaData meta) {
@@ -236,110 +570,601 @@ public class L2Cache implements Level2Cache, CacheStatisticsProvider{
   }
 
   @Override
-  public void close() {//do nothing, really  
+  public void close() {
+    if (maintenance!=null){
+      maintenance.close();
+    }
+    if (snapshot!=null){
+      try{
+        writeSnapshot();
+      }catch(IOException | RuntimeException _ex){
+        NucleusLogger.CACHE.warn("L2Cache: failed to write "+snapshot, _ex);
+      }
+    }
   }
   
   @Override
   public void evict(Object oid) {    
-    if (this.getClass()!=null)//always true
-      return;
-    
-    evictImpl(oid);
+    final long epoch = enter();
+    try{
+      invalidate(oid);
+    }finally{
+      exit(epoch);
+    }
+  }
+
+  /**
+   * Removes the record, leaving a marker that drops the stale puts (older version or started before the eviction) for a short while
+   */
+  private void invalidate(Object key) {
+    final Object[] record = lookup(key);
+    invalidations.invalidate(key, record!=null? ArrayUtil.getVersion(record) : null, time());//the marker goes first
+    evictImpl(key);
+    if (offHeap!=null && !offHeap.isEmpty()){
+      offHeap.delete(key);
+    }
   }
 
   @Override
   public void evictAll() {
+    for (ClassMeta meta : metaMap.get().values()){//clear the membership first, a concurrent put would leave at worst a stale key
+      meta.keys.clear();
+    }
     table.clear();
+    pinned.clear();//explicit eviction removes pinned records too, the pins remain
+    if (offHeap!=null){
+      offHeap.clear();
+    }
+    if (negativeCache!=null){
+      negativeCache.clear();
+    }
+    if (refreshAhead!=null){//the evicted keys should not defer anything
+      refreshAhead.clear();
+    }
+    stats.resetWeight();
     sharedExpirationIterator.set(null);
   }
 
   @Override
   public void evictAll(Object[] oids) {
-    for (Object key : oids){
-      evictImpl(key);
+    final long epoch = enter();
+    try{
+      for (Object key : oids){
+        invalidate(key);
+      }
+    }finally{
+      exit(epoch);
     }
   }
+
+  /**
+   * Removes the record the expiration has been decided on, only if it's still the current one, i.e. not replaced (or recycled) meanwhile
+   * @return true if removed
+   */
+  private boolean expireImpl(Object key, Object[] record) {
+    if (!((ConcurrentHashMapV8<Object, Object[]>) table).remove(key, record))
+      return false;
+    stats.recordRemoval(record);
+    stats.recordWeight(-ArrayUtil.getWeight(record));
+    unlink(key, record);
+    if (refreshAhead!=null){
+      refreshAhead.done(key);
+    }
+    recordExpired(record);
+    retire(record);
+    return true;
+  }
+
   private boolean evictImpl(Object key) {
-    Object removed =table.put(key, null); 
+    return removeImpl(key)!=null;
+  }
+
+  /**
+   * @return the removed record, null if none
+   */
+  private Object[] removeImpl(Object key) {
+    Object[] removed = table.put(key, null);
+    if (removed==null && !pinned.isEmpty()){
+      removed = pinned.remove(key);
+    }
     stats.recordRemoval(removed);
-    return removed!=null;
+    if (removed!=null){
+      stats.recordWeight(-ArrayUtil.getWeight(removed));
+      unlink(key, removed);
+      if (refreshAhead!=null){
+        refreshAhead.done(key);
+      }
+      retire(removed);//the caller is locked, so it can still use it (demote, etc.)
+    }
+    return removed;
+  }
+
+  /**
+   * Moves an evicted (not expired) record to the off-heap tier, if enabled
+   */
+  private void demote(Object key, Object[] record) {
+    if (offHeap==null || record==null || isExpired(record, time()))
+      return;
+    final byte[] data = codec.encode(record);
+    if (data==null)//not serializable
+      return;
+    final int evicted = offHeap.put(key, RecordCodec.classId(data), data);
+    if (evicted<0)
+      return;
+    stats.recordOffHeapStore(evicted);
+    if (lookup(key)!=null || (!invalidations.isEmpty() && invalidations.isStale(key, ArrayUtil.getVersion(record), time()))){//raced with put/evict(oid), the heap (or nothing) is authoritative
+      offHeap.delete(key);
+    }
+  }
+
+  /**
+   * Heap miss: moves the record from the off-heap tier back to the heap
+   */
+  private CachedPC<?> promote(Object oid) {
+    final byte[] data = offHeap.remove(oid);
+    Object[] record = null;
+    if (data!=null){
+      try{
+        record = codec.decode(data);
+      }catch(IOException _ex){//class evolution/deserialization issues, treat as missing
+      }
+    }
+    final int time = time();
+    if (record==null || isExpired(record, time) || (!invalidations.isEmpty() && invalidations.isStale(oid, ArrayUtil.getVersion(record), time))){
+      stats.recordOffHeap(false);
+      return null;
+    }
+    stats.recordOffHeap(true);
+    if (install(oid, record)){
+      afterPut();
+    }
+    return getImpl(oid);//or the concurrent put that has won
+  }
+
+  /**
+   * Places a decoded record (off-heap tier, snapshot) unless the oid is already present
+   * @return true if placed
+   */
+  private boolean install(Object oid, Object[] record) {
+    final Class<?> clazz = ArrayUtil.getClass(record);
+    final ClassMeta meta = getMeta(clazz);
+    for (InternEntry e : meta.interns){
+      record[e.field] = e.map.intern(record[e.field]);
+    }
+    for (CompressEntry e : meta.compressed){//the codec stores the plain values
+      record[e.field] = CompressedValue.wrap(record[e.field], e.threshold);
+    }
+    ArrayUtil.setWeight(record, Weigher.weighRecord(record));
+    ArrayUtil.setLoaded(record);
+
+    final boolean isPinned = hasPins() && isPinned(oid, clazz);
+    final ConcurrentHashMapV8<Object, Object[]> region = isPinned? pinned : (ConcurrentHashMapV8<Object, Object[]>) table;
+    if (region.putIfAbsent(oid, record)!=null)
+      return false;
+
+    stats.recordWeight(ArrayUtil.getWeight(record));
+    meta.keys.add(oid);
+    if (timerWheel!=null && !isPinned){
+      final int deadline = expiresAt(record);
+      if (deadline!=Integer.MAX_VALUE){
+        timerWheel.schedule(oid, ArrayUtil.getCreationTime(record), deadline);
+      }
+    }
+    recheckPin(oid, record, isPinned);
+    return true;
+  }
+
+  private void unlink(Object key, Object[] removed){
+    final Class<?> clazz = ArrayUtil.getClass(removed);
+    final Set<Object> keys = getMeta(clazz).keys;
+    keys.remove(key);
+    final Object[] current = lookup(key);
+    if (current!=null && ArrayUtil.getClass(current)==clazz){//concurrent put has seen the removed record and skipped the add, restore it
+      keys.add(key);
+    }
   }
 
   @Override
   public void evictAll(@SuppressWarnings("rawtypes") Collection oids) {
-    for (Object key : oids){
-      evictImpl(key);
+    final long epoch = enter();
+    try{
+      for (Object key : oids){
+        invalidate(key);
+      }
+    }finally{
+      exit(epoch);
     }
   }
 
   @Override
   public void evictAll(@SuppressWarnings("rawtypes") Class pcClass, boolean subclasses) {
-    table.clear();//mass eviction
+    if (pcClass==null){
+      evictAll();
+      return;
+    }
+    final long statsTime = stats.time();
+    int evicted = 0;
+    final Collection<ClassMeta> metas = matchingMetas(pcClass, subclasses);
+    final long epoch = enter();
+    try{
+      for (ClassMeta meta : metas){
+        evicted+=evictClass(meta);
+      }
+    }finally{
+      exit(epoch);
+    }
+    if (offHeap!=null && !offHeap.isEmpty()){
+      final int[] tags = new int[metas.size()];
+      int i = 0;
+      for (ClassMeta meta : metas){
+        tags[i++] = codec.peekClassId(meta.clazz);
+      }
+      evicted+=offHeap.removeTags(tags);
+    }
+    stats.recordEviction(stats.time() - statsTime, evicted);
+  }
+
+  private Collection<ClassMeta> matchingMetas(Class<?> pcClass, boolean subclasses){
+    final IdentityHashMap<ClassMeta, Boolean> result = new IdentityHashMap<>();//the objectIdClass maps to the same meta
+    for (ClassMeta meta : metaMap.get().values()){
+      if (meta.clazz==pcClass || (subclasses && pcClass.isAssignableFrom(meta.clazz))){
+        result.put(meta, Boolean.TRUE);
+      }
+    }
+    return result.keySet();
+  }
+
+  /**
+   * Removes the records of exactly meta.clazz, proportional to the number of such records
+   */
+  private int evictClass(ClassMeta meta) {
+    int evicted = 0;
+    for (Iterator<Object> i = meta.keys.iterator(); i.hasNext();){
+      final Object key = i.next();
+      final Object[] record = lookup(key);
+      if (record==null || ArrayUtil.getClass(record)!=meta.clazz){//stale membership
+        i.remove();
+        continue;
+      }
+      if (evictImpl(key))
+        evicted++;
+    }
+    meta.evicted.add(evicted);
+    return evicted;
   }
 
   @Override
   public void pin(Object oid) {
-    throw new UnsupportedOperationException();
+    if (oid==null)
+      return;
+    pinnedOids.add(oid);
+    final long epoch = enter();
+    try{
+      move(oid, (ConcurrentHashMapV8<Object, Object[]>) table, pinned);
+    }finally{
+      exit(epoch);
+    }
   }
 
   @Override
   public void pinAll(@SuppressWarnings("rawtypes") Collection oids) {
-    throw new UnsupportedOperationException();
+    for (Object oid : oids){
+      pin(oid);
+    }
   }
 
   @Override
   public void pinAll(Object[] oids) {
-    throw new UnsupportedOperationException();
+    for (Object oid : oids){
+      pin(oid);
+    }
   }
 
   @Override
   public void pinAll(@SuppressWarnings("rawtypes") Class pcClass, boolean subclasses) {
-    throw new UnsupportedOperationException();
+    if (pcClass==null)
+      return;
+    synchronized (pinnedOids) {
+      final ClassPin[] pins = Arrays.copyOf(classPins, classPins.length+1);
+      pins[pins.length-1] = new ClassPin(pcClass, subclasses);
+      classPins = pins;
+    }
+    final long epoch = enter();
+    try{
+      for (ClassMeta meta : matchingMetas(pcClass, subclasses)){//the cached records, via the class membership
+        for (Object key : meta.keys){
+          move(key, (ConcurrentHashMapV8<Object, Object[]>) table, pinned);
+        }
+      }
+    }finally{
+      exit(epoch);
+    }
   }
 
   @Override
   public void unpin(Object oid) {
-    throw new UnsupportedOperationException();
+    if (oid==null || !pinnedOids.remove(oid))
+      return;
+    final long epoch = enter();
+    try{
+      unpinImpl(oid);
+      afterPut();
+    }finally{
+      exit(epoch);
+    }
+  }
+
+  private void unpinImpl(Object oid) {
+    final Object[] record = pinned.get(oid);
+    if (record==null || isPinned(oid, ArrayUtil.getClass(record)))//still pinned by class
+      return;
+
+    if (move(oid, pinned, (ConcurrentHashMapV8<Object, Object[]>) table)!=null && timerWheel!=null){
+      final int deadline = expiresAt(record);
+      if (deadline!=Integer.MAX_VALUE){
+        timerWheel.schedule(oid, ArrayUtil.getCreationTime(record), deadline);
+      }
+    }
   }
 
   @Override
   public void unpinAll(@SuppressWarnings("rawtypes") Collection oids) {
-    throw new UnsupportedOperationException();
+    final long epoch = enter();
+    try{
+      for (Object oid : oids){
+        if (oid!=null && pinnedOids.remove(oid))
+          unpinImpl(oid);
+      }
+      afterPut();
+    }finally{
+      exit(epoch);
+    }
   }
 
   @Override
   public void unpinAll(Object[] oids) {
-    throw new UnsupportedOperationException();
+    unpinAll(Arrays.asList(oids));
   }
 
   @Override
   public void unpinAll(@SuppressWarnings("rawtypes") Class pcClass, boolean subclasses) {
-    throw new UnsupportedOperationException();
+    synchronized (pinnedOids) {
+      final ArrayList<ClassPin> pins = new ArrayList<>(Arrays.asList(classPins));
+      for (Iterator<ClassPin> i = pins.iterator(); i.hasNext();){
+        final ClassPin pin = i.next();
+        if (pin.clazz==pcClass && pin.subclasses==subclasses)
+          i.remove();
+      }
+      classPins = pins.toArray(ClassPin.EMPTY);
+    }
+    final long epoch = enter();
+    try{
+      for (Object oid : pinned.keySet()){//the pinned region is expected to be small
+        if (!pinnedOids.contains(oid))
+          unpinImpl(oid);
+      }
+      afterPut();
+    }finally{
+      exit(epoch);
+    }
+  }
+
+  /**
+   * The region is chosen before the write, a concurrent pin/unpin may have missed the record: move it to where it belongs now
+   */
+  private void recheckPin(Object oid, Object[] record, boolean isPinned){
+    if (!isPinned){
+      if (hasPins() && isPinned(oid, ArrayUtil.getClass(record))){//raced with pin
+        move(oid, (ConcurrentHashMapV8<Object, Object[]>) table, pinned);
+      }
+    } else if (!isPinned(oid, ArrayUtil.getClass(record)) && pinned.remove(oid, record)){//raced with unpin, not moved by unpinImpl
+      //unlike move(), the record wins over the one unpinImpl may have moved already (the former pinned one)
+      final Object[] displaced = ((ConcurrentHashMapV8<Object, Object[]>) table).put(oid, record);
+      if (displaced!=null){
+        stats.recordWeight(-ArrayUtil.getWeight(displaced));
+        unlink(oid, displaced);
+        retire(displaced);
+      }
+      if (timerWheel!=null){
+        final int deadline = expiresAt(record);
+        if (deadline!=Integer.MAX_VALUE){
+          timerWheel.schedule(oid, ArrayUtil.getCreationTime(record), deadline);
+        }
+      }
+      if (hasPins() && isPinned(oid, ArrayUtil.getClass(record))){//and pinned again meanwhile
+        move(oid, (ConcurrentHashMapV8<Object, Object[]>) table, pinned);
+      }
+    }
+  }
+
+  private boolean isPinned(Object oid, Class<?> clazz){
+    if (!pinnedOids.isEmpty() && pinnedOids.contains(oid))
+      return true;
+    for (ClassPin pin : classPins){
+      if (pin.matches(clazz))
+        return true;
+    }
+    return false;
+  }
+
+  private boolean hasPins(){
+    return classPins.length>0 || !pinnedOids.isEmpty();
+  }
+
+  /**
+   * @return the moved record or null, if none or a concurrent put has already placed a newer one
+   */
+  private Object[] move(Object key, ConcurrentHashMapV8<Object, Object[]> from, ConcurrentHashMapV8<Object, Object[]> to){
+    final Object[] record = from.remove(key);
+    if (record==null)
+      return null;
+    if (to.putIfAbsent(key, record)!=null){//lost to a put, the membership stays
+      stats.recordWeight(-ArrayUtil.getWeight(record));
+      retire(record);
+      return null;
+    }
+    return record;
+  }
+
+  /**
+   * @return the record regardless of the region
+   */
+  private Object[] lookup(Object key){
+    final Object[] record = table.get(key);
+    if (record!=null || pinned.isEmpty())
+      return record;
+    return pinned.get(key);
   }
 
   @Override
   public int getNumberOfPinnedObjects() {
-    return 0;
+    return pinned.size();
   }
 
   @Override
   public int getNumberOfUnpinnedObjects() {
-    return Math.max(0, table.size() - getNumberOfPinnedObjects());
+    return table.size();
   }
 
   @Override
   public int getSize() {
-    return table.size();
+    return table.size() + pinned.size();
   }
 
   @SuppressWarnings("rawtypes")
   @Override
   public CachedPC get(Object oid) {
-    CachedPC<?> pc = assembleCachedPC(table.get(oid), oid);
-    if (pc==null && !isCacheableForGet(oid)){
-      return null;
+    final long epoch = enter();
+    try{
+      if (admission!=null && oid!=null){
+        admission.record(oid);
+      }
+      CachedPC<?> pc = getImpl(oid);
+      if (pc==null && offHeap!=null && oid!=null){
+        if (offHeap.isEmpty()){
+          stats.recordOffHeap(false);
+        } else{
+          pc = promote(oid);
+        }
+      }
+      if (pc==null){
+        if (!isCacheableForGet(oid))
+          return null;
+        if (isAbsent(oid)){//not a miss, the datastore has nothing either
+          stats.recordNegativeHit();
+          return null;
+        }
+      }
+      stats.recordGet(pc);
+      return pc;
+    }finally{
+      exit(epoch);
+    }
+  }
+
+  /**
+   * Marks the oid as known to be absent in the datastore (deleted, never existed), for bestsss.l2cache.negativeTtl.
+   * No-op unless the negative cache is enabled (bestsss.l2cache.negativeSize). A put of the oid removes the mark.
+   */
+  public void markAbsent(Object oid) {
+    if (negativeCache==null || oid==null)
+      return;
+    negativeCache.add(oid, time());
+    if (lookup(oid)!=null){//raced with put
+      negativeCache.remove(oid);
+    }
+  }
+
+  /**
+   * @return true if the oid has been marked absent (and not put since)
+   */
+  public boolean isAbsent(Object oid) {
+    return negativeCache!=null && oid!=null && negativeCache.contains(oid, time());
+  }
+
+  private CachedPC<?> getImpl(Object oid) {
+    final long epoch = enter();//getOrLoad is not locked
+    try{
+      Object[] record = table.get(oid);
+      final boolean isPinned = record==null && !pinned.isEmpty() && (record = pinned.get(oid))!=null;
+      return assembleCachedPC(record, oid, isPinned);
+    }finally{
+      exit(epoch);
+    }
+  }
+
+  /**
+   * Refresh-ahead SPI: called (at most once per oid, on the reading thread) when a hot record is read shortly before its expiration.
+   * Implementations should hand off to an executor, load the current state and {@link L2Cache#put(Object, CachedPC)} it;
+   * until then (or the refresh window passes) the current record keeps being served.
+   */
+  public interface Refresher{
+    void refresh(L2Cache cache, Object oid, Class<?> pcClass);
+  }
+
+  /**
+   * Loads a missing entry, see {@link L2Cache#getOrLoad(Object, Loader)}
+   */
+  public interface Loader{
+    /**
+     * @return the loaded state or null if the object doesn't exist
+     */
+    CachedPC<?> load(Object oid);
+  }
+
+  /**
+   * Single flight load: on a miss exactly one caller per oid runs the loader (and puts the result),
+   * the concurrent callers for the same oid wait for it and then read the cache (counted as collapsed misses).
+   * If the loaded state could not be cached (not found, not cacheable, evicted meanwhile) the waiters load on their own,
+   * so do the waiters of a leader that takes longer than SingleFlight.MAX_WAIT and the callers already loading another oid (nested loads).
+   */
+  @SuppressWarnings("rawtypes")
+  public CachedPC getOrLoad(Object oid, Loader loader) {
+    if (oid==null)
+      return loader.load(oid);
+    CachedPC<?> pc = get(oid);
+    if (pc!=null || isAbsent(oid))
+      return pc;
+
+    final SingleFlight.Flight flight = singleFlight.acquire(oid);
+    if (flight==SingleFlight.AWAITED){
+      stats.recordCollapsedMiss();
+      if ((pc = getImpl(oid))!=null || isAbsent(oid))//the leader has found nothing
+        return pc;
+    } else if (flight!=null && (pc = getImpl(oid))!=null){//put by the previous leader, just before acquire
+      singleFlight.release(flight);
+      return pc;
+    }
+    try{
+      pc = loader.load(oid);
+      if (pc!=null){
+        put(oid, pc);
+      } else{
+        markAbsent(oid);
+      }
+      return pc;
+    }finally{
+      singleFlight.release(flight);
+    }
+  }
+
+  /**
+   * {@link #getOrLoad(Object, Loader)} for any Level2Cache of the context, w/o coalescing unless the cache is an L2Cache
+   */
+  @SuppressWarnings("rawtypes")
+  public static CachedPC getOrLoad(NucleusContext nucleusContext, Object oid, Loader loader) {
+    final Level2Cache cache = nucleusContext instanceof PersistenceNucleusContext && ((PersistenceNucleusContext) nucleusContext).hasLevel2Cache()?
+        ((PersistenceNucleusContext) nucleusContext).getLevel2Cache() : null;
+    if (cache instanceof L2Cache)
+      return ((L2Cache) cache).getOrLoad(oid, loader);
+
+    CachedPC pc = cache!=null && oid!=null? cache.get(oid) : null;
+    if (pc!=null)
+      return pc;
+    pc = loader.load(oid);
+    if (pc!=null && cache!=null && oid!=null){
+      cache.put(oid, pc);
     }
-    stats.recordGet(pc);
     return pc;
   }
 
@@ -366,51 +1191,301 @@ public class L2Cache implements Level2Cache, CacheStatisticsProvider{
   @SuppressWarnings("rawtypes")
   @Override
   public CachedPC put(Object oid, CachedPC pc) {
-    putImpl(oid, pc);//the return value is never used, so we can ignore it
-    evictOrExpire();
+    final long epoch = enter();
+    try{
+      putImpl(oid, pc);//the return value is never used, so we can ignore it
+      afterPut();
+    }finally{
+      exit(epoch);
+    }
     return null;
   }
 
   private void putImpl(Object oid, CachedPC<?> pc) {
-    if (!getMeta(pc.getObjectClass()).cacheable){
+    final Object[] record = prepare(oid, pc);
+    if (record==null)
       return;
+    final boolean isPinned = hasPins() && isPinned(oid, ArrayUtil.getClass(record));
+    final Table<Object, Object[]> region = isPinned? pinned : table;
+    final Object[] existing = region.put(oid, record);
+    if (offHeap!=null && !offHeap.isEmpty()){//after the heap write, see demote()
+      offHeap.delete(oid);
+    }
+    if (negativeCache!=null){
+      negativeCache.remove(oid);
+    }
+    if (refreshAhead!=null){//the refresh (if any) has arrived
+      refreshAhead.done(oid);
+    }
+    stats.recordPut(pc);
+    stats.recordWeight(ArrayUtil.getWeight(record) - (existing!=null?ArrayUtil.getWeight(existing):0));
+    if (existing==null || ArrayUtil.getClass(existing)!=ArrayUtil.getClass(record)){
+      if (existing!=null){
+        unlink(oid, existing);
+      }
+      getMeta(ArrayUtil.getClass(record)).keys.add(oid);
+    }
+    if (timerWheel!=null && !isPinned){
+      final int stamp = ArrayUtil.getCreationTime(record);
+      final int deadline = expiresAt(record);
+      if (deadline!=Integer.MAX_VALUE && (existing==null || ArrayUtil.getCreationTime(existing)!=stamp)){//replacing a record created within the same second reuses the scheduled entry
+        timerWheel.schedule(oid, stamp, deadline);
+      }
+    }
+    if (admission!=null && !isPinned){
+      admission.record(oid);
+      if (existing==null){
+        final Object candidate = admission.enterWindow(oid);
+        if (candidate!=null && overshoot() > 0){
+          admit(candidate);
+        }
+      }
+    }
+    if (!invalidations.isEmpty() && invalidations.isStale(oid, pc.getVersion(), time())){//raced with evict(oid)
+      if (((ConcurrentHashMapV8<Object, Object[]>) region).remove(oid, record)){
+        stats.recordWeight(-ArrayUtil.getWeight(record));
+        unlink(oid, record);
+        retire(record);
+      }
+      stats.recordStalePut();
+    } else{
+      recheckPin(oid, record, isPinned);
+    }
+    if (existing!=null){
+      retire(existing);
+    }
+  }
+
+  /**
+   * @return the record to place or null if the put is to be skipped (or has been merged already)
+   */
+  private Object[] prepare(Object oid, CachedPC<?> pc) {
+    if (!getMeta(pc.getObjectClass()).cacheable){
+      return null;
     }	
+    if (!invalidations.isEmpty() && invalidations.isStale(oid, pc.getVersion(), time())){
+      stats.recordStalePut();
+      return null;
+    }
+    final Object version = pc.getVersion();
+    final Object[] existing = version!=null? lookup(oid) : null;
+    if (existing!=null && ArrayUtil.getClass(existing)==pc.getObjectClass()){
+      final Object cached = ArrayUtil.getVersion(existing);
+      if (Invalidations.isNewer(cached, version)){//an outdated state, e.g. a transaction that has read before the update
+        stats.recordOutdatedPut();
+        return null;
+      }
+      final int time = time();
+      if (version.equals(cached) && (refreshAhead==null || !refreshAhead.isPending(oid, time))){//a refresh renews the record instead
+        if (!hasNewFields(pc, existing)){//re-put of the cached state (read-only transaction)
+          recordAccess(existing, time);
+          stats.recordRedundantPut();
+          return null;
+        }
+        final Object[] record = toArray(pc);
+        if (!merge(oid, record))
+          return record;
+        retire(record);//never published
+        return null;
+      }
+    }
+    return toArray(pc);
+  }
 
-    /*Object existing = */
-    table.put(oid, toArray(pc));
-    stats.recordPut(pc);
+  /**
+   * Same version, different fetch plans: keeps the union of the loaded fields, the incoming values win.
+   * Copy on write - the merged record replaces the existing only if it's still the current one, otherwise it's merged w/ the new current one;
+   * never put over it, that'd lose the loaded fields. A failed replace means another put has succeeded, i.e. lock-free.
+   * @return true if done: merged (and placed) or outdated meanwhile (not written); false if the record should be put as usual (no current record of the same class and version)
+   */
+  private boolean merge(Object oid, Object[] record) {
+    for (;;){
+      Object[] current = table.get(oid);
+      boolean isPinned = false;
+      if (current==null && !pinned.isEmpty() && (current = pinned.get(oid))!=null){
+        isPinned = true;
+      }
+      if (current==null || ArrayUtil.getClass(current)!=ArrayUtil.getClass(record))
+        return false;
+      if (!ArrayUtil.getVersion(record).equals(ArrayUtil.getVersion(current))){
+        if (!Invalidations.isNewer(ArrayUtil.getVersion(current), ArrayUtil.getVersion(record)))
+          return false;
+        stats.recordOutdatedPut();//updated meanwhile, don't put the former state over it
+        return true;
+      }
+
+      final Object[] merged = ArrayUtil.union(record, current, time());
+      ArrayUtil.setWeight(merged, Weigher.weighRecord(merged));
+      ArrayUtil.setLoaded(merged);
+      if ((isPinned? pinned : (ConcurrentHashMapV8<Object, Object[]>) table).replace(oid, current, merged)){
+        stats.recordMergedPut();
+        stats.recordWeight(ArrayUtil.getWeight(merged) - ArrayUtil.getWeight(current));
+        if (refreshAhead!=null){
+          refreshAhead.done(oid);
+        }
+        retire(current);
+        return true;
+      }
+      retire(merged);
+    }
+  }
+
+  /**
+   * @return true if pc has loaded fields that are not present in the record
+   */
+  private static boolean hasNewFields(CachedPC<?> pc, Object[] record) {
+    final int recordLength = ArrayUtil.maxLength(record);
+    if (pc instanceof CachedX<?>){
+      final Object[] fields = ((CachedX<?>) pc).getArray();
+      for (int i=0, length=Math.min(((CachedX<?>) pc).getLength(), ArrayUtil.maxLength(fields)); i<length; i++){
+        if (fields[i]!=CachedX.NOT_PRESENT && (i>=recordLength || record[i]==CachedX.NOT_PRESENT))
+          return true;
+      }
+      return false;
+    }
+    final boolean[] loaded = pc.getLoadedFields();
+    for (int i=0; i<loaded.length; i++){
+      if (loaded[i] && (i>=recordLength || record[i]==CachedX.NOT_PRESENT))
+        return true;
+    }
+    return false;
+  }
+
+  private void admit(Object candidate) {
+    final Object[] victims = Selection.victims(1);
+    if (table.getExpirable(1, EvictionScorer.instance, victims)==0)
+      return;
+    
+    final Object victim = victims[0];
+    victims[0] = null;
+    if (victim.equals(candidate))
+      return;
+    
+    final boolean admitted = admission.admit(candidate, victim);
+    final Object evicted = admitted? victim : candidate;
+    demote(evicted, removeImpl(evicted));
+    stats.recordAdmission(admitted);
   }
   
+  /**
+   * @return number of elements above the capacity, either by count or by the estimated weight (bestsss.l2cache.maxBytes)
+   */
+  private int overshoot() {
+    final int size = table.size();
+    int delta = size - maxElements;
+    if (maxBytes > 0){
+      final long weight = stats.getTotalWeight();
+      if (weight > maxBytes && size > 0){
+        final long average = Math.max(1, weight/size);
+        delta = (int) Math.max(delta, Math.min(size, (weight-maxBytes)/average + 1));
+      }
+    }
+    return delta;
+  }
+
+  private void afterPut() {
+    if (maintenance==null){
+      evictOrExpire();
+      return;
+    }
+    if (needsMaintenance()){//just signal the pressure
+      maintenance.signal();
+    }
+  }
+
+  private boolean needsMaintenance() {
+    if (overshoot() > 0)
+      return true;
+    final int time = time();
+    if (readBuffer!=null && readBuffer.isDue(time))
+      return true;
+    return timerWheel!=null? timerWheel.isDue(time) : time - maintenanceInfo.expiredAt > MAX_EXPIRATION;
+  }
+
+  /**
+   * Maintenance mode, called by a single thread. No throttling, the amount of work per round is bound by the overshoot.
+   * @return remaining overshoot
+   */
+  private int maintain() {
+    final int time = time();
+    if (readBuffer!=null){//apply the reads before the eviction/expiration decisions
+      readBuffer.drain(time);
+    }
+    if (!invalidations.isEmpty()){
+      invalidations.purge(time);
+    }
+    if (timerWheel!=null && timerWheel.isDue(time)){
+      expireTimerWheel(time);
+    }
+    int delta = overshoot();
+    if (timerWheel==null && (delta > 64 || sharedExpirationIterator.get()!=null)){
+      sharedExpire();
+      delta = overshoot();
+    }
+    if (delta > 0){
+      performEviction(Math.min(delta, Math.max(64, maxElements>>>8)));//cap the batch (and the sample), the next round continues
+      delta = overshoot();
+    }
+    if (timerWheel==null && time - maintenanceInfo.expiredAt > MAX_EXPIRATION){
+      performExpiration();
+      maintenanceInfo.expiredAt = time;
+    }
+    return delta;
+  }
+
   private void evictOrExpire() {
     final int time = time(); 
     final EvictionInfo evictionInfo = evictionDone.get();
-    if (time - evictionInfo.evictedAt > MAX_EVICTION ){
-      int delta = table.size() - maxElements;
-      if (delta > 64 || sharedExpirationIterator.get()!=null){
+    final boolean wheelDue = timerWheel!=null && timerWheel.isDue(time);
+    final boolean evictionDue = time - evictionInfo.evictedAt > MAX_EVICTION;
+    final boolean expirationDue = timerWheel==null && time - evictionInfo.expiredAt > MAX_EXPIRATION;
+    if (readBuffer!=null && (wheelDue || evictionDue || expirationDue || readBuffer.isDue(time))){//apply the reads before the eviction/expiration decisions
+      readBuffer.drain(time);
+    }
+    if (wheelDue){
+      expireTimerWheel(time);
+    }
+    if (evictionDue){
+      int delta = overshoot();
+      if (timerWheel==null && (delta > 64 || sharedExpirationIterator.get()!=null)){
         sharedExpire();
-        delta = table.size() - maxElements;
+        delta = overshoot();
       }
       if (delta > 0){
-        performEviction(delta);
+        performEviction(Math.min(delta, Math.max(64, maxElements>>>8)));//cap the batch like maintain(), the next put continues
         evictionInfo.evictedAt = time() + ThreadLocalRandom.current().nextInt(MAX_EVICTION/2);//randomize
         return;
       }
     } 
-    if (time - evictionInfo.expiredAt > MAX_EXPIRATION ){
+    if (expirationDue){
       performExpiration();
       evictionInfo.expiredAt = time() + ThreadLocalRandom.current().nextInt(MAX_EXPIRATION/3);//random expirations
     }
   }
 
+  private void expireTimerWheel(int time) {
+    final long statsTime = stats.time();
+    final int expired = timerWheel.advance(time);
+    if (expired>=0){
+      stats.recordExpiration(stats.time() - statsTime, expired);
+    }
+  }
+
   private void performEviction(int delta) {
     //expire 1/2048 at a time or at least 8
     final long statsTime = stats.time(); 
     int entries = Math.max(delta, Math.max(8, maxElements>>>11));
-    Collection<Object> keys = table.getExpirable(entries, EvictionComparator.instance);
+    final Object[] keys = Selection.victims(entries);
+    final int count = table.getExpirable(entries, EvictionScorer.instance, keys);
     int evicted = 0;
-    for (Object key:keys){
-      if (evictImpl(key))
+    for (int i=0; i<count; i++){
+      final Object key = keys[i];
+      keys[i] = null;
+      final Object[] removed = removeImpl(key);
+      if (removed!=null){
+        demote(key, removed);
         evicted++;
+      }
     }
     stats.recordEviction(stats.time() - statsTime, evicted);    
   }
@@ -421,48 +1496,53 @@ public class L2Cache implements Level2Cache, CacheStatisticsProvider{
     if (size <= minExpire)
       return;
     
-    final int delta = size - maxElements;
+    final int delta = overshoot();
 
     final long statsTime = stats.time();
     final int entries = Math.max(Math.min(128, delta), Math.max(16, minExpire));
     final int time = time();
 
-    final Collection<Object> keys = table.getExpirable(entries, newExpirationComparator(time));
+    final Object[] keys = Selection.victims(entries);
+    final int count = table.getExpirable(entries, expirationScorer, keys);
     int expired = 0;
-    for (Object key:keys){
+    for (int i=0; i<count; i++){
+      final Object key = keys[i];
       Object v = table.get(key);
       if (!(v instanceof Object[]))
         continue;
       if (!isExpired((Object[]) v, time))
         break;
-      if (evictImpl(key)){
+      if (refreshAhead!=null && refreshAhead.isPending(key, time))
+        continue;
+      if (expireImpl(key, (Object[]) v)){
         expired++;
       }
     }
+    Arrays.fill(keys, 0, count, null);//the array is reused by the thread, don't retain
     stats.recordExpiration(stats.time() - statsTime, expired);
     if (delta - expired > 0 || sharedExpirationIterator.get()!=null){//doesn't matter if the size changes, we have reached the cap already
       sharedExpire();
     }
   }
-  private static final java.util.Iterator<Object[]> BUSY_ITERATOR = Collections.<Object[]>emptyList().iterator();
+  private static final java.util.Iterator<Map.Entry<Object, Object[]>> BUSY_ITERATOR = Collections.<Map.Entry<Object, Object[]>>emptyList().iterator();
   //state:: "null" - no active expiration, BUSY_ITERATOR - some thread is performing shared expiration, valid iterator - free to grab and help
   //--perhaps should use split iterator with removed impl-- (need to have at least 4 CPUs for such operation) 
-  private final AtomicReference<java.util.Iterator<Object[]>> sharedExpirationIterator=new AtomicReference<>();
+  private final AtomicReference<java.util.Iterator<Map.Entry<Object, Object[]>>> sharedExpirationIterator=new AtomicReference<>();
   
   /**
    * @return true if the expiration needs to continue (i.e. sharedExpire is likely to perform more work), false is the expiration has completed
    */
   protected boolean sharedExpire(){//available for calls 
-    java.util.Iterator<Object[]> i;
-    final AtomicReference<Iterator<Object[]>> sharedExpirationIterator = this.sharedExpirationIterator;
+    java.util.Iterator<Map.Entry<Object, Object[]>> i;
+    final AtomicReference<Iterator<Map.Entry<Object, Object[]>>> sharedExpirationIterator = this.sharedExpirationIterator;
     for(;;){
       i = sharedExpirationIterator.get();
       if (i==BUSY_ITERATOR)
         return false;
       
-      java.util.Iterator<Object[]> expect = i;  
+      java.util.Iterator<Map.Entry<Object, Object[]>> expect = i;  
       if (i==null)
-        i = ((ConcurrentHashMapV8<Object, Object[]>)table).values().iterator();
+        i = ((ConcurrentHashMapV8<Object, Object[]>)table).entrySet().iterator();//entries, the key is needed for the class membership
       
       if (sharedExpirationIterator.compareAndSet(expect, BUSY_ITERATOR)){//Locked state
         break;
@@ -471,12 +1551,17 @@ public class L2Cache implements Level2Cache, CacheStatisticsProvider{
     long start = stats.time();
     final int time = time();
     int expired = 0;
-    for (int loops=table.size()>>4;i.hasNext() && loops-->0;){// 1/16 a time
-      Object[] o = i.next();
-      if (isExpired(o, time)){
-        i.remove();
-        expired++;
+    final long epoch = enter();
+    try{
+      for (int loops=table.size()>>4;i.hasNext() && loops-->0;){// 1/16 a time
+        Map.Entry<Object, Object[]> e = i.next();
+        Object[] o = e.getValue();//the iterator is resumed, the entry might have been removed (and the record recycled) since
+        if (isExpired(e.getKey(), o, time) && expireImpl(e.getKey(), o)){
+          expired++;
+        }
       }
+    }finally{
+      exit(epoch);
     }
     boolean result;
     sharedExpirationIterator.compareAndSet(BUSY_ITERATOR, (result=i.hasNext())?i:null);
@@ -489,7 +1574,9 @@ public class L2Cache implements Level2Cache, CacheStatisticsProvider{
     final Object[] fields;
     
     if (pc instanceof CachedX<?>){//already exists, fix time() and access like it's newly placed
-      fields = ((CachedX<?>) pc).getArray().clone();//clone it early, so no changes to CachedX would be reflected straight into the cache
+      final Object[] source = ((CachedX<?>) pc).getArray();
+      fields = allocate(source.length);//copy it early, so no changes to CachedX would be reflected straight into the cache
+      System.arraycopy(source, 0, fields, 0, source.length);
       ArrayUtil.setTimeAndAccess(fields, time());//apply time, zero the hitCount - the object has not been in use in its current state (say changing entity's state to 'deleted', 'removed' should not be kept)
       
       for (int i=0; i<fields.length - ArrayUtil.RESERVED; i++){//wrap all fields regardless
@@ -502,7 +1589,7 @@ public class L2Cache implements Level2Cache, CacheStatisticsProvider{
         addMeta(meta.clazz, meta.newLength(length), getClass());
       }
   
-      fields = ArrayUtil.newArray(pc, length, time());
+      fields = ArrayUtil.init(allocate(length+ArrayUtil.RESERVED), pc, time());
       for (int i=0; i<loaded.length; i++){
         if (!loaded[i])
           continue;        
@@ -514,9 +1601,54 @@ public class L2Cache implements Level2Cache, CacheStatisticsProvider{
     for (InternEntry e : meta.interns){
       fields[e.field] = e.map.intern(fields[e.field]);
     }
+    for (CompressEntry e : meta.compressed){
+      fields[e.field] = CompressedValue.wrap(fields[e.field], e.threshold);
+    }
+    ArrayUtil.setWeight(fields, Weigher.weighRecord(fields));//computed once, when placed in the cache
+    ArrayUtil.setLoaded(fields);//likewise, CachedX shares them on get
     return fields;
   }
 
+  /**
+   * @param length the entire length, incl. the header
+   * @return a recycled array (the fields are NOT_PRESENT) or a new one
+   */
+  private Object[] allocate(int length){
+    final Object[] recycled = recycler!=null? recycler.poll(length) : null;
+    return recycled!=null? recycled : ArrayUtil.newArray(length);
+  }
+
+  /**
+   * Brackets the access to the records, an unlinked record is not recycled until all the brackets that might have seen it are exited
+   * @return the epoch to exit with
+   */
+  private long enter(){
+    return recycler!=null? recycler.lock() : 0;
+  }
+
+  private void exit(long epoch){
+    if (recycler!=null){
+      recycler.unlock(epoch);
+    }
+  }
+
+  /**
+   * Hands an unlinked (or never published) record to the recycler, the caller has to be within enter/exit.
+   * Records exposed to CachedX or the read buffer are dropped on reclamation, CachedX shares the array w/o a bound on its lifetime.
+   */
+  private void retire(Object[] record){
+    if (recycler!=null){
+      recycler.offer(record);
+    }
+  }
+
+  private static final DelayedAllocator.Reclaimer RECLAIMER = new DelayedAllocator.Reclaimer() {
+    @Override
+    public boolean reclaim(Object[] array) {
+      return ArrayUtil.recycle(array);
+    }
+  };
+
   private Object wrap(final Object o){
     if (o instanceof Map){
       return MapReplacement.wrap((Map<?,?>)o);
@@ -530,10 +1662,15 @@ public class L2Cache implements Level2Cache, CacheStatisticsProvider{
 
   @Override @SuppressWarnings("rawtypes")
   public void putAll(Map<Object, CachedPC> objs) {
-    for(Map.Entry<Object, CachedPC> e : objs.entrySet()){
-      putImpl(e.getKey(), e.getValue());
+    final long epoch = enter();
+    try{
+      for(Map.Entry<Object, CachedPC> e : objs.entrySet()){
+        putImpl(e.getKey(), e.getValue());
+      }
+      afterPut();
+    }finally{
+      exit(epoch);
     }
-    evictOrExpire();
   }
 
   @Override
@@ -543,7 +1680,12 @@ public class L2Cache implements Level2Cache, CacheStatisticsProvider{
   
   @Override
   public boolean containsOid(Object oid) {
-    return touch(table.get(oid))!=null;
+    final long epoch = enter();
+    try{
+      return touch(lookup(oid))!=null;
+    }finally{
+      exit(epoch);
+    }
   }
 
 
@@ -551,12 +1693,39 @@ public class L2Cache implements Level2Cache, CacheStatisticsProvider{
   private Object touch(Object object) {
     if (!(object instanceof Object[]))      
       return null;
-    Object[] array = (Object[]) object;
-    ArrayUtil.setTimeAndHitCount(array, time());
+    recordAccess((Object[]) object, time());
     return object;
   }
+
+  /**
+   * Hits/access time: buffered and applied by the drainer, so the readers don't write to the shared records
+   */
+  private void recordAccess(Object[] record, int time) {
+    if (readBuffer==null){
+      ArrayUtil.setTimeAndHitCount(record, time);//racy but meh, we can live with some races
+      return;
+    }
+    if (recycler!=null){//the buffer is drained outside the reader's lock
+      ArrayUtil.expose(record);
+    }
+    if (readBuffer.record(record, time)){
+      if (maintenance==null){
+        readBuffer.drain(time);
+      } else{
+        maintenance.signal();
+      }
+    }
+  }
   
-  private CachedPC<?> assembleCachedPC(Object object, Object key) {
+  /**
+   * The access time of an idle looking record might be behind a read that's still buffered: apply the reads and re-check
+   * @return true if the record is no longer expired
+   */
+  private boolean hasBufferedRead(Object key, Object[] record, int time) {
+    return readBuffer!=null && readBuffer.drain(time)>0 && !isExpired(key, record, time);
+  }
+
+  private CachedPC<?> assembleCachedPC(Object object, Object key, boolean pinned) {
     if (!(object instanceof Object[]))      
       return null;
     
@@ -570,8 +1739,9 @@ public class L2Cache implements Level2Cache, CacheStatisticsProvider{
            
     @SuppressWarnings("unchecked")
     Class<Object> clazz = (Class<Object>) array[--len];    
-    if (isExpired(array, time)){//the array ref to cache will be in L1 (so here it's the best place to call isExpired)
-      evictImpl(key);
+    if (!pinned && isExpired(key, array, time) && !hasBufferedRead(key, array, time)){//the array ref to cache will be in L1 (so here it's the best place to call isExpired)
+      if (evictImpl(key))
+        recordExpired(array);
       stats.recordObsolete();
       return null;
     }
@@ -579,10 +1749,15 @@ public class L2Cache implements Level2Cache, CacheStatisticsProvider{
     Object version = array[--len];
 
     //touch the original array    
-    ArrayUtil.setTimeAndHitCount(array, time);//racy but meh, we can live with some races
+    recordAccess(array, time);
+    if (refreshAhead!=null && !pinned && refreshAhead.isDue(array, expiresAt(array), time) && refreshAhead.request(this, key, clazz, time)){
+      stats.recordRefresh();
+    }
     
-    //the caller is not expected to modify the contents of the cached instance;
-    //cloning would be rather cheap as the the array is small should go in the TLAB and die trivially within young gen
+    //the record is shared, CachedX copies it on the first modification (if any)
+    if (recycler!=null){
+      ArrayUtil.expose(array);
+    }
     CachedX<Object> result = new CachedX<Object>(clazz, array, array.length - ArrayUtil.RESERVED, version);        
     return result;
   }
@@ -598,14 +1773,19 @@ public class L2Cache implements Level2Cache, CacheStatisticsProvider{
     }
     AbstractClassMetaData meta = nucleusContext.getMetaDataManager().getMetaDataForClass(clazz, null);      
     InternEntry[] interns = InternEntry.EMPTY;
+    CompressEntry[] compressed = CompressEntry.EMPTY;
     if (meta!=null){
       ArrayList<InternEntry> list = resolveInterns(meta);
       if (!list.isEmpty())
         interns=list.toArray(interns);
+      ArrayList<CompressEntry> compressList = resolveCompressed(meta);
+      if (!compressList.isEmpty())
+        compressed=compressList.toArray(compressed);
     }    
     
     int length = meta!=null?meta.getMemberCount():2;
-    ClassMeta classMeta = new ClassMeta(clazz, interns, length, resolveCacheable(meta), resolveExpiration(meta));
+    int expiration = resolveExpiration(meta);
+    ClassMeta classMeta = new ClassMeta(clazz, interns, compressed, length, resolveCacheable(meta), expiration, resolveMaxLifetime(meta, expiration), resolveEvictOnly(meta), stats.classExpirations(clazz), stats.classEvictions(clazz), Collections.newSetFromMap(new ConcurrentHashMapV8<Object, Boolean>()));
     if (!classMeta.cacheable){
       meta.setCacheable(false);//force metadata not to cache the class any longer, there are no proper read barriers... but it will do
       //overall it hacks a little as the metadata should not be mutable
@@ -634,6 +1814,35 @@ public class L2Cache implements Level2Cache, CacheStatisticsProvider{
     }
     return list;
   }
+
+  private ArrayList<CompressEntry> resolveCompressed(AbstractClassMetaData meta) {
+    ArrayList<CompressEntry> list = new ArrayList<>();
+    final int classThreshold = compressThreshold(getExtension(meta, JdoExtensions.COMPRESS));
+    for (AbstractMemberMetaData fieldMeta : getAllFields(meta)){
+      if (fieldMeta.getFieldId()<0 || fieldMeta.getValueForExtension(JdoExtensions.INTERN)!=null)//interned values are shared already
+        continue;
+      String compress = fieldMeta.getValueForExtension(JdoExtensions.COMPRESS);
+      final Class<?> type = fieldMeta.getType();
+      int threshold = compress!=null? compressThreshold(compress) : (type==String.class || type==byte[].class || type==char[].class)? classThreshold : -1;
+      if (threshold<0)
+        continue;
+      list.add(new CompressEntry(fieldMeta.getFieldId(), threshold));
+    }
+    return list;
+  }
+
+  /**
+   * @return min size in bytes, -1 if not compressed
+   */
+  private static int compressThreshold(String value){
+    if (value==null || "false".equalsIgnoreCase(value.trim()))
+      return -1;
+    try{
+      return Math.max(0, Integer.parseInt(value.trim()));
+    }catch(NumberFormatException _skip){//"true", "default"
+      return CompressedValue.DEFAULT_THRESHOLD;
+    }
+  }
   
   /**
    * @param meta target class metadata to return fields for
@@ -0,0 +1,144 @@
+package bestsss.cache;
+
+import java.util.Arrays;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+/**
+ * Minimal LZ77 block compressor (LZ4 like layout), no dependencies, no framing.
+ * <pre>
+ * sequence: token (literals:4 | match-4:4), [literal length+], literals, [offset:16LE, [match length+]]
+ * </pre>
+ * Lengths of 15 continue in the following bytes (255 - more to come), the last sequence has literals only.
+ * The compressor is greedy with a single probe per position; it favors speed over ratio, the data is expected to be text (json, xml, descriptions).
+ *
+ * @author Stanimir Simeonoff
+ */
+final class LZ {
+  private static final int HASH_BITS = 12;
+  private static final int MIN_MATCH = 4;
+  private static final int MAX_OFFSET = 0xffff;
+  private static final int TAIL = 8;//no matches starting in the last bytes
+
+  private LZ(){}
+
+  /**
+   * @param minSaving - the compressed form has to be at least that many bytes shorter
+   * @return the compressed bytes, null if the data doesn't compress well enough
+   */
+  static byte[] compress(byte[] src, int minSaving){
+    final int length = src.length;
+    final int max = length - Math.max(1, minSaving);
+    if (max<=0)
+      return null;
+    final byte[] dst = new byte[max];
+    final int[] table = new int[1<<HASH_BITS];//position+1, zero is empty
+    int anchor = 0;
+    int out = 0;
+    for (int i=0, limit = length-TAIL; i<limit;){
+      final int seq = readInt(src, i);
+      final int h = (seq * 0x9E3779B1) >>> (32-HASH_BITS);
+      final int ref = table[h]-1;
+      table[h] = i+1;
+      if (ref<0 || i-ref>MAX_OFFSET || readInt(src, ref)!=seq){
+        i += 1 + ((i-anchor)>>>6);//skip faster over incompressible data
+        continue;
+      }
+      int end = i+MIN_MATCH;
+      for (int r = ref+MIN_MATCH; end<length && src[end]==src[r]; end++, r++);
+
+      out = sequence(src, anchor, i-anchor, dst, out, i-ref, end-i);
+      if (out<0)
+        return null;
+      i = anchor = end;
+    }
+    out = sequence(src, anchor, length-anchor, dst, out, 0, 0);
+    return out<0? null : Arrays.copyOf(dst, out);
+  }
+
+  /**
+   * @param dst - exactly the size of the original data
+   */
+  static void decompress(byte[] src, byte[] dst){
+    int in = 0;
+    int out = 0;
+    while (in<src.length){
+      final int token = src[in++] & 0xff;
+      int literals = token>>>4;
+      if (literals==15){
+        for (int b; ; ){
+          literals += b = src[in++] & 0xff;
+          if (b!=255)
+            break;
+        }
+      }
+      System.arraycopy(src, in, dst, out, literals);
+      in += literals;
+      out += literals;
+      if (in>=src.length)
+        break;
+
+      final int offset = (src[in++] & 0xff) | (src[in++] & 0xff)<<8;
+      int match = token & 15;
+      if (match==15){
+        for (int b; ; ){
+          match += b = src[in++] & 0xff;
+          if (b!=255)
+            break;
+        }
+      }
+      match+=MIN_MATCH;
+      final int ref = out-offset;
+      if (offset<=0 || ref<0)
+        throw new IllegalStateException("Corrupted data, offset: "+offset+" at: "+out);
+      if (offset>=match){
+        System.arraycopy(dst, ref, dst, out, match);
+      } else{//overlapping, i.e. a run
+        for (int i=0; i<match; i++){
+          dst[out+i] = dst[ref+i];
+        }
+      }
+      out+=match;
+    }
+    if (out!=dst.length)
+      throw new IllegalStateException("Corrupted data, length: "+out+", expected: "+dst.length);
+  }
+
+  /**
+   * @return the new position in dst, -1 if it doesn't fit
+   */
+  private static int sequence(byte[] src, int start, int literals, byte[] dst, int out, int offset, int match){
+    if (out + 1 + literals + literals/255+1 + (match>0? 2 + match/255+1 : 0) > dst.length)
+      return -1;
+    final int token = out++;
+    dst[token] = (byte) (Math.min(literals, 15)<<4);
+    out = length(dst, out, literals);
+    System.arraycopy(src, start, dst, out, literals);
+    out+=literals;
+    if (match==0)
+      return out;
+
+    dst[out++] = (byte) offset;
+    dst[out++] = (byte) (offset>>>8);
+    match-=MIN_MATCH;
+    dst[token] |= Math.min(match, 15);
+    return length(dst, out, match);
+  }
+
+  private static int length(byte[] dst, int out, int length){
+    if (length<15)
+      return out;
+    for (length-=15; length>=255; length-=255){
+      dst[out++] = (byte) 255;
+    }
+    dst[out++] = (byte) length;
+    return out;
+  }
+
+  private static int readInt(byte[] b, int i){
+    return (b[i] & 0xff) | (b[i+1] & 0xff)<<8 | (b[i+2] & 0xff)<<16 | b[i+3]<<24;
+  }
+}
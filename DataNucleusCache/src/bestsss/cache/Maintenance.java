@@ -0,0 +1,141 @@
+package bestsss.cache;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+/**
+ * Runs eviction/expiration off the application threads. The writers just {@link #signal()} pressure.
+ * Either a dedicated daemon thread or a pluggable Executor can be used:
+ * <ul>
+ * <li>daemon thread - runs the task once a second (the resolution of L2Cache.time()), back to back while there is overshoot; signal unparks it</li>
+ * <li>executor - the task is submitted on signal (at most one pending), it keeps running while there is overshoot, up to MAX_ROUNDS at a time;
+ * if the executor rejects it, the signaling thread runs a single round</li>
+ * </ul>
+ * The amount of work per round is decided by the task, i.e. the rate adapts to the overshoot.
+ *
+ * @author Stanimir Simeonoff
+ */
+class Maintenance implements Runnable{
+  interface Task{
+    /**
+     * @return the remaining overshoot (elements above capacity), positive values cause another round immediately
+     */
+    int maintain();
+  }
+
+  private static final long PERIOD = TimeUnit.MILLISECONDS.toNanos(1024);
+  private static final int MAX_ROUNDS = 64;//executor mode: yield the executor thread after that many rounds
+
+  private static final int IDLE = 0;
+  private static final int SCHEDULED = 1;
+  private static final int RUNNING = 2;
+
+  private final Task task;
+  private final Executor executor;//null - own thread
+  private final AtomicInteger state = new AtomicInteger();
+  private volatile boolean pending;
+  private volatile boolean parked;
+  private volatile boolean closed;
+  private volatile Thread thread;
+
+  Maintenance(Task task, Executor executor){
+    this.task = task;
+    this.executor = executor;
+  }
+
+  void start(String name){
+    if (executor!=null)
+      return;
+
+    Thread thread = new Thread(this, name);
+    thread.setDaemon(true);
+    this.thread = thread;
+    thread.start();
+  }
+
+  void signal(){
+    if (executor==null){
+      if (parked){
+        LockSupport.unpark(thread);
+      }
+      return;
+    }
+    pending = true;
+    if (state.get()==IDLE && state.compareAndSet(IDLE, SCHEDULED)){
+      try{
+        executor.execute(this);
+      }catch(RejectedExecutionException _ex){//saturated or shut down, don't fail the caller's put: a single round inline, the next signal retries the executor
+        state.set(RUNNING);
+        pending = false;
+        if (!closed){
+          runTask();
+        }
+        state.set(IDLE);
+      }
+    }
+  }
+
+  void close(){
+    closed = true;
+    Thread thread = this.thread;
+    if (thread!=null){
+      LockSupport.unpark(thread);
+    }
+  }
+
+  @Override
+  public void run() {
+    if (executor==null){
+      loop();
+    } else{
+      runScheduled();
+    }
+  }
+
+  private void loop(){
+    while (!closed){
+      int overshoot = runTask();
+      if (overshoot>0){
+        Thread.yield();
+        continue;
+      }
+      parked = true;
+      try{
+        LockSupport.parkNanos(this, PERIOD);
+      }finally{
+        parked = false;
+      }
+    }
+  }
+
+  private void runScheduled(){
+    for(;;){
+      state.set(RUNNING);
+      pending = false;
+      for (int round=0; round<MAX_ROUNDS && !closed && runTask()>0; round++);
+
+      state.set(IDLE);
+      if (!pending || closed || !state.compareAndSet(IDLE, SCHEDULED)){//no signal meanwhile or someone else got it
+        return;
+      }
+    }
+  }
+
+  private int runTask(){
+    try{
+      return task.maintain();
+    }catch(RuntimeException _ex){//never kill the thread (or the executor)
+      Thread t = Thread.currentThread();
+      t.getUncaughtExceptionHandler().uncaughtException(t, _ex);
+      return 0;
+    }
+  }
+}
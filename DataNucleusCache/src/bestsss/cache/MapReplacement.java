@@ -28,6 +28,11 @@ class MapReplacement implements SCOWrapper{
     return toMap();
   }
   
+  @Override
+  public int estimateSize() {
+    return 24 + Weigher.shallow(serializedKV);//the empty ones are shared but that's ok
+  }
+
   private Map<?, ?> toMap(){
     Map<Object, Object> map = createMap();
     Object[] serializedKV = this.serializedKV;
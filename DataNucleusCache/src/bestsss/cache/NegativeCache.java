@@ -0,0 +1,70 @@
+package bestsss.cache;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+/**
+ * Bounded set of oids known to be absent in the datastore. Direct mapped: each oid has a single slot,
+ * a collision just replaces the previous mark (so it's lossy, never wrong about presence), marks expire after <code>ttl</code>.
+ *
+ * @author Stanimir Simeonoff
+ */
+class NegativeCache {
+  private static final class Mark{
+    final Object key;
+    final int time;
+    Mark(Object key, int time){
+      this.key = key;
+      this.time = time;
+    }
+  }
+
+  private final AtomicReferenceArray<Mark> marks;
+  private final int ttl;
+
+  NegativeCache(int size, int ttl){
+    this.marks = new AtomicReferenceArray<>(Integer.highestOneBit(Math.max(2, size)-1)<<1);
+    this.ttl = ttl;
+  }
+
+  void add(Object key, int time){
+    marks.set(index(key), new Mark(key, time));
+  }
+
+  boolean contains(Object key, int time){
+    final int index = index(key);
+    final Mark mark = marks.get(index);
+    if (mark==null || !mark.key.equals(key))
+      return false;
+    if (time - mark.time > ttl){
+      marks.compareAndSet(index, mark, null);
+      return false;
+    }
+    return true;
+  }
+
+  void remove(Object key){
+    final int index = index(key);
+    final Mark mark = marks.get(index);
+    if (mark!=null && mark.key.equals(key)){
+      marks.compareAndSet(index, mark, null);
+    }
+  }
+
+  void clear(){
+    for (int i=0; i<marks.length(); i++){
+      marks.lazySet(i, null);
+    }
+  }
+
+  private int index(Object key){
+    int h = key.hashCode();
+    h ^= (h>>>16);
+    h *= 0x85ebca6b;//spread, the oids tend to be sequential
+    return (h ^ (h>>>13)) & (marks.length()-1);
+  }
+}
@@ -0,0 +1,273 @@
+package bestsss.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+/**
+ * Second tier for records evicted from the heap. The bytes go into direct ByteBuffer slabs, appended log style;
+ * the index is an open addressing table (linear probing) of key -&gt; (generation, offset), the keys stay on the heap.
+ * <p>
+ * Eviction is FIFO by slab: when the current slab is full the next one (round robin) is recycled,
+ * the entries still pointing at it are dropped from the index. Removed entries leave a hole in their slab until it gets recycled.
+ * <p>
+ * All the updates run under a single lock - the copying dominates anyway. The lookups are preceded by a lock-free counting filter of the indexed keys
+ * (two counters per key, maintained under the lock), so the heap misses/puts of keys the tier doesn't hold don't take the lock at all.
+ *
+ * @author Stanimir Simeonoff
+ */
+class OffHeapTier {
+  private static final Object TOMBSTONE = new Object();
+  private static final int MIN_SLAB = 1<<16;
+  private static final int MAX_SLAB = 1<<26;
+  static final long MIN_BUDGET = 2L*MIN_SLAB;//the FIFO needs a slab to recycle
+
+  private final ByteBuffer[] slabs;
+  private final int slabSize;
+  private int generation;//the current slab is generation % slabs.length
+  private int position;
+
+  //the index
+  private Object[] keys = new Object[64];
+  private long[] locations = new long[64];//generation<<32 | offset
+  private int[] tags = new int[64];
+  private int used;//incl. tombstones
+  private volatile int size;
+  private volatile AtomicIntegerArray filter = new AtomicIntegerArray(128);//twice the index length, a zero counter - not present
+
+  /**
+   * @param budget - max off-heap bytes, at least 2 slabs of the min size (128KB); the capacity never exceeds it
+   */
+  OffHeapTier(long budget){
+    if (budget<MIN_BUDGET)
+      throw new IllegalArgumentException("budget: "+budget+", min: "+MIN_BUDGET);
+
+    this.slabSize = (int) Math.max(MIN_SLAB, Math.min(MAX_SLAB, budget/32));
+    this.slabs = new ByteBuffer[(int) Math.min(Integer.MAX_VALUE, budget/slabSize)];//2 at least
+  }
+
+  int size(){
+    return size;
+  }
+
+  boolean isEmpty(){
+    return size==0;
+  }
+
+  long capacity(){
+    return (long) slabSize * slabs.length;
+  }
+
+  /**
+   * @param tag arbitrary int to remove the entries by (RecordCodec class id)
+   * @return the number of entries evicted to make room, -1 if the data can never fit
+   */
+  synchronized int put(Object key, int tag, byte[] data){
+    final int length = data.length + 4;
+    if (length>slabSize){
+      delete(key);
+      return -1;
+    }
+    int evicted = 0;
+    if (position+length>slabSize || slabs[generation % slabs.length]==null){
+      evicted = nextSlab();
+    }
+    final ByteBuffer slab = slabs[generation % slabs.length];
+    final int offset = position;
+    slab.putInt(offset, data.length);
+    slab.position(offset+4);//under the lock, no need of duplicate()
+    slab.put(data);
+    position += length;
+
+    final long location = ((long) generation<<32) | offset;
+    int i = find(key);
+    if (i>=0){
+      locations[i] = location;
+      tags[i] = tag;
+      return evicted;
+    }
+    if ((used+1)*2 > keys.length){
+      rebuild(keys.length*2);
+    }
+    final int hash = hash(key);
+    i = hash & (keys.length-1);
+    while (keys[i]!=null && keys[i]!=TOMBSTONE){
+      i = (i+1) & (keys.length-1);
+    }
+    if (keys[i]==null){
+      used++;
+    }
+    keys[i] = key;
+    locations[i] = location;
+    tags[i] = tag;
+    count(filter, hash, 1);
+    size++;
+    return evicted;
+  }
+
+  /**
+   * Lock-free, false positives only: a concurrent put might be missed but that's ordering the get before it
+   */
+  boolean mayContain(Object key){
+    final AtomicIntegerArray filter = this.filter;
+    final int hash = hash(key);
+    final int mask = filter.length()-1;
+    return filter.get(hash & mask)!=0 && filter.get(rehash(hash) & mask)!=0;
+  }
+
+  private static void count(AtomicIntegerArray filter, int hash, int delta){
+    final int mask = filter.length()-1;
+    filter.addAndGet(hash & mask, delta);
+    filter.addAndGet(rehash(hash) & mask, delta);
+  }
+
+  private static int rehash(int hash){
+    final int h = hash * 0x85EBCA6B;
+    return h ^ (h>>>15);
+  }
+
+  /**
+   * Removes and returns the data, i.e. the entry is promoted to the heap
+   * @return the data or null if the key is not present
+   */
+  byte[] remove(Object key){
+    return mayContain(key)? removeLocked(key) : null;
+  }
+
+  private synchronized byte[] removeLocked(Object key){
+    final int i = find(key);
+    if (i<0)
+      return null;
+
+    final long location = locations[i];
+    final ByteBuffer slab = slabs[(int) (location>>>32) % slabs.length];
+    final int offset = (int) location;
+    final byte[] data = new byte[slab.getInt(offset)];
+    slab.position(offset+4);
+    slab.get(data);
+    clear(i);
+    return data;
+  }
+
+  boolean delete(Object key){
+    return mayContain(key) && deleteLocked(key);
+  }
+
+  private synchronized boolean deleteLocked(Object key){
+    final int i = find(key);
+    if (i<0)
+      return false;
+    clear(i);
+    return true;
+  }
+
+  /**
+   * @return removed entries
+   */
+  synchronized int removeTags(int[] removeTags){
+    int removed = 0;
+    for (int i=0; i<keys.length; i++){
+      final Object key = keys[i];
+      if (key!=null && key!=TOMBSTONE && contains(removeTags, tags[i])){
+        clear(i);
+        removed++;
+      }
+    }
+    return removed;
+  }
+
+  synchronized void clear(){
+    Arrays.fill(keys, null);
+    filter = new AtomicIntegerArray(keys.length*2);
+    used = 0;
+    size = 0;
+    position = slabSize;//start a fresh slab
+  }
+
+  private int nextSlab(){
+    int evicted = 0;
+    if (slabs[generation % slabs.length]!=null){
+      generation++;
+    }
+    final int slot = generation % slabs.length;
+    if (slabs[slot]==null){
+      slabs[slot] = ByteBuffer.allocateDirect(slabSize);
+    } else{//recycle, drop the entries of the dead generation
+      final int dead = generation - slabs.length;
+      for (int i=0; i<keys.length; i++){
+        final Object key = keys[i];
+        if (key!=null && key!=TOMBSTONE && (int) (locations[i]>>>32)==dead){
+          clear(i);
+          evicted++;
+        }
+      }
+    }
+    position = 0;
+    if (used-size > keys.length>>2){//too many tombstones
+      rebuild(keys.length);
+    }
+    return evicted;
+  }
+
+  private void clear(int i){
+    count(filter, hash(keys[i]), -1);
+    keys[i] = TOMBSTONE;
+    size--;
+  }
+
+  private int find(Object key){
+    final int mask = keys.length-1;
+    for (int i = hash(key) & mask;; i = (i+1) & mask){
+      final Object k = keys[i];
+      if (k==null)
+        return -1;
+      if (k!=TOMBSTONE && k.equals(key))
+        return i;
+    }
+  }
+
+  private void rebuild(int length){
+    final Object[] keys = this.keys;
+    final long[] locations = this.locations;
+    final int[] tags = this.tags;
+    this.keys = new Object[length];
+    this.locations = new long[length];
+    this.tags = new int[length];
+    final AtomicIntegerArray filter = new AtomicIntegerArray(length*2);//not published yet, the readers keep using the former one
+    final int mask = length-1;
+    for (int j=0; j<keys.length; j++){
+      final Object key = keys[j];
+      if (key==null || key==TOMBSTONE)
+        continue;
+      final int hash = hash(key);
+      int i = hash & mask;
+      while (this.keys[i]!=null){
+        i = (i+1) & mask;
+      }
+      this.keys[i] = key;
+      this.locations[i] = locations[j];
+      this.tags[i] = tags[j];
+      count(filter, hash, 1);
+    }
+    this.filter = filter;
+    used = size;
+  }
+
+  private static boolean contains(int[] a, int v){
+    for (int x : a){
+      if (x==v)
+        return true;
+    }
+    return false;
+  }
+
+  private static int hash(Object key){
+    final int h = key.hashCode() * 0x9E3779B9;//spread, linear probing doesn't like clustered hashes
+    return h ^ (h>>>16);
+  }
+}
@@ -0,0 +1,109 @@
+package bestsss.cache;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+/**
+ * Lossy, striped ring buffers of the read records. The readers never write to the (shared) records,
+ * the hits/access time are applied in batches by the thread that drains - maintenance or a reader finding a full stripe.
+ * Each slot keeps the time of its read, a late drain doesn't make an idle record look recently accessed.
+ * A full stripe (or a lost CAS) drops the event, the hit counts are used for eviction only, so it's ok to miss some.
+ * The stripe is picked by the thread id, i.e. distinct threads (mostly) write to distinct cache lines.
+ *
+ * @author Stanimir Simeonoff
+ */
+class ReadBuffer {
+  private static final int SIZE = 32;
+  private static final int MASK = SIZE-1;
+
+  private final Stripe[] stripes;
+  private final int shift;
+  private final AtomicBoolean draining = new AtomicBoolean();
+  private volatile int drainedAt;
+
+  ReadBuffer(int threads){
+    int n = 2;
+    while (n < threads*2 && n < (1<<10)){
+      n<<=1;
+    }
+    stripes = new Stripe[n];
+    for (int i=0; i<n; i++){
+      stripes[i] = new Stripe();
+    }
+    shift = 32-Integer.numberOfTrailingZeros(n);
+  }
+
+  /**
+   * @return true if a drain is due: the stripe is half full or there has been no drain within the current time()
+   */
+  boolean record(Object[] record, int time){
+    final Stripe s = stripes[index()];
+    final long tail = s.writes;
+    final long size = tail - s.reads;
+    if (size < SIZE && s.casWrites(tail, tail+1)){
+      final int i = (int) tail & MASK;
+      s.times[i] = time;//published by the lazySet
+      s.buffer.lazySet(i, record);
+    }
+    return size >= SIZE/2 || time!=drainedAt;
+  }
+
+  boolean isDue(int time){
+    return time!=drainedAt;
+  }
+
+  /**
+   * Applies the buffered reads, no-op if another thread is draining
+   * @return the number of applied reads
+   */
+  int drain(int time){
+    if (draining.get() || !draining.compareAndSet(false, true))
+      return 0;
+    int drained = 0;
+    try{
+      for (Stripe s : stripes){
+        long head = s.reads;
+        for (final long tail = s.writes; head<tail; head++){
+          final int i = (int) head & MASK;
+          final Object[] record = s.buffer.get(i);
+          if (record==null)//claimed but not published yet, the next drain will pick it
+            break;
+          s.buffer.lazySet(i, null);
+          ArrayUtil.setTimeAndHitCount(record, Math.max(s.times[i], ArrayUtil.getAccessTime(record)));//the stripes are not ordered among each other
+          drained++;
+        }
+        s.reads = head;
+      }
+      drainedAt = time;
+    }finally{
+      draining.set(false);
+    }
+    return drained;
+  }
+
+  private int index(){
+    return ((int) Thread.currentThread().getId() * 0x9E3779B9) >>> shift;
+  }
+
+  @SuppressWarnings("unused")
+  private static final class Stripe{
+    private static final AtomicLongFieldUpdater<Stripe> WRITES = AtomicLongFieldUpdater.newUpdater(Stripe.class, "writes");
+
+    long p0, p1, p2, p3, p4, p5, p6;//padding, like Striped64.Cell
+    volatile long writes;
+    volatile long reads;//written by the drainer only
+    final AtomicReferenceArray<Object[]> buffer = new AtomicReferenceArray<>(SIZE);
+    final int[] times = new int[SIZE];//time of the read, guarded by the buffer slot
+    long q0, q1, q2, q3, q4, q5, q6;
+
+    boolean casWrites(long expect, long update){
+      return WRITES.compareAndSet(this, expect, update);
+    }
+  }
+}
@@ -0,0 +1,385 @@
+package bestsss.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+/**
+ * Binary form of the cached records (Object[] + header) for the off-heap tier.
+ * The common field types are written with a type tag, SCO replacements are unwrapped and written as Map/Collection (wrapped again on decode),
+ * anything else falls back to java serialization. The classes are not written by name but as an id in a class table, local to the codec
+ * (i.e. the binary form is valid only within the same codec instance).
+ * Records that can't be written (non-serializable field) are reported with null.
+ *
+ * @author Stanimir Simeonoff
+ */
+class RecordCodec {
+  private static final int NULL = 0;
+  private static final int NOT_PRESENT = 1;
+  private static final int FALSE = 2;
+  private static final int TRUE = 3;
+  private static final int BYTE = 4;
+  private static final int SHORT = 5;
+  private static final int CHAR = 6;
+  private static final int INT = 7;
+  private static final int LONG = 8;
+  private static final int FLOAT = 9;
+  private static final int DOUBLE = 10;
+  private static final int STRING = 11;
+  private static final int DATE = 12;
+  private static final int BIG_DECIMAL = 13;
+  private static final int BIG_INTEGER = 14;
+  private static final int BYTES = 15;
+  private static final int ENUM = 16;
+  private static final int MAP = 17;
+  private static final int COLLECTION = 18;
+  private static final int SERIAL = 19;
+
+  private final IdentityHashMap<Class<?>, Integer> classIds = new IdentityHashMap<>();//guarded by itself
+  private volatile Class<?>[] classes = {};
+
+  RecordCodec(){
+  }
+
+  /**
+   * Decoder of data written by another codec, see {@link #classes()}
+   * @param classes the class table of the writing codec, null elements stand for classes unavailable (or changed) since
+   */
+  RecordCodec(Class<?>[] classes){
+    this.classes = classes.clone();
+    for (int i=0; i<classes.length; i++){
+      if (classes[i]!=null)
+        classIds.put(classes[i], i);
+    }
+  }
+
+  /**
+   * @return the class table, the index is the class id
+   */
+  Class<?>[] classes(){
+    return classes.clone();
+  }
+
+  /**
+   * @return the encoded record or null if the record has a value that can't be written
+   */
+  byte[] encode(Object[] record){
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(64, ArrayUtil.getWeight(record)>>1));
+    final DataOutputStream out = new DataOutputStream(bytes);
+    try{
+      final int fields = ArrayUtil.maxLength(record);
+      out.writeInt(classId(ArrayUtil.getClass(record)));
+      out.writeInt(record.length);
+      out.writeInt(ArrayUtil.getHits(record));
+      out.writeInt(ArrayUtil.getCreationTime(record));
+      out.writeInt(ArrayUtil.getAccessTime(record));
+      write(out, ArrayUtil.getVersion(record));
+      for (int i=0; i<fields; i++){
+        write(out, record[i]);
+      }
+      out.flush();
+      return bytes.toByteArray();
+    }catch(IOException _ex){//NotSerializableException, mostly
+      return null;
+    }
+  }
+
+  Object[] decode(byte[] data) throws IOException{
+    return decode(data, 0);
+  }
+
+  /**
+   * @param timeShift added to the creation/access time, i.e. the difference between the time() bases of the writer and the reader
+   */
+  Object[] decode(byte[] data, int timeShift) throws IOException{
+    final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+    final Class<?> clazz = classAt(in.readInt());
+    final int length = in.readInt();
+    final int hits = in.readInt();
+    final int created = in.readInt() + timeShift;
+    final int accessed = in.readInt() + timeShift;
+    final Object version = read(in, clazz);
+    final Object[] record = ArrayUtil.restore(length, clazz, version, hits, created, accessed);
+    for (int i=0, fields=ArrayUtil.maxLength(record); i<fields; i++){
+      record[i] = read(in, clazz);
+    }
+    return record;
+  }
+
+  /**
+   * @return a single value (e.g. the oid) or null if it can't be written
+   */
+  byte[] encodeValue(Object value){
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+    final DataOutputStream out = new DataOutputStream(bytes);
+    try{
+      write(out, value);
+      out.flush();
+      return bytes.toByteArray();
+    }catch(IOException _ex){
+      return null;
+    }
+  }
+
+  /**
+   * @param owner its class loader resolves the java serialized classes
+   */
+  Object decodeValue(byte[] data, Class<?> owner) throws IOException{
+    return read(new DataInputStream(new ByteArrayInputStream(data)), owner);
+  }
+
+  private Class<?> classAt(int id) throws IOException{
+    final Class<?>[] classes = this.classes;
+    if (id<0 || id>=classes.length || classes[id]==null)
+      throw new IOException("Unknown class id: "+id);
+    return classes[id];
+  }
+
+  /**
+   * @return the class id the record would be written with, -1 if the class has never been written
+   */
+  int peekClassId(Class<?> clazz){
+    synchronized (classIds) {
+      Integer id = classIds.get(clazz);
+      return id!=null? id : -1;
+    }
+  }
+
+  static int classId(byte[] data){
+    return ((data[0]&0xff)<<24) | ((data[1]&0xff)<<16) | ((data[2]&0xff)<<8) | (data[3]&0xff);
+  }
+
+  private int classId(Class<?> clazz){
+    synchronized (classIds) {
+      Integer id = classIds.get(clazz);
+      if (id==null){
+        final Class<?>[] classes = java.util.Arrays.copyOf(this.classes, this.classes.length+1);
+        id = classes.length-1;
+        classes[id] = clazz;
+        this.classes = classes;//publish before the id is used
+        classIds.put(clazz, id);
+      }
+      return id;
+    }
+  }
+
+  private void write(DataOutputStream out, Object value) throws IOException{
+    if (value==null){
+      out.writeByte(NULL);
+    } else if (value==CachedX.NOT_PRESENT){
+      out.writeByte(NOT_PRESENT);
+    } else if (value instanceof SCOWrapper){
+      write(out, ((SCOWrapper) value).unwrap());
+    } else{
+      final Class<?> c = value.getClass();
+      if (c==String.class){
+        final byte[] utf = ((String) value).getBytes(StandardCharsets.UTF_8);
+        out.writeByte(STRING);
+        out.writeInt(utf.length);
+        out.write(utf);
+      } else if (c==Integer.class){
+        out.writeByte(INT);
+        out.writeInt((Integer) value);
+      } else if (c==Long.class){
+        out.writeByte(LONG);
+        out.writeLong((Long) value);
+      } else if (c==Boolean.class){
+        out.writeByte((Boolean) value? TRUE : FALSE);
+      } else if (c==Double.class){
+        out.writeByte(DOUBLE);
+        out.writeDouble((Double) value);
+      } else if (c==Float.class){
+        out.writeByte(FLOAT);
+        out.writeFloat((Float) value);
+      } else if (c==Short.class){
+        out.writeByte(SHORT);
+        out.writeShort((Short) value);
+      } else if (c==Byte.class){
+        out.writeByte(BYTE);
+        out.writeByte((Byte) value);
+      } else if (c==Character.class){
+        out.writeByte(CHAR);
+        out.writeChar((Character) value);
+      } else if (c==Date.class){
+        out.writeByte(DATE);
+        out.writeLong(((Date) value).getTime());
+      } else if (c==BigDecimal.class){
+        final BigDecimal d = (BigDecimal) value;
+        out.writeByte(BIG_DECIMAL);
+        out.writeInt(d.scale());
+        writeBytes(out, d.unscaledValue().toByteArray());
+      } else if (c==BigInteger.class){
+        out.writeByte(BIG_INTEGER);
+        writeBytes(out, ((BigInteger) value).toByteArray());
+      } else if (c==byte[].class){
+        out.writeByte(BYTES);
+        writeBytes(out, (byte[]) value);
+      } else if (value instanceof Enum){
+        out.writeByte(ENUM);
+        out.writeInt(classId(((Enum<?>) value).getDeclaringClass()));
+        out.writeInt(((Enum<?>) value).ordinal());
+      } else if ((value instanceof Map || value instanceof Collection) && !isSorted(value) && hasDefaultConstructor(c)){
+        final boolean map = value instanceof Map;
+        out.writeByte(map? MAP : COLLECTION);
+        out.writeInt(classId(c));
+        if (map){
+          final Map<?, ?> m = (Map<?, ?>) value;
+          out.writeInt(m.size());
+          for (Map.Entry<?, ?> e : m.entrySet()){
+            write(out, e.getKey());
+            write(out, e.getValue());
+          }
+        } else{
+          final Collection<?> coll = (Collection<?>) value;
+          out.writeInt(coll.size());
+          for (Object o : coll){
+            write(out, o);
+          }
+        }
+      } else if (value instanceof Serializable){
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)){
+          oos.writeObject(value);
+        }
+        out.writeByte(SERIAL);
+        writeBytes(out, bytes.toByteArray());
+      } else{
+        throw new java.io.NotSerializableException(c.getName());
+      }
+    }
+  }
+
+  private static void writeBytes(DataOutputStream out, byte[] b) throws IOException{
+    out.writeInt(b.length);
+    out.write(b);
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException{
+    final byte[] b = new byte[in.readInt()];
+    in.readFully(b);
+    return b;
+  }
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private Object read(DataInputStream in, Class<?> owner) throws IOException{
+    final int tag = in.readByte();
+    switch(tag){
+      case NULL: return null;
+      case NOT_PRESENT: return CachedX.NOT_PRESENT;
+      case FALSE: return Boolean.FALSE;
+      case TRUE: return Boolean.TRUE;
+      case BYTE: return in.readByte();
+      case SHORT: return in.readShort();
+      case CHAR: return in.readChar();
+      case INT: return IntegerProvider.get(in.readInt());
+      case LONG: return in.readLong();
+      case FLOAT: return in.readFloat();
+      case DOUBLE: return in.readDouble();
+      case STRING: return new String(readBytes(in), StandardCharsets.UTF_8);
+      case DATE: return new Date(in.readLong());
+      case BIG_DECIMAL:{
+        final int scale = in.readInt();
+        return new BigDecimal(new BigInteger(readBytes(in)), scale);
+      }
+      case BIG_INTEGER: return new BigInteger(readBytes(in));
+      case BYTES: return readBytes(in);
+      case ENUM: {
+        final Class<?> c = classAt(in.readInt());
+        return c.getEnumConstants()[in.readInt()];
+      }
+      case MAP:{
+        final Map map = (Map) newInstance(classAt(in.readInt()));
+        for (int i=0, size=in.readInt(); i<size; i++){
+          final Object key = read(in, owner);
+          map.put(key, read(in, owner));
+        }
+        return MapReplacement.wrap(map);
+      }
+      case COLLECTION:{
+        final Collection c = (Collection) newInstance(classAt(in.readInt()));
+        for (int i=0, size=in.readInt(); i<size; i++){
+          c.add(read(in, owner));
+        }
+        return CollectionReplacement.wrap(c);
+      }
+      case SERIAL:{
+        try (ObjectInputStream ois = new LoaderObjectInputStream(new ByteArrayInputStream(readBytes(in)), owner.getClassLoader())){
+          return ois.readObject();
+        }catch(ClassNotFoundException _ex){
+          throw new IOException(_ex);
+        }
+      }
+      default:
+        throw new IOException("Unknown tag: "+tag);
+    }
+  }
+
+  private static final ClassValue<Boolean> DEFAULT_CONSTRUCTOR = new ClassValue<Boolean>(){//kept by the class itself, no reference to its loader (redeploy)
+    @Override
+    protected Boolean computeValue(Class<?> c) {
+      try{
+        c.getConstructor();
+        return Boolean.TRUE;
+      }catch(NoSuchMethodException | SecurityException _ex){//e.g. Collections.unmodifiableXXX, Arrays.asList; java serialization then
+        return Boolean.FALSE;
+      }
+    }
+  };
+
+  private static boolean hasDefaultConstructor(Class<?> c){
+    return DEFAULT_CONSTRUCTOR.get(c);
+  }
+
+  private static boolean isSorted(Object value){//the comparator would be lost
+    return value instanceof SortedMap || value instanceof SortedSet;
+  }
+
+  private static Object newInstance(Class<?> c) throws IOException{
+    try{
+      return c.getConstructor().newInstance();
+    }catch(ReflectiveOperationException _ex){
+      throw new IOException(_ex);
+    }
+  }
+
+  private static class LoaderObjectInputStream extends ObjectInputStream{
+    private final ClassLoader loader;
+    LoaderObjectInputStream(InputStream in, ClassLoader loader) throws IOException{
+      super(in);
+      this.loader = loader;
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+      if (loader!=null){
+        try{
+          return Class.forName(desc.getName(), false, loader);
+        }catch(ClassNotFoundException _ex){//fall through, primitives and the like
+        }
+      }
+      return super.resolveClass(desc);
+    }
+  }
+}
@@ -0,0 +1,80 @@
+package bestsss.cache;
+
+import jsr166e.ConcurrentHashMapV8;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+/**
+ * Refresh-ahead bookkeeping: a hot record (hits over a threshold) read within <code>window</code> of its expiration 
+ * triggers {@link L2Cache.Refresher#refresh(L2Cache, Object, Class)} at most once per key. Until the refreshed state is put
+ * (or <code>window</code> passes) the key is pending and its current record is still served, i.e. the expiration is deferred.
+ *
+ * @author Stanimir Simeonoff
+ */
+class RefreshAhead {
+  private final L2Cache.Refresher refresher;
+  private final int hits;
+  private final int window;
+  private final ConcurrentHashMapV8<Object, Integer> pending = new ConcurrentHashMapV8<>();//key -> time of the request
+
+  RefreshAhead(L2Cache.Refresher refresher, int hits, int window){
+    this.refresher = refresher;
+    this.hits = hits;
+    this.window = window;
+  }
+
+  boolean isDue(Object[] record, int deadline, int time){
+    return deadline - time <= window && ArrayUtil.getHits(record) >= hits;
+  }
+
+  /**
+   * @return true if the refresh has been requested by this call
+   */
+  boolean request(L2Cache cache, Object key, Class<?> clazz, int time){
+    final Integer requested = pending.get(key);
+    if (requested!=null && time - requested <= window)//once per key
+      return false;
+
+    final Integer now = IntegerProvider.get(time);
+    if (requested==null? pending.putIfAbsent(key, now)!=null : !pending.replace(key, requested, now))
+      return false;
+    try{
+      refresher.refresh(cache, key, clazz);
+      return true;
+    }catch(RuntimeException _ex){//never fail the reader
+      pending.remove(key, now);
+      Thread t = Thread.currentThread();
+      t.getUncaughtExceptionHandler().uncaughtException(t, _ex);
+      return false;
+    }
+  }
+
+  /**
+   * @return true if a refresh is in progress, so the expiration should be deferred
+   */
+  boolean isPending(Object key, int time){
+    if (pending.isEmpty())
+      return false;
+    final Integer requested = pending.get(key);
+    if (requested==null)
+      return false;
+    if (time - requested > window){//the refresh never came, don't serve forever
+      pending.remove(key, requested);
+      return false;
+    }
+    return true;
+  }
+
+  void done(Object key){
+    if (!pending.isEmpty()){
+      pending.remove(key);
+    }
+  }
+
+  void clear(){
+    pending.clear();
+  }
+}
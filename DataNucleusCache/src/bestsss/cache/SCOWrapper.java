@@ -9,4 +9,5 @@ package bestsss.cache;
 */
 interface SCOWrapper {
   Object unwrap();
+  int estimateSize();//retained heap in bytes, see Weigher
 }
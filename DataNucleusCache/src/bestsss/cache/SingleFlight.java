@@ -0,0 +1,118 @@
+package bestsss.cache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+/**
+ * Coalesces concurrent loads of the same key: the first caller becomes the leader, the rest wait for it and then consult the cache.
+ * The flights are held in a small striped array (no map entry per key); a collision with a different key in the same stripe 
+ * just proceeds w/o coalescing. So does a thread that leads a flight already (a nested load of another key could wait in a cycle)
+ * and a waiter whose leader takes longer than maxWait (or gets interrupted), i.e. a hung load never hangs the waiters. Usage:
+ * <pre>
+ * Flight flight = flights.acquire(key);
+ * if (flight==SingleFlight.AWAITED) -> the key has been loaded by another thread, check the cache
+ * try{ load } finally{ flights.release(flight); }//null is ok
+ * </pre>
+ *
+ * @author Stanimir Simeonoff
+ */
+class SingleFlight {
+  static final class Flight{
+    final Object key;
+    final Thread owner;
+    final int index;
+    private boolean done;
+
+    Flight(Object key, int index){
+      this.key = key;
+      this.index = index;
+      this.owner = Thread.currentThread();
+    }
+
+    /**
+     * @return true if the leader has completed, false on timeout or interrupt
+     */
+    synchronized boolean await(long nanos){
+      final long deadline = System.nanoTime() + nanos;
+      while (!done){
+        final long remaining = deadline - System.nanoTime();
+        if (remaining<=0)
+          return false;
+        try{
+          TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }catch(InterruptedException _ex){//give up, the caller loads on its own
+          Thread.currentThread().interrupt();
+          return false;
+        }
+      }
+      return true;
+    }
+
+    synchronized void complete(){
+      done = true;
+      notifyAll();
+    }
+  }
+
+  static final Flight AWAITED = new Flight(null, -1);
+  static final long MAX_WAIT = TimeUnit.SECONDS.toNanos(2);
+
+  private final AtomicReferenceArray<Flight> flights;
+  private final long maxWait;
+
+  SingleFlight(int stripes){
+    this(stripes, MAX_WAIT);
+  }
+
+  SingleFlight(int stripes, long maxWaitNanos){
+    this.flights = new AtomicReferenceArray<>(Integer.highestOneBit(Math.max(2, stripes)-1)<<1);
+    this.maxWait = maxWaitNanos;
+  }
+
+  /**
+   * @return the flight if the caller is the leader, {@link #AWAITED} if another thread has loaded the key (and it has waited for it),
+   * null - no coalescing possible (stripe collision, the caller leads a flight, the wait has timed out or been interrupted)
+   */
+  Flight acquire(Object key){
+    final int index = index(key);
+    for(;;){
+      final Flight flight = flights.get(index);
+      if (flight==null){
+        final Flight leader = new Flight(key, index);
+        if (flights.compareAndSet(index, null, leader))
+          return leader;
+        continue;
+      }
+      if (flight.owner==Thread.currentThread() || !flight.key.equals(key) || isLeader(Thread.currentThread()))
+        return null;
+
+      return flight.await(maxWait)? AWAITED : null;
+    }
+  }
+
+  private boolean isLeader(Thread thread){//only before waiting, the stripes are few
+    for (int i=0; i<flights.length(); i++){
+      final Flight flight = flights.get(i);
+      if (flight!=null && flight.owner==thread)
+        return true;
+    }
+    return false;
+  }
+
+  void release(Flight flight){
+    if (flight==null || flight==AWAITED)
+      return;
+    flights.compareAndSet(flight.index, flight, null);//clear first, the late comers go straight to the cache
+    flight.complete();
+  }
+
+  private int index(Object key){
+    final int h = key.hashCode();
+    return (h ^ (h>>>16)) & (flights.length()-1);
+  }
+}
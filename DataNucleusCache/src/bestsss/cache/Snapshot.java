@@ -0,0 +1,250 @@
+package bestsss.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+/**
+ * Warm restart file: the live records (oid + RecordCodec form, incl. the hits/time header) written on close, loaded on start.
+ * <pre>
+ * header:  long MAGIC, int VERSION, long created (time() base of the writer, millis), long trailer offset
+ * entries: int keyLength, key, int recordLength, record - grouped in chunks of ~CHUNK bytes
+ * trailer: int classes, (UTF name, long fingerprint)*, int chunks, long chunkOffset*
+ * </pre>
+ * The file is written through a FileChannel (to a temp file, moved in place once complete) and read via MappedByteBuffer, a chunk per mapping,
+ * the chunks are decoded in parallel. A class whose fingerprint has changed (or is gone) drops all the entries that refer to it.
+ *
+ * @author Stanimir Simeonoff
+ */
+class Snapshot {
+  private static final long MAGIC = 0x4c3243616368652eL;//L2Cache.
+  private static final int VERSION = 1;
+  private static final int HEADER = 8+4+8+8;
+  private static final int CHUNK = 1<<20;
+
+  interface Host{
+    /**
+     * @return a hash of the class layout (fields), stored along with the class name
+     */
+    long fingerprint(Class<?> clazz);
+    /**
+     * @return the class or null if not available
+     */
+    Class<?> resolve(String name);
+    /**
+     * @return false to skip the record, e.g. expired
+     */
+    boolean isLive(Object key, Object[] record);
+    /**
+     * Called concurrently, the time of the record is already in the reader's time() base
+     */
+    void restore(Object key, Object[] record);
+  }
+
+  /**
+   * @return the number of written entries
+   */
+  static int write(Path path, long created, Iterator<Map.Entry<Object, Object[]>> entries, Host host) throws IOException{
+    final RecordCodec codec = new RecordCodec();//fresh class table, only the classes in use
+    final Path temp = path.resolveSibling(path.getFileName()+".tmp");
+    int written = 0;
+    try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+      final CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1<<16));
+      final DataOutputStream out = new DataOutputStream(counter);
+      out.writeLong(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(created);
+      out.writeLong(0);//trailer, patched once known
+
+      final LongList chunks = new LongList();
+      long chunkStart = -CHUNK;
+      while (entries.hasNext()){
+        final Map.Entry<Object, Object[]> e = entries.next();
+        final Object[] record = e.getValue();
+        if (record==null || !host.isLive(e.getKey(), record))
+          continue;
+        final byte[] key = codec.encodeValue(e.getKey());
+        final byte[] data = key!=null? codec.encode(record) : null;
+        if (data==null)
+          continue;
+        if (counter.count - chunkStart >= CHUNK){
+          chunks.add(chunkStart = counter.count);
+        }
+        out.writeInt(key.length);
+        out.write(key);
+        out.writeInt(data.length);
+        out.write(data);
+        written++;
+      }
+      final long trailer = counter.count;
+      final Class<?>[] classes = codec.classes();
+      out.writeInt(classes.length);
+      for (Class<?> c : classes){
+        out.writeUTF(c.getName());
+        out.writeLong(host.fingerprint(c));
+      }
+      out.writeInt(chunks.size);
+      for (int i=0; i<chunks.size; i++){
+        out.writeLong(chunks.values[i]);
+      }
+      out.flush();
+
+      final ByteBuffer patch = ByteBuffer.allocate(8);
+      patch.putLong(0, trailer);
+      channel.write(patch, HEADER-8);
+      channel.force(false);
+    }
+    Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    return written;
+  }
+
+  /**
+   * @param created time() base of the reader, millis
+   * @return the number of restored entries, -1 if the file is not a snapshot
+   */
+  static int read(Path path, long created, final Host host, int parallelism) throws IOException{
+    try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)){
+      final long size = channel.size();
+      if (size < HEADER)
+        return -1;
+      final MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER);
+      if (header.getLong()!=MAGIC || header.getInt()!=VERSION)
+        return -1;
+      final int timeShift = (int) ((header.getLong() - created) >> 10);
+      final long trailerOffset = header.getLong();
+      if (trailerOffset < HEADER || trailerOffset > size)
+        return -1;
+
+      final MappedByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, trailerOffset, size - trailerOffset);
+      final Class<?>[] classes = new Class<?>[trailer.getInt()];
+      for (int i=0; i<classes.length; i++){
+        final Class<?> c = host.resolve(readUTF(trailer));
+        final long fingerprint = trailer.getLong();
+        classes[i] = c!=null && host.fingerprint(c)==fingerprint? c : null;//changed: the entries referring it fail to decode
+      }
+      final long[] chunks = new long[trailer.getInt()+1];
+      for (int i=0; i<chunks.length-1; i++){
+        chunks[i] = trailer.getLong();
+      }
+      chunks[chunks.length-1] = trailerOffset;
+
+      final RecordCodec codec = new RecordCodec(classes);
+      final AtomicInteger next = new AtomicInteger();
+      final AtomicInteger restored = new AtomicInteger();
+      final AtomicReference<Throwable> failure = new AtomicReference<>();
+      final Runnable loader = new Runnable() {
+        @Override
+        public void run() {
+          try{
+            for (int chunk; (chunk=next.getAndIncrement()) < chunks.length-1;){
+              final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, chunks[chunk], chunks[chunk+1] - chunks[chunk]);
+              restored.addAndGet(readChunk(buffer, codec, timeShift, host));
+            }
+          }catch(Throwable _ex){
+            failure.compareAndSet(null, _ex);
+          }
+        }
+      };
+      final Thread[] threads = new Thread[Math.max(0, Math.min(parallelism, chunks.length-1) - 1)];//the caller is one of the loaders
+      for (int i=0; i<threads.length; i++){
+        threads[i] = new Thread(loader, "bestsss.L2Cache-snapshot-"+i);
+        threads[i].setDaemon(true);
+        threads[i].start();
+      }
+      loader.run();
+      for (Thread t : threads){
+        try{
+          t.join();
+        }catch(InterruptedException _ex){
+          Thread.currentThread().interrupt();
+          throw new java.io.InterruptedIOException();
+        }
+      }
+      final Throwable ex = failure.get();
+      if (ex instanceof IOException)
+        throw (IOException) ex;
+      if (ex instanceof RuntimeException)
+        throw (RuntimeException) ex;
+      if (ex instanceof Error)
+        throw (Error) ex;
+      return restored.get();
+    }
+  }
+
+  private static int readChunk(ByteBuffer buffer, RecordCodec codec, int timeShift, Host host){
+    int restored = 0;
+    while (buffer.hasRemaining()){
+      final byte[] key = new byte[buffer.getInt()];
+      buffer.get(key);
+      final byte[] data = new byte[buffer.getInt()];
+      buffer.get(data);
+      try{
+        final Object[] record = codec.decode(data, timeShift);
+        final Object oid = codec.decodeValue(key, ArrayUtil.getClass(record));
+        if (host.isLive(oid, record)){
+          host.restore(oid, record);
+          restored++;
+        }
+      }catch(IOException _ex){//changed/missing class, skip the entry
+      }
+    }
+    return restored;
+  }
+
+  private static String readUTF(ByteBuffer buffer){//modified UTF-8 as written by DataOutput, class names are plain enough
+    final byte[] bytes = new byte[buffer.getShort() & 0xffff];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static class CountingOutputStream extends OutputStream{
+    private final OutputStream out;
+    long count;
+    CountingOutputStream(OutputStream out){
+      this.out = out;
+    }
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count+=len;
+    }
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+  }
+
+  private static class LongList{
+    long[] values = new long[16];
+    int size;
+    void add(long v){
+      if (size==values.length)
+        values = java.util.Arrays.copyOf(values, size*2);
+      values[size++] = v;
+    }
+  }
+}
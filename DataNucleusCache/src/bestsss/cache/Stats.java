@@ -1,7 +1,10 @@
 package bestsss.cache;
 
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 
+import jsr166e.ConcurrentHashMapV8;
 import jsr166e.LongAdder;
 
 /*
@@ -30,6 +33,25 @@ public final class Stats implements CacheStatistics {
   private final LongAdder evictionTime=new LongAdder();
   private final LongAdder expirationTime=new LongAdder();
 
+  private final LongAdder admitted=new LongAdder();
+  private final LongAdder rejected=new LongAdder();
+
+  private final LongAdder weight=new LongAdder();
+  private final LongAdder stalePuts=new LongAdder();
+  private final LongAdder collapsedMisses=new LongAdder();
+  private final LongAdder negativeHits=new LongAdder();
+  private final LongAdder refreshes=new LongAdder();
+  private final LongAdder redundantPuts=new LongAdder();
+  private final LongAdder outdatedPuts=new LongAdder();
+  private final LongAdder mergedPuts=new LongAdder();
+  private final LongAdder offHeapHits=new LongAdder();
+  private final LongAdder offHeapMisses=new LongAdder();
+  private final LongAdder offHeapStored=new LongAdder();
+  private final LongAdder offHeapEvicted=new LongAdder();
+
+  private final ConcurrentHashMapV8<String, LongAdder> classExpirations=new ConcurrentHashMapV8<>();
+  private final ConcurrentHashMapV8<String, LongAdder> classEvictions=new ConcurrentHashMapV8<>();
+
   public void hit(){
     hits.increment();
   }
@@ -69,6 +91,89 @@ public final class Stats implements CacheStatistics {
   public void recordObsolete() {
     obsolete.increment();
   }
+
+  /**
+   * @return per class counter of the expired elements, the caller is expected to keep it (so there is no lookup on each expiration)
+   */
+  public LongAdder classExpirations(Class<?> clazz) {
+    return counter(classExpirations, clazz.getName());
+  }
+
+  /**
+   * @return per class counter of the elements removed by evictAll(Class, boolean)
+   */
+  public LongAdder classEvictions(Class<?> clazz) {
+    return counter(classEvictions, clazz.getName());
+  }
+
+  private static LongAdder counter(ConcurrentHashMapV8<String, LongAdder> counters, String name){
+    LongAdder counter = counters.get(name);
+    if (counter==null){
+      LongAdder existing = counters.putIfAbsent(name, counter=new LongAdder());
+      if (existing!=null)
+        counter=existing;
+    }
+    return counter;
+  }
+
+  private static Map<String, Long> toMap(ConcurrentHashMapV8<String, LongAdder> counters){
+    TreeMap<String, Long> result = new TreeMap<>();
+    for (Map.Entry<String, LongAdder> e : counters.entrySet()){
+      long value = e.getValue().sum();
+      if (value!=0)
+        result.put(e.getKey(), value);
+    }
+    return result;
+  }
+
+  public void recordWeight(long delta) {
+    weight.add(delta);
+  }
+
+  public void resetWeight() {
+    weight.reset();
+  }
+
+  public void recordStalePut() {
+    stalePuts.increment();
+  }
+
+  public void recordCollapsedMiss() {
+    collapsedMisses.increment();
+  }
+
+  public void recordNegativeHit() {
+    negativeHits.increment();
+  }
+
+  public void recordRefresh() {
+    refreshes.increment();
+  }
+
+  public void recordRedundantPut() {
+    redundantPuts.increment();
+  }
+
+  public void recordOutdatedPut() {
+    outdatedPuts.increment();
+  }
+
+  public void recordMergedPut() {
+    mergedPuts.increment();
+  }
+
+  public void recordOffHeap(boolean hit) {
+    (hit?offHeapHits:offHeapMisses).increment();
+  }
+
+  public void recordOffHeapStore(int evicted) {
+    offHeapStored.increment();
+    offHeapEvicted.add(evicted);
+  }
+
+  public void recordAdmission(boolean admitted) {
+    (admitted?this.admitted:rejected).increment();
+  }
   
   @Override
   public double getEvictionTimeMillis(){
@@ -96,6 +201,14 @@ public final class Stats implements CacheStatistics {
   public long getExpirationCount(){
     return expirationCount.longValue();
   }
+  @Override
+  public Map<String, Long> getExpiredElementsPerClass(){
+    return toMap(classExpirations);
+  }
+  @Override
+  public Map<String, Long> getEvictedElementsPerClass(){
+    return toMap(classEvictions);
+  }
   
 
   @Override
@@ -119,12 +232,68 @@ public final class Stats implements CacheStatistics {
 
   @Override
   public long getPuts(){
-    return this.misses.longValue();		
+    return this.puts.longValue();		
   }
   public long getObsolete(){
     return this.obsolete.longValue();
   }
   @Override
+  public long getTotalWeight(){
+    return this.weight.sum();
+  }
+  @Override
+  public long getAdmitted(){
+    return this.admitted.longValue();
+  }
+  @Override
+  public long getStalePuts(){
+    return stalePuts.longValue();
+  }
+  @Override
+  public long getCollapsedMisses(){
+    return collapsedMisses.longValue();
+  }
+  @Override
+  public long getNegativeHits(){
+    return negativeHits.longValue();
+  }
+  @Override
+  public long getRefreshes(){
+    return refreshes.longValue();
+  }
+  @Override
+  public long getRedundantPuts(){
+    return redundantPuts.longValue();
+  }
+  @Override
+  public long getOutdatedPuts(){
+    return outdatedPuts.longValue();
+  }
+  @Override
+  public long getMergedPuts(){
+    return mergedPuts.longValue();
+  }
+  @Override
+  public long getOffHeapHits(){
+    return offHeapHits.longValue();
+  }
+  @Override
+  public long getOffHeapMisses(){
+    return offHeapMisses.longValue();
+  }
+  @Override
+  public long getOffHeapStored(){
+    return offHeapStored.longValue();
+  }
+  @Override
+  public long getOffHeapEvicted(){
+    return offHeapEvicted.longValue();
+  }
+  @Override
+  public long getRejected(){
+    return this.rejected.longValue();
+  }
+  @Override
   public long getRemovals(){
     return this.removals.longValue();		
   }
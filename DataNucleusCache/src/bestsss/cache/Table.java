@@ -2,6 +2,8 @@ package bestsss.cache;
 
 import java.util.Comparator;
 import java.util.List;
+
+import bestsss.cache.sort.Scorer;
 /*
  * Written by Stanimir Simeonoff and released as public domain as described at
  * http://creativecommons.org/publicdomain/zero/1.0/
@@ -19,4 +21,12 @@ public interface Table<K,V> {
   boolean isEmpty();
   
   List<K> getExpirable(int entries, final Comparator<V> comparator);
+  /**
+   * Allocation free variant: each sampled value is scored once, the lowest scores are the victims (lowest first).
+   * @param entries - number of items for expire, at most victims.length
+   * @param victims out, filled from index 0
+   * @return number of victims stored in the array
+   */
+  int getExpirable(int entries, Scorer<? super V> scorer, Object[] victims);
+
 }
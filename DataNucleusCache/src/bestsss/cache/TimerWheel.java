@@ -0,0 +1,232 @@
+package bestsss.cache;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+import jsr166e.LongAdder;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+/**
+ * Hierarchical timing wheel over the coarse L2Cache.time() (seconds), 4 levels of 64 slots each:
+ * 64s, ~68min, ~3days, ~194days + an overflow bucket.
+ * <p>
+ * The wheel doesn't keep the records, only the key, the creation time of the record (stamp) and the deadline.
+ * When a bucket is due, {@link Expiry} decides if the entry is expired, still alive (and needs rescheduling as it has been accessed meanwhile)
+ * or stale (replaced/removed). So there is no need to unlink anything on removal and advancing costs O(due entries), not O(size).
+ * The stale entries don't pile up until their slot is due (put rate x TTL): each advance compacts ({@link Expiry#isLive(Object, int)}) the buckets round robin,
+ * twice as many entries as scheduled since the last advance, i.e. amortized O(1) per schedule and the wheel stays within ~2x the live entries.
+ * <p>
+ * Scheduling is concurrent (synchronized per bucket), advancing is done by a single thread at a time (tryLock), the rest just skip.
+ * Benign race: an entry scheduled while the wheel moves past its slot would fire one rotation later; the expiration check on get still applies.
+ *
+ * @author Stanimir Simeonoff
+ */
+class TimerWheel {
+  static final int EXPIRED = -1;
+  static final int STALE = -2;
+
+  interface Expiry{
+    /**
+     * @return the new deadline if the entry is still alive, {@link TimerWheel#EXPIRED} if the entry has been expired, {@link TimerWheel#STALE} otherwise
+     */
+    int expire(Object key, int stamp, int time);
+
+    /**
+     * @return false if the entry is stale, i.e. the key has been removed or replaced by a record w/ another stamp
+     */
+    boolean isLive(Object key, int stamp);
+  }
+
+  private static final int SHIFT = 6;
+  private static final int SLOTS = 1<<SHIFT;
+  private static final int MASK = SLOTS-1;
+  private static final int LEVELS = 4;
+
+  private final Bucket[] buckets = new Bucket[LEVELS*SLOTS];
+  private final Bucket overflow = new Bucket();
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Expiry expiry;
+  private final LongAdder scheduled = new LongAdder();
+  private int compactCursor;//advancing thread only
+  private long compactCredit;
+  private volatile int current;//last processed tick
+
+  TimerWheel(int time, Expiry expiry){
+    for (int i=0; i<buckets.length; i++){
+      buckets[i] = new Bucket();
+    }
+    this.expiry = expiry;
+    this.current = time;
+  }
+
+  void schedule(Object key, int stamp, int deadline){
+    bucketFor(deadline, current+1).add(key, stamp, deadline);
+    scheduled.increment();
+  }
+
+  boolean isDue(int time){
+    return time > current;
+  }
+
+  /**
+   * @return number of expired entries, or -1 if another thread is advancing the wheel
+   */
+  int advance(int time){
+    if (time <= current || !lock.tryLock()){
+      return -1;
+    }
+    try{
+      int expired = 0;
+      for (int t=current+1; t - time <= 0; t++){
+        for (int level = topLevel(t); level>0; level--){
+          cascade(bucket(level, t), t);
+        }
+        if ((t & ((1<<(SHIFT*LEVELS))-1))==0){
+          cascade(overflow, t);
+        }
+        expired+=expire(bucket(0, t), t);
+        current = t;
+      }
+      compact();
+      return expired;
+    }finally{
+      lock.unlock();
+    }
+  }
+
+  private static int topLevel(int t){//the highest level that rolls over on this tick
+    int level = 0;
+    while (level<LEVELS-1 && (t & ((1<<(SHIFT*(level+1)))-1))==0){
+      level++;
+    }
+    return level;
+  }
+
+  private void cascade(Bucket bucket, int t){
+    final Bucket drained = bucket.drain();
+    for (int i=0; i<drained.size; i++){
+      final int deadline = drained.times[(i<<1)+1];
+      bucketFor(deadline, t).add(drained.keys[i], drained.times[i<<1], deadline);
+    }
+  }
+
+  private int expire(Bucket bucket, int t){
+    final Bucket drained = bucket.drain();
+    int expired = 0;
+    for (int i=0; i<drained.size; i++){
+      final Object key = drained.keys[i];
+      final int stamp = drained.times[i<<1];
+      final int next = expiry.expire(key, stamp, t);
+      if (next - t > 0){
+        bucketFor(next, t+1).add(key, stamp, next);
+      } else if (next==EXPIRED){
+        expired++;
+      }
+    }
+    return expired;
+  }
+
+  /**
+   * Drops the stale entries, whole buckets at a time (round robin, at most a lap per call), the credit carries over
+   */
+  private void compact(){
+    compactCredit += scheduled.sumThenReset()<<1;
+    for (int n=0; n<=buckets.length && compactCredit>0; n++){
+      final Bucket bucket = compactCursor==buckets.length? overflow : buckets[compactCursor];
+      compactCursor = compactCursor==buckets.length? 0 : compactCursor+1;
+      compactCredit -= bucket.compact(expiry);
+    }
+    if (compactCredit>0){//a full lap, nothing left
+      compactCredit = 0;
+    }
+  }
+
+  private Bucket bucketFor(int deadline, int base){
+    int delta = deadline - base;
+    if (delta < 0){//due already, process on the next tick
+      deadline = base;
+      delta = 0;
+    }
+    for (int level=0; level<LEVELS; level++){
+      if (delta < 1<<(SHIFT*(level+1))){
+        return bucket(level, deadline);
+      }
+    }
+    return overflow;
+  }
+
+  private Bucket bucket(int level, int time){
+    return buckets[(level<<SHIFT) + ((time>>>(SHIFT*level)) & MASK)];
+  }
+
+  int size(){//JMX, racy
+    int size = overflow.size;
+    for (Bucket b : buckets){
+      size+=b.size;
+    }
+    return size;
+  }
+
+  private static final class Bucket{
+    private static final Object[] EMPTY_KEYS = {};
+    private static final int[] EMPTY_TIMES = {};
+
+    Object[] keys = EMPTY_KEYS;
+    int[] times = EMPTY_TIMES;//stamp, deadline pairs
+    int size;
+
+    Bucket(){
+    }
+
+    private Bucket(Object[] keys, int[] times, int size){
+      this.keys = keys;
+      this.times = times;
+      this.size = size;
+    }
+
+    synchronized void add(Object key, int stamp, int deadline){
+      if (size==keys.length){
+        int length = Math.max(8, size + (size>>1));
+        keys = java.util.Arrays.copyOf(keys, length);
+        times = java.util.Arrays.copyOf(times, length<<1);
+      }
+      keys[size] = key;
+      times[size<<1] = stamp;
+      times[(size<<1)+1] = deadline;
+      size++;
+    }
+
+    /**
+     * Removes the stale entries, keeps the order
+     * @return the number of checked entries
+     */
+    synchronized int compact(Expiry expiry){
+      final int size = this.size;
+      final Object[] keys = this.keys;
+      final int[] times = this.times;
+      int n = 0;
+      for (int i=0; i<size; i++){
+        if (!expiry.isLive(keys[i], times[i<<1]))
+          continue;
+        keys[n] = keys[i];
+        times[n<<1] = times[i<<1];
+        times[(n<<1)+1] = times[(i<<1)+1];
+        n++;
+      }
+      java.util.Arrays.fill(keys, n, size, null);
+      this.size = n;
+      return size;
+    }
+
+    synchronized Bucket drain(){
+      Bucket result = new Bucket(keys, times, size);
+      keys = EMPTY_KEYS;
+      times = EMPTY_TIMES;
+      size = 0;
+      return result;
+    }
+  }
+}
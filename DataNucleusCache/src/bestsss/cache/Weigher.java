@@ -0,0 +1,95 @@
+package bestsss.cache;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Date;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+/**
+ * Rough estimation of the retained heap (in bytes) of the cached records.
+ * Assumes 64bit JVM with compressed oops (12 bytes object header, 16 bytes array header, 4 bytes references, 8 bytes alignment).
+ * The estimation is shallow: it goes one level down in the Object[] and the SCO replacements but no further.
+ *
+ * @author Stanimir Simeonoff
+ */
+final class Weigher {
+  private static final int OBJECT = 16;//header+padding for a small object
+  private static final int ARRAY = 16;
+  private static final int REF = 4;
+  private static final int UNKNOWN = 32;//a guess for anything else
+
+  private Weigher(){}
+
+  static int weighRecord(Object[] record){
+    final int len = record.length-ArrayUtil.RESERVED;
+    long weight = array(record.length, REF) + OBJECT+24 + array(len, 1);//the stamp: 4 ints, the loaded flags
+    int loaded = 0;
+    for (int i=0; i<len; i++){
+      weight+=weigh(record[i]);
+      if (record[i]!=CachedX.NOT_PRESENT)
+        loaded++;
+    }
+    if (loaded>0)
+      weight+=array(loaded, 4);//the loaded numbers
+    return (int) Math.min(weight, Integer.MAX_VALUE);
+  }
+
+  static int weigh(Object o){
+    if (o==null || o==CachedX.NOT_PRESENT || o instanceof Boolean || o instanceof Class || o instanceof Enum)
+      return 0;//shared, not retained by the record
+
+    if (o instanceof String)
+      return OBJECT+OBJECT + array(((String) o).length(), 2);
+
+    if (o instanceof Integer || o instanceof Short || o instanceof Byte || o instanceof Character || o instanceof Float)
+      return OBJECT;
+    if (o instanceof Long || o instanceof Double || o instanceof Date)
+      return OBJECT+8;
+
+    if (o instanceof SCOWrapper)
+      return ((SCOWrapper) o).estimateSize();
+
+    if (o instanceof byte[])
+      return array(((byte[]) o).length, 1);
+    if (o instanceof char[])
+      return array(((char[]) o).length, 2);
+    if (o instanceof int[])
+      return array(((int[]) o).length, 4);
+    if (o instanceof long[])
+      return array(((long[]) o).length, 8);
+    if (o instanceof Object[])
+      return shallow((Object[]) o);
+
+    if (o instanceof BigDecimal || o instanceof BigInteger)
+      return OBJECT*3;
+
+    return UNKNOWN;
+  }
+
+  /**
+   * @return the size of the array along with the (non-nested) elements
+   */
+  static int shallow(Object[] elements){
+    long weight = array(elements.length, REF);
+    for (Object e : elements){
+      if (e instanceof Object[]){
+        weight+=array(((Object[]) e).length, REF);//don't go deeper
+        continue;
+      }
+      weight+=weigh(e);
+    }
+    return (int) Math.min(weight, Integer.MAX_VALUE);
+  }
+
+  static int array(int length, int scale){
+    return align(ARRAY + (long)length*scale);
+  }
+
+  private static int align(long size){
+    return (int) Math.min((size+7) & ~7L, Integer.MAX_VALUE);
+  }
+}
@@ -41,15 +41,16 @@ public class ArrayPool<E> extends AtomicReferenceArray<E> {
       if ( (int) (put - take) >=length()){ 
         return false;
       }
-      if (!putIndex.compareAndSet(put, ++put)){
+      if (!putIndex.compareAndSet(put, put+1)){
         continue;
       }
-      lazySet(idx(put), e);
+      lazySet(idx(put), e);//the claimed slot, poll() reads idx(take)
       return true;
     }   
   }
   public int size(){
-    return (int) (-takeIndex.get() + putIndex.get())&(length()-1);//the order must remain
+    final long take = takeIndex.get();//the order must remain
+    return (int) Math.max(0, Math.min(length(), putIndex.get() - take));//masking would report a full pool as empty
   }
   public E poll(){
     for(;;){
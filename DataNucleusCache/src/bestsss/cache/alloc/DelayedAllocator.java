@@ -1,126 +1,179 @@
 package bestsss.cache.alloc;
 
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
+/**
+ * Epoch based recycling of arrays. The readers of the (shared) arrays run between lock() and unlock(epoch);
+ * an array offered (retired) after being unlinked is handed to the pool only once all the readers that might have seen it are done:
+ * it's retired in epoch e, the epoch advances to e+2 only after no reader remains locked in e (two parity counters per stripe),
+ * retiring during e+2 reuses the bucket of e - that's when it's drained.
+ * offer() has to be called while locked; that keeps the epoch from advancing past the retirer, hence no race on the buckets.
+ * The epoch advances on offer() - no background thread, if there is no retirement, nothing is pending.
+ * The retired arrays in excess of the bucket capacity are left to the GC.
+ */
 public class DelayedAllocator  {
-  final BusyPool busy;//has to be array based
-  final AtomicIntegerArray counters;
-  final int length;
-  final ArrayPool<Object[]>[] pool;
-  
-  @SuppressWarnings("unchecked")
-  public DelayedAllocator() {
+  /**
+   * Called once the array is quiescent (no reader can hold it), before it's pooled
+   */
+  public interface Reclaimer{
+    /**
+     * @return true to pool the array (after clearing it), false to leave it to the GC
+     */
+    boolean reclaim(Object[] array);
+  }
+
+  private static final int BUCKETS = 3;
+  private static final int ADVANCE = 16;//attempt to advance the epoch each N retirements
+
+  final AtomicIntegerArray counters;//per stripe: (lock count in the even epochs, lock count in the odd ones), padded
+  final int stripes;
+  final Bucket[] retired = new Bucket[BUCKETS];
+  final MagazinePool<Object[]>[] pool;
+  final int poolCapacity;
+  final Reclaimer reclaimer;
+  private volatile long epoch;//long: the buckets are picked mod 3, no wrap around
+
+  /**
+   * @param poolCapacity - max pooled arrays per length (rounded to a power of 2, at least 64)
+   */
+  public DelayedAllocator(int poolCapacity, Reclaimer reclaimer) {
     int CPUs = Runtime.getRuntime().availableProcessors();
-    length = CPUs>1?nextPow2(CPUs):1;
-    counters = new AtomicIntegerArray(length>1?index(length):1);    
-    busy = new BusyPool(Math.min(128, length*16));
-    pool = new ArrayPool[256]; 
+    stripes = CPUs>1?nextPow2(CPUs):1;
+    counters = new AtomicIntegerArray(index(stripes, 0));
+    this.poolCapacity = Math.max(64, Integer.highestOneBit(Math.max(1, poolCapacity-1))<<1);
+    this.reclaimer = reclaimer;
+    for (int i=0; i<BUCKETS; i++){
+      retired[i] = new Bucket(this.poolCapacity);
+    }
+    @SuppressWarnings("unchecked")
+    final MagazinePool<Object[]>[] pool = (MagazinePool<Object[]>[]) new MagazinePool<?>[256];
+    this.pool = pool;
+    epoch = 1;
   }
   private static int nextPow2(int v){
     return Integer.highestOneBit(v)<<1;
   }
-  
-  public Object[] poll(){
-    ArrayPool<Object[]> p = getPool(length);
+
+  /**
+   * @return a recycled array of exactly the length or null if none is available
+   */
+  public Object[] poll(int length){
+    MagazinePool<Object[]> p = length>=0 && length<pool.length? pool[length] : null;
     return p==null?null:p.poll();
   }
-  
+
+  /**
+   * Retires an unlinked array, the caller has to be locked
+   * @return true if the array is (going to be) recycled, false if left to the GC
+   */
   public boolean offer(Object[] obj){
     if (!valid(obj))
       return false;
-    
-    if (anyInUse()){
-      busy.offer(obj);
+
+    final Bucket bucket = retired[(int) (this.epoch % BUCKETS)];
+    final int i = bucket.size.getAndIncrement();
+    if (i>=bucket.length()){
+      tryAdvance();
       return false;
     }
-    expungeBusy();
-    boolean result = regularOffer(obj);
-    return result;
+    bucket.set(i, obj);
+    if ((i & (ADVANCE-1))==ADVANCE-1){
+      tryAdvance();
+    }
+    return true;
   }
-  private void expungeBusy() {
-    if (busy.lastUpdated==0)//cheap read, even with volatile
+
+  /**
+   * Advances the epoch if no reader is locked in the previous one, then drains the bucket retired in the previous epoch
+   */
+  private void tryAdvance() {
+    final long epoch = this.epoch;
+    for (int i=0;i<stripes; i++){
+      if (counters.get(index(i, epoch-1)) != 0)
+        return;
+    }
+    if (!EPOCH.compareAndSet(this, epoch, epoch+1))
       return;
-    
-    //need CAS before entering sync
-    synchronized (busy) {
-      for (int i=0, len = busy.length();i<len;i++){
-        Object[] o = busy.get(i);
-        if (o==null){
-          if (i>busy.lastUpdated)
-            break;
-          
-          continue;
-        }        
+
+    final Bucket bucket = retired[(int) ((epoch-1) % BUCKETS)];//the retirers of epoch-1 are all done (epoch starts at 1)
+    for (int i=0, len = Math.min(bucket.size.get(), bucket.length()); i<len; i++){
+      final Object[] o = bucket.get(i);
+      bucket.lazySet(i, null);
+      if (o!=null && reclaimer.reclaim(o)){
         regularOffer(o);
       }
-      busy.lastUpdated = 0;
-    }
-  }
-  private boolean anyInUse() {
-    for (int i=0;i<length; i++){
-      if (counters.get(index(i)) != 0)
-        return true;
     }
-    return false;    
+    bucket.size.set(0);
   }
-  
-  private static int index(int i) {
-    return i<<4;
+
+  private static int index(int stripe, long epoch) {
+    return (stripe<<1 | (int) (epoch & 1))<<4;
   }
-  
-  public void lock(){
-    int idx = threadId();
-    counters.incrementAndGet(index(idx));
+
+  /**
+   * Enters a read section: arrays reachable at this point are not recycled until unlock
+   * @return the epoch to pass to unlock
+   */
+  public long lock(){
+    final int stripe = threadId();
+    for (;;){
+      final long epoch = this.epoch;
+      final int i = index(stripe, epoch);
+      counters.incrementAndGet(i);
+      if (this.epoch==epoch)//otherwise the advance might have missed the increment
+        return epoch;
+      counters.decrementAndGet(i);
+    }
   }
   private int threadId() {
-    return System.identityHashCode(Thread.currentThread()) & (length-1);
-  }
-  
-  public void unlock(){
-    int idx = threadId();
-    counters.decrementAndGet(index(idx));
+    return System.identityHashCode(Thread.currentThread()) & (stripes-1);
   }
 
+  public void unlock(long epoch){
+    counters.decrementAndGet(index(threadId(), epoch));
+  }
 
+  public int size(){//JMX
+    int size = 0;
+    for (MagazinePool<?> p : pool){
+      if (p!=null)
+        size+=p.size();
+    }
+    return size;
+  }
 
   private boolean regularOffer(Object[] obj) {
-    if (obj==null)
-      return false;
-    
-    ArrayPool<Object[]> pool = getPool(obj.length);
+    MagazinePool<Object[]> pool = getPool(obj.length);
     return pool!=null && pool.offer(obj);
   }
 
-  private ArrayPool<Object[]> getPool(int length) {
-    ArrayPool<Object[]> p=null;
-    ArrayPool<Object[]>[] pool = this.pool;
+  private MagazinePool<Object[]> getPool(int length) {
+    MagazinePool<Object[]> p=null;
+    MagazinePool<Object[]>[] pool = this.pool;
     if (length<pool.length){
       p = pool[length];
-      if (p==null){//racy set, but it doesn't matter - ArrayPool can be published via datarace
-        pool[length]=p=new ArrayPool<>(2048);
+      if (p==null){//racy set, but it doesn't matter - MagazinePool can be published via datarace (final fields)
+        pool[length]=p=new MagazinePool<>(poolCapacity, MagazinePool.carriers());
       }
     }
     return p;
   }
-  
+
   private boolean valid(Object[] obj) {
     return obj!=null && obj.length<pool.length;
   }
-  
-  static class BusyPool extends AtomicReferenceArray<Object[]>{    
-    public BusyPool(int length) {
+
+  private static final AtomicLongFieldUpdater<DelayedAllocator> EPOCH = AtomicLongFieldUpdater.newUpdater(DelayedAllocator.class, "epoch");
+
+  static class Bucket extends AtomicReferenceArray<Object[]>{
+    private static final long serialVersionUID = 0L;
+    final AtomicInteger size = new AtomicInteger();//claimed slots, may exceed the length (overflow)
+
+    Bucket(int length) {
       super(length);
     }
-    
-    volatile int lastUpdated;
-    void offer(Object[] o){
-      for (int i=lastUpdated; i<length(); i++){
-        if (get(i)==null && compareAndSet(i, null, o)){
-          lastUpdated = i;//cheap non-volatile
-          break;
-        }
-      }
-    }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,209 @@
+package bestsss.cache.alloc;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Magazine pool (Bonwick): a thread owns two small stacks - magazines, the stacks are exchanged whole with a depot of full and empty magazines.
+ * poll/offer within the thread's magazines involve no atomic operation and no shared cache line, the depot is touched once per 'rounds' operations.
+ * The depot is a fixed array of slots (CAS null&lt;-&gt;magazine), no linked nodes, hence no ABA on the reused magazines.
+ * Bounded: the magazines are leased to a limited number of threads (carriers), a dead thread's lease (and its magazines) is taken over by the next thread,
+ * at most (2*carriers + depot slots)*rounds elements are retained, never more than the capacity (or 3 per carrier, if larger).
+ * A thread w/o a lease misses (poll returns null, offer false) and retries the lease each RETRY calls.
+ */
+public class MagazinePool<E> {
+  private static final int MAX_ROUNDS = 16;
+  private static final int RETRY = 1024;
+
+  final ThreadLocal<Carrier> local = new ThreadLocal<>();
+  final AtomicReferenceArray<Carrier> leases;
+  final AtomicReferenceArray<Magazine> full;
+  final AtomicReferenceArray<Magazine> empty;
+  final int rounds;
+
+  /**
+   * @param capacity - max retained elements (the magazine size is reduced if there are many carriers, at least 1)
+   * @param carriers - max threads with own magazines
+   */
+  public MagazinePool(int capacity, int carriers) {
+    if (carriers<=0)
+      throw new IllegalArgumentException("carriers: "+carriers);
+    capacity = Math.max(capacity, 3*carriers);//at least a round each
+    this.rounds = Math.max(1, Math.min(MAX_ROUNDS, capacity/(4*carriers)));
+    final int depot = Math.max(1, capacity/rounds - 2*carriers);
+    leases = new AtomicReferenceArray<>(carriers);
+    full = new AtomicReferenceArray<>(depot);
+    empty = new AtomicReferenceArray<>(depot);
+  }
+
+  /**
+   * @return the default number of carriers: 2 per CPU, at least 8
+   */
+  public static int carriers(){
+    return Math.max(8, 2*Runtime.getRuntime().availableProcessors());
+  }
+
+  private Carrier carrier(){
+    final Carrier c = local.get();
+    if (c!=null && c.owner!=null)
+      return c;
+    return lease(c);
+  }
+
+  private Carrier lease(Carrier unleased){
+    if (unleased!=null && --unleased.retry>0)
+      return null;
+
+    final Thread thread = Thread.currentThread();
+    for (int i=0; i<leases.length(); i++){
+      for (;;){
+        final Carrier current = leases.get(i);
+        if (current!=null && current.owner.isAlive())
+          break;
+
+        final Carrier c = new Carrier(thread, current, rounds);//take over the magazines of a dead thread: its termination happens-before isAlive()==false
+        if (leases.compareAndSet(i, current, c)){
+          local.set(c);
+          return c;
+        }
+      }
+    }
+    final Carrier c = unleased!=null? unleased : new Carrier(null, null, 0);
+    c.retry = RETRY;
+    local.set(c);
+    return null;
+  }
+
+  /**
+   * @return a pooled element or null if none is available (or the thread has no lease)
+   */
+  @SuppressWarnings("unchecked")
+  public E poll(){
+    final Carrier c = carrier();
+    if (c==null)
+      return null;
+    if (c.loaded.size==0){
+      if (c.previous.size>0){
+        c.swap();
+      } else{
+        final Magazine m = take(full);
+        if (m==null)
+          return null;
+        put(empty, c.previous);//dropped if the empty depot is full
+        c.previous = c.loaded;
+        c.loaded = m;
+      }
+    }
+    return (E) c.loaded.pop();
+  }
+
+  /**
+   * @return true if pooled, false if the pool is full (or the thread has no lease)
+   */
+  public boolean offer(E e){
+    if (e==null)
+      throw new NullPointerException();
+    final Carrier c = carrier();
+    if (c==null)
+      return false;
+    if (c.loaded.size==rounds){
+      if (c.previous.size==0){
+        c.swap();
+      } else{
+        if (!put(full, c.previous))
+          return false;
+        final Magazine m = take(empty);
+        c.previous = c.loaded;
+        c.loaded = m!=null? m : new Magazine(rounds);
+      }
+    }
+    c.loaded.push(e);
+    return true;
+  }
+
+  private static int start(int length){
+    return (int) ((Thread.currentThread().getId()*0x9E3779B9L >>> 16) % length);//spread the threads over the depot
+  }
+
+  private static Magazine take(AtomicReferenceArray<Magazine> depot){
+    final int len = depot.length();
+    for (int n=0, i=start(len); n<len; n++, i = i+1==len? 0 : i+1){
+      if (depot.get(i)!=null){
+        final Magazine m = depot.getAndSet(i, null);
+        if (m!=null)
+          return m;
+      }
+    }
+    return null;
+  }
+
+  private static boolean put(AtomicReferenceArray<Magazine> depot, Magazine m){
+    final int len = depot.length();
+    for (int n=0, i=start(len); n<len; n++, i = i+1==len? 0 : i+1){
+      if (depot.get(i)==null && depot.compareAndSet(i, null, m))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return the max retained elements
+   */
+  public int capacity(){
+    return (2*leases.length() + full.length())*rounds;
+  }
+
+  public int size(){//JMX, racy: the magazines of the other threads are read w/o synchronization
+    int size = 0;
+    for (int i=0; i<leases.length(); i++){
+      final Carrier c = leases.get(i);
+      if (c!=null)
+        size += c.loaded.size + c.previous.size;
+    }
+    for (int i=0; i<full.length(); i++){
+      final Magazine m = full.get(i);
+      if (m!=null)
+        size += m.size;
+    }
+    return size;
+  }
+
+  static final class Magazine{
+    final Object[] rounds;
+    int size;
+
+    Magazine(int rounds){
+      this.rounds = new Object[rounds];
+    }
+
+    void push(Object e){
+      rounds[size++] = e;
+    }
+
+    Object pop(){
+      final Object e = rounds[--size];
+      rounds[size] = null;
+      return e;
+    }
+  }
+
+  static final class Carrier{//thread confined, the leases array is only for the take over and size()
+    final Thread owner;//null: no lease
+    Magazine loaded;
+    Magazine previous;
+    int retry;
+
+    Carrier(Thread owner, Carrier dead, int rounds){
+      this.owner = owner;
+      if (owner==null)
+        return;
+      loaded = dead!=null? dead.loaded : new Magazine(rounds);
+      previous = dead!=null? dead.previous : new Magazine(rounds);
+    }
+
+    void swap(){
+      final Magazine m = loaded;
+      loaded = previous;
+      previous = m;
+    }
+  }
+}
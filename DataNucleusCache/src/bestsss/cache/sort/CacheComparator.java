@@ -121,7 +121,7 @@ public class CacheComparator<C> implements Comparator<C>{
 	}
 
 	public <E extends C>  E max(E x, E y){
-		return compare(x,y)<=0?x:y;
+		return compare(x,y)>=0?x:y;
 	}
 
 	private static <E> ArrayList<E> newArrayList(Iterator<E> i){
@@ -0,0 +1,14 @@
+package bestsss.cache.sort;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+ /**
+  * Primitive eviction score, computed once per sampled value; the lowest scores are evicted first.
+  * @author Stanimir Simeonoff
+ */
+public interface Scorer<V> {
+  int score(V value);
+}
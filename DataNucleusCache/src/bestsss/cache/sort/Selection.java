@@ -0,0 +1,181 @@
+package bestsss.cache.sort;
+
+import java.util.Arrays;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+ /**
+  * Allocation free selection of the lowest scored samples, per thread and reused.
+  * Each sample is a long: the score in the high 32 bits, the sample index in the low ones - distinct, ordered by score, then by index.
+  * The k lowest are found by an in-place quickselect (Hoare partition, median of 3), only those k get sorted.
+  * Usage: begin(), add()/mark() while sampling, select() - it clears the sampled keys.
+  * The samples per call are capped (MAX_SAMPLES), the buffers above RETAINED are dropped after use, i.e. a large batch doesn't pin memory per thread.
+  * @author Stanimir Simeonoff
+ */
+public final class Selection {
+  public static final int MAX_SAMPLES = 1<<12;
+  static final int RETAINED = 1<<10;
+
+  private static final ThreadLocal<Selection> LOCAL = new ThreadLocal<Selection>(){
+    @Override
+    protected Selection initialValue() {
+      return new Selection();
+    }
+  };
+
+  private long[] samples = new long[64];
+  private Object[] keys = new Object[64];
+  private int size;
+  private int capacity;
+
+  private long[] marks = new long[128];//open addressing: (generation<<32 | n+1), a stale generation is an empty slot
+  private int generation;
+
+  private Object[] victims = new Object[16];
+
+  private Selection(){
+  }
+
+  /**
+   * @param capacity - max samples, at most MAX_SAMPLES
+   * @return the thread's selection, empty
+   */
+  public static Selection begin(int capacity){
+    capacity = Math.min(capacity, MAX_SAMPLES);
+    final Selection s = LOCAL.get();
+    if (s.samples.length<capacity){
+      final int len = Integer.highestOneBit(capacity-1)<<1;
+      s.samples = new long[len];
+      s.keys = new Object[len];
+      s.marks = new long[len<<1];
+    }
+    s.size = 0;
+    s.capacity = capacity;
+    s.resetMarks();
+    return s;
+  }
+
+  /**
+   * A reusable array for the result of select(), the caller should null it after use.
+   * Never longer than needed for MAX_SAMPLES, i.e. possibly shorter than length.
+   */
+  public static Object[] victims(int length){
+    length = Math.min(length, MAX_SAMPLES);
+    final Selection s = LOCAL.get();
+    if (s.victims.length<length || (s.victims.length>RETAINED && length<=RETAINED)){//grow or drop a large one
+      s.victims = new Object[Math.max(16, Integer.highestOneBit(length-1)<<1)];
+    }
+    return s.victims;
+  }
+
+  public int size(){
+    return size;
+  }
+
+  public boolean isFull(){
+    return size>=capacity;
+  }
+
+  /**
+   * @return false if full
+   */
+  public boolean add(Object key, int score){
+    final int i = size;
+    if (i>=capacity)
+      return false;
+    keys[i] = key;
+    samples[i] = (long) score<<32 | i;
+    size = i+1;
+    return true;
+  }
+
+  /**
+   * Duplicate detection while sampling, e.g. the slot index; forgets all the marks on resetMarks() (no clearing)
+   * @return true if n has not been marked since the last reset
+   */
+  public boolean mark(int n){
+    final long[] marks = this.marks;
+    final long mark = (long) generation<<32 | (n+1 & 0xffffffffL);
+    final int mask = marks.length-1;
+    for (int i = (n*0x9E3779B9)>>>16 & mask, probes=0; probes<=mask; i=i+1 & mask, probes++){
+      final long m = marks[i];
+      if (m==mark)
+        return false;
+      if ((int) (m>>>32)!=generation){//stale or empty
+        marks[i] = mark;
+        return true;
+      }
+    }
+    return true;//full, can't happen w/ the capacity bound
+  }
+
+  public void resetMarks(){
+    if (++generation==0){//wrapped, zeroed slots would look current
+      Arrays.fill(marks, 0L);
+      generation = 1;
+    }
+  }
+
+  /**
+   * Moves the keys with the k lowest scores, lowest first, into victims and clears the sampled keys.
+   * @return the number of victims
+   */
+  public int select(int k, Object[] victims){
+    final int size = this.size;
+    final int n = Math.min(Math.min(k, size), victims.length);
+    final long[] samples = this.samples;
+    if (n>0){
+      if (n<size){
+        select(samples, 0, size-1, n-1);
+      }
+      Arrays.sort(samples, 0, n);
+    }
+    final Object[] keys = this.keys;
+    for (int i=0; i<n; i++){
+      victims[i] = keys[(int) samples[i]];
+    }
+    this.size = 0;
+    if (samples.length>RETAINED){//a large batch, don't keep the buffers
+      this.samples = new long[64];
+      this.keys = new Object[64];
+      this.marks = new long[128];
+    } else{
+      Arrays.fill(keys, 0, size, null);//don't retain
+    }
+    return n;
+  }
+
+  /**
+   * Rearranges a[left..right] so a[k] is the element it'd be if sorted, the smaller ones before it
+   */
+  static void select(long[] a, int left, int right, int k){
+    while (left<right){
+      final int mid = (left+right)>>>1;
+      final long pivot = median(a[left], a[mid], a[right]);
+      int i = left, j = right;
+      while (i<=j){
+        while (a[i]<pivot) i++;
+        while (a[j]>pivot) j--;
+        if (i<=j){
+          final long t = a[i];
+          a[i++] = a[j];
+          a[j--] = t;
+        }
+      }
+      if (k<=j){
+        right = j;
+      } else if (k>=i){
+        left = i;
+      } else{
+        return;
+      }
+    }
+  }
+
+  private static long median(long a, long b, long c){
+    return a<b? (b<c? b : Math.max(a, c)) : (a<c? a : Math.max(b, c));
+  }
+}
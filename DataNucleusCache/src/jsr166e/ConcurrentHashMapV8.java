@@ -40,6 +40,8 @@ import java.util.concurrent.locks.ReentrantLock;
 
 import bestsss.cache.Table;
 import bestsss.cache.sort.CacheComparator;
+import bestsss.cache.sort.Scorer;
+import bestsss.cache.sort.Selection;
 
 /**
  * A hash table supporting full concurrency of retrievals and
@@ -3975,6 +3977,37 @@ public class ConcurrentHashMapV8<K,V>
       return Arrays.asList(result);
     }
 
+    /**
+     * Samples the bins at random strides (one lap from a random start), each node of a sampled bin is scored once.
+     * An empty bin moves to the next one (like RandomTraverser), so a sparse table is still found. 
+     * Forwarded bins (resize in progress) are skipped. No allocation.
+     */
+    @Override
+    public int getExpirable(int entries, Scorer<? super V> scorer, Object[] victims) {
+      entries = Math.min(entries, victims.length);
+      final int sampleSize = entries *17;
+      final Node<K,V>[] t = this.table;
+      final int n = t == null ? 0 : t.length;
+      if (n==0 || entries<=0) return 0;
+
+      final ThreadLocalRandom random = ThreadLocalRandom.current();
+      final Selection selection = Selection.begin(sampleSize);
+      final int gap = sumCount() <= sampleSize ? 1 : Math.max(1, n / sampleSize);//mean stride 'gap', the lap covers ~sampleSize bins; a sparse table (e.g. cleared) is sampled entirely
+      final int start = random.nextInt(n);
+      for (int offset = random.nextInt(gap); offset < n && !selection.isFull(); ) {
+        Node<K,V> e = tabAt(t, (start + offset) & (n - 1));
+        if (e != null && e.hash < 0)
+          e = e instanceof TreeBin ? ((TreeBin<K,V>)e).first : null;
+        offset += e == null ? 1 : 1 + random.nextInt(2*gap - 1);
+        for (; e != null && !selection.isFull(); e = e.next) {
+          final V v = e.val;
+          if (v != null)
+            selection.add(e.key, scorer.score(v));
+        }
+      }
+      return selection.select(entries, victims);
+    }
+
 
     
     
@@ -0,0 +1,164 @@
+package bestsss.cache;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CountDownLatch;
+
+import bestsss.cache.alloc.ArrayPool;
+import bestsss.cache.alloc.MagazinePool;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+/**
+ * Pool contention: N threads (1..64) get/offer arrays of a few size classes, each thread holds up to 4 arrays at a time.
+ * Pools: the monitor + ArrayDeque per size class (the former Allocator), ArrayPool (CAS over shared indices) per size class
+ * and MagazinePool (as used by Allocator now, w/o the zap). Reports throughput and the hit rate of get (the misses are allocated).
+ * args: comma separated thread counts (default 1,2,4,8,16,32,64)
+ *
+ * @author Stanimir Simeonoff
+ */
+public class AllocatorBench {
+  static final int OPS = 4_000_000;//total, split among the threads
+  static final int[] LENGTHS = {8, 16, 20, 32};
+  static final int MAX_POOLED = 1024;
+
+  interface Pool{
+    Object[] get(int length);
+    boolean offer(Object[] array);
+  }
+
+  public static void main(String[] args) throws Exception {
+    String threads = args.length>0? args[0] : "1,2,4,8,16,32,64";
+    for (int warmup=0; warmup<2; warmup++){
+      for (String s : threads.split(",")){
+        int n = Integer.parseInt(s.trim());
+        run("monitor", new MonitorPool(), n, warmup==0);
+        run("ArrayPool", new LockFreePool(), n, warmup==0);
+        run("magazine", new MagazineFront(), n, warmup==0);
+      }
+    }
+  }
+
+  static void run(String name, final Pool pool, int threads, boolean quiet) throws Exception{
+    final CountDownLatch start = new CountDownLatch(1);
+    final long[] hits = new long[threads<<3];
+    final int ops = OPS/threads;
+    Thread[] workers = new Thread[threads];
+    for (int t=0; t<threads; t++){
+      final int id = t;
+      workers[t] = new Thread(){
+        public void run(){
+          try{
+            start.await();
+          }catch(InterruptedException _ex){
+            return;
+          }
+          Object[][] held = new Object[4][];
+          long hit = 0;
+          int seed = id*0x9E3779B9+1;
+          for (int i=0; i<ops; i++){
+            seed ^= seed<<13; seed ^= seed>>>17; seed ^= seed<<5;//xorshift, no shared state
+            final int slot = seed & 3;
+            if (held[slot]!=null){
+              pool.offer(held[slot]);
+              held[slot] = null;
+            } else{
+              final int length = LENGTHS[(seed>>>2) & 3];
+              Object[] a = pool.get(length);
+              if (a!=null)
+                hit++;
+              else
+                a = new Object[length];
+              held[slot] = a;
+            }
+          }
+          hits[id<<3] = hit;
+        }
+      };
+      workers[t].start();
+    }
+    final long nanos = System.nanoTime();
+    start.countDown();
+    for (Thread w : workers){
+      w.join();
+    }
+    final long elapsed = System.nanoTime() - nanos;
+    if (quiet)
+      return;
+
+    long hit = 0;
+    for (long h : hits){
+      hit += h;
+    }
+    System.out.printf("threads: %2d %-9s: %,8.1f ns/op, %,6.1f Mops/s, hits %5.1f%%%n", threads, name,
+        (double) elapsed/(ops*threads), (double) ops*threads*1000/elapsed, 200.0*hit/(ops*threads));
+  }
+
+  /**
+   * The former Allocator: a synchronized ArrayDeque per size class
+   */
+  static class MonitorPool implements Pool{
+    @SuppressWarnings("unchecked")
+    final ArrayDeque<Object[]>[] pools = new ArrayDeque[64];
+    {
+      for (int i=0; i<pools.length; i++){
+        pools[i] = new ArrayDeque<>();
+      }
+    }
+
+    public Object[] get(int length){
+      final ArrayDeque<Object[]> pool = pools[length>>2];
+      synchronized (pool){
+        return pool.pollLast();
+      }
+    }
+
+    public boolean offer(Object[] array){
+      final ArrayDeque<Object[]> pool = pools[array.length>>2];
+      synchronized (pool){
+        if (pool.size()>=MAX_POOLED)
+          return false;
+        pool.offerLast(array);
+        return true;
+      }
+    }
+  }
+
+  static class LockFreePool implements Pool{
+    @SuppressWarnings("unchecked")
+    final ArrayPool<Object[]>[] pools = new ArrayPool[64];
+    {
+      for (int i=0; i<pools.length; i++){
+        pools[i] = new ArrayPool<>(MAX_POOLED);
+      }
+    }
+
+    public Object[] get(int length){
+      return pools[length>>2].poll();
+    }
+
+    public boolean offer(Object[] array){
+      return pools[array.length>>2].offer(array);
+    }
+  }
+
+  static class MagazineFront implements Pool{
+    @SuppressWarnings("unchecked")
+    final MagazinePool<Object[]>[] pools = new MagazinePool[64];
+    {
+      for (int i=0; i<pools.length; i++){
+        pools[i] = new MagazinePool<>(MAX_POOLED, MagazinePool.carriers());
+      }
+    }
+
+    public Object[] get(int length){
+      return pools[length>>2].poll();
+    }
+
+    public boolean offer(Object[] array){
+      return pools[array.length>>2].offer(array);
+    }
+  }
+}
@@ -63,15 +63,77 @@ public class ArrayUtilTest {
     
     fields[length-CLASS] = object.getClass();
     fields[length-VERSION] = this;
-    fields[length-HITS] = IntegerProvider.ZERO;
-    fields[length-TIME] = IntegerProvider.get(time);    
+    fields[length-STAMP] = new ArrayUtil.Stamp(time, time, 0);
     return fields;
 
   }
   private static final int CLASS = 1;
   private static final int VERSION = 2;
-  private static final int HITS = 3;
-  private static final int TIME = 4;
-  static final int RESERVED = TIME;
-  
+  private static final int STAMP = 3;
+
+  @Test
+  public void stamp(){
+    Object[] a = ArrayUtil.restore(2+ArrayUtil.RESERVED, getClass(), null, Integer.MAX_VALUE-1, 100, 100);
+    ArrayUtil.Stamp stamp = ArrayUtil.stamp(a);
+    final int late = 1<<24;//way past IntegerProvider's cached range
+    ArrayUtil.setTimeAndHitCount(a, late);
+    ArrayUtil.setTimeAndHitCount(a, late+1);
+    Assert.assertSame(stamp, ArrayUtil.stamp(a));//updated in place
+    Assert.assertEquals(Integer.MAX_VALUE, ArrayUtil.getHits(a));//saturated
+    Assert.assertEquals(late+1, ArrayUtil.getAccessTime(a));
+    Assert.assertEquals(100, ArrayUtil.getCreationTime(a));
+
+    ArrayUtil.setWeight(a, 123);
+    Object[] extended = ArrayUtil.extend(a, 2, 10);
+    Assert.assertNotSame(stamp, ArrayUtil.stamp(extended));
+    Assert.assertEquals(123, ArrayUtil.getWeight(extended));
+    Assert.assertEquals(late+1, ArrayUtil.getAccessTime(extended));
+
+    Object[] longer = ArrayUtil.restore(4+ArrayUtil.RESERVED, getClass(), null, 0, 200, 200);
+    longer[0] = "new";
+    Object[] union = ArrayUtil.union(longer, extended, late+3);
+    Assert.assertTrue(union.length >= extended.length);
+    Assert.assertEquals("new", union[0]);
+    Assert.assertEquals(CachedX.NOT_PRESENT, union[1]);//neither has it
+    Assert.assertEquals(100, ArrayUtil.getCreationTime(union));//the existing one's
+    Assert.assertEquals(late+3, ArrayUtil.getAccessTime(union));
+    Assert.assertNotSame(ArrayUtil.stamp(extended), ArrayUtil.stamp(union));
+    extended[1] = "old";
+    extended[5] = "old5";
+    union = ArrayUtil.union(longer, extended, late+3);
+    Assert.assertEquals("new", union[0]);
+    Assert.assertEquals("old", union[1]);
+    Assert.assertEquals("old5", union[5]);
+
+    Object[] copy = a.clone();
+    ArrayUtil.setTimeAndAccess(copy, late+2);
+    Assert.assertEquals(0, ArrayUtil.getHits(copy));
+    Assert.assertEquals(Integer.MAX_VALUE, ArrayUtil.getHits(a));//the original is not affected
+  }
+
+  @Test
+  public void loaded(){
+    Object[] a = ArrayUtil.restore(4+ArrayUtil.RESERVED, getClass(), 1L, 0, 100, 100);
+    a[1] = "x";
+    a[3] = null;//null is a loaded value
+    CachedX<Object> plain = new CachedX<Object>(Object.class, a, 4, 1L);
+    Assert.assertArrayEquals(new boolean[]{false, true, false, true}, plain.getLoadedFields());
+    Assert.assertNotSame(plain.getLoadedFields(), plain.getLoadedFields());//not precomputed
+
+    ArrayUtil.setLoaded(a);
+    Assert.assertNull(ArrayUtil.stamp(ArrayUtil.extend(a, 4, 6)).loaded);//the copies are for changed fields
+    CachedX<Object> shared = new CachedX<Object>(Object.class, a, 4, 1L);
+    Assert.assertArrayEquals(new boolean[]{false, true, false, true}, shared.getLoadedFields());
+    Assert.assertArrayEquals(new int[]{1, 3}, shared.getLoadedFieldNumbers());
+    Assert.assertSame(ArrayUtil.getLoaded(a), shared.getLoadedFields());
+    Assert.assertSame(shared.getLoadedFieldNumbers(), new CachedX<Object>(Object.class, a, 4, 1L).getLoadedFieldNumbers());
+
+    shared.setLoadedField(1, false);
+    Assert.assertArrayEquals(new int[]{3}, shared.getLoadedFieldNumbers());
+    Assert.assertNotSame(ArrayUtil.getLoaded(a), shared.getLoadedFields());
+
+    Object[] empty = ArrayUtil.restore(2+ArrayUtil.RESERVED, getClass(), null, 0, 100, 100);
+    ArrayUtil.setLoaded(empty);
+    Assert.assertNull(new CachedX<Object>(Object.class, empty, 2, null).getLoadedFieldNumbers());//as ClassUtils.getFlagsSetTo
+  }
 }
@@ -0,0 +1,120 @@
+package bestsss.cache;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+ /**
+  * @author Stanimir Simeonoff
+ */
+public class CachedXTest {
+  static Object[] record(int fields){
+    Object[] record = ArrayUtil.restore(fields+ArrayUtil.RESERVED, CachedXTest.class, 7L, 0, 100, 100);
+    for (int i=0; i<fields; i+=2){
+      record[i] = "f"+i;
+    }
+    ArrayUtil.setLoaded(record);
+    return record;
+  }
+
+  @Test
+  public void copyOnWrite(){
+    Object[] record = record(4);
+    Object[] snapshot = record.clone();
+    CachedX<Object> pc = new CachedX<Object>(Object.class, record, 4, 7L);
+    Assert.assertSame(record, pc.getArray());//reads share
+
+    pc.setFieldValue(1, "one");
+    Assert.assertNotSame(record, pc.getArray());
+    Assert.assertEquals("one", pc.getFieldValue(1));
+    Assert.assertArrayEquals(snapshot, record);
+
+    pc = new CachedX<Object>(Object.class, record, 4, 7L);
+    pc.setLoadedField(0, false);
+    Assert.assertNull(pc.getFieldValue(0));
+    Assert.assertArrayEquals(new int[]{2}, pc.getLoadedFieldNumbers());
+    pc.setLoadedField(1, false);//already absent
+    Assert.assertArrayEquals(snapshot, record);
+
+    pc = new CachedX<Object>(Object.class, record, 4, 7L);
+    pc.setVersion(8L);
+    Assert.assertEquals(8L, ArrayUtil.getVersion(pc.getArray()));
+    Assert.assertEquals(7L, ArrayUtil.getVersion(record));
+
+    pc = new CachedX<Object>(Object.class, record, 4, 7L);
+    pc.setFieldValue(4, "four");//right past the length, used to land in the header
+    pc.setFieldValue(20, "twenty");
+    Assert.assertEquals("four", pc.getFieldValue(4));
+    Assert.assertEquals("twenty", pc.getFieldValue(20));
+    Assert.assertEquals(CachedXTest.class, ArrayUtil.getClass(pc.getArray()));
+    Assert.assertArrayEquals(snapshot, record);
+
+    CachedX<Object> copy = new CachedX<Object>(Object.class, record, 4, 7L).getCopy();
+    copy.setFieldValue(0, "zero");
+    Assert.assertEquals("zero", copy.getFieldValue(0));
+    Assert.assertArrayEquals(snapshot, record);
+  }
+
+  @Test
+  public void concurrentWriters() throws Throwable{
+    final int fields = 16;
+    final Object[] record = record(fields);
+    final Object[] snapshot = record.clone();
+    final boolean[] loaded = ArrayUtil.getLoaded(record).clone();
+    final int threads = 4;
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread[] workers = new Thread[threads];
+    for (int t=0; t<threads; t++){
+      final String name = "t"+t;
+      workers[t] = new Thread(){
+        public void run(){
+          try{
+            start.await();
+            ThreadLocalRandom r = ThreadLocalRandom.current();
+            for (int i=0; i<20000; i++){
+              CachedX<Object> pc = new CachedX<Object>(Object.class, record, fields, ArrayUtil.getVersion(record));
+              int f = r.nextInt(fields+4);
+              switch (r.nextInt(4)){
+                case 0:
+                  pc.setFieldValue(f, name);
+                  Assert.assertEquals(name, pc.getFieldValue(f));
+                  break;
+                case 1:
+                  pc.setLoadedField(f, false);
+                  Assert.assertNull(pc.getFieldValue(f));
+                  break;
+                case 2:
+                  pc.setVersion(name);
+                  Assert.assertEquals(name, pc.getVersion());
+                  break;
+                default:
+                  Assert.assertArrayEquals(loaded, pc.getLoadedFields());//untouched, the shared view
+              }
+              Assert.assertEquals(f%2==0 && f<fields? "f"+f : null, new CachedX<Object>(Object.class, record, fields, 7L).getFieldValue(f));
+            }
+          }catch(Throwable _ex){
+            failure.compareAndSet(null, _ex);
+          }
+        }
+      };
+      workers[t].start();
+    }
+    start.countDown();
+    for (Thread t : workers){
+      t.join();
+    }
+    if (failure.get()!=null)
+      throw failure.get();
+    Assert.assertArrayEquals(snapshot, record);
+    Assert.assertArrayEquals(loaded, ArrayUtil.getLoaded(record));
+  }
+}
@@ -0,0 +1,118 @@
+package bestsss.cache;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+ /**
+  * @author Stanimir Simeonoff
+ */
+public class CompressedValueTest {
+  static String json(int length, long seed){
+    Random r = new Random(seed);
+    StringBuilder b = new StringBuilder(length+64).append('[');
+    while (b.length()<length){
+      b.append("{\"id\":").append(r.nextInt(100000)).append(",\"name\":\"item-").append(r.nextInt(1000))
+       .append("\",\"active\":").append(r.nextBoolean()).append(",\"tags\":[\"a\",\"b\"]},");
+    }
+    return b.append(']').toString();
+  }
+
+  @Test
+  public void lzRoundTrip(){
+    Random r = new Random(7);
+    for (int length : new int[]{16, 17, 100, 270, 271, 1000, 65536, 200000}){
+      byte[] runs = new byte[length];//long matches, overlapping copies
+      Arrays.fill(runs, (byte) 'a');
+      roundTrip(runs);
+
+      byte[] text = json(length, length).getBytes();
+      if (length>=100)//too short to repeat itself
+        roundTrip(text);
+
+      byte[] mixed = text.clone();//long literal runs
+      for (int i=0; i<mixed.length; i+=3){
+        mixed[i] = (byte) r.nextInt();
+      }
+      byte[] compressed = LZ.compress(mixed, 0);
+      if (compressed!=null){
+        byte[] back = new byte[mixed.length];
+        LZ.decompress(compressed, back);
+        Assert.assertArrayEquals(mixed, back);
+      }
+    }
+  }
+
+  private static void roundTrip(byte[] data){
+    byte[] compressed = LZ.compress(data, data.length>>>3);
+    Assert.assertNotNull(compressed);
+    byte[] back = new byte[data.length];
+    LZ.decompress(compressed, back);
+    Assert.assertArrayEquals(data, back);
+  }
+
+  @Test
+  public void incompressible(){
+    byte[] random = new byte[4096];
+    new Random(1).nextBytes(random);
+    Assert.assertNull(LZ.compress(random, 1));
+    Assert.assertSame(random, CompressedValue.wrap(random, 0));
+    Assert.assertNull(LZ.compress(new byte[4], 1));
+  }
+
+  @Test(expected=IllegalStateException.class)
+  public void corrupted(){
+    byte[] data = json(1000, 1).getBytes();
+    LZ.decompress(LZ.compress(data, 0), new byte[data.length+1]);
+  }
+
+  @Test
+  public void kinds(){
+    String latin = json(2000, 2)+"\u00e9";
+    String utf8 = json(2000, 3)+"\u0416\u4e2d";
+    String surrogates = json(2000, 4)+"\ud83d\ude00\ud800";//incl. an unpaired one
+    for (String s : new String[]{latin, utf8, surrogates}){
+      Object wrapped = CompressedValue.wrap(s, 0);
+      Assert.assertTrue(wrapped instanceof CompressedValue);
+      Assert.assertEquals(s, ((SCOWrapper) wrapped).unwrap());
+      Assert.assertTrue(Weigher.weigh(wrapped) < Weigher.weigh(s));
+    }
+
+    byte[] bytes = json(2000, 5).getBytes();
+    Object wrapped = CompressedValue.wrap(bytes, 0);
+    Assert.assertArrayEquals(bytes, (byte[]) ((SCOWrapper) wrapped).unwrap());
+    Assert.assertNotSame(((SCOWrapper) wrapped).unwrap(), ((SCOWrapper) wrapped).unwrap());//fresh copies
+
+    char[] chars = utf8.toCharArray();
+    wrapped = CompressedValue.wrap(chars, 0);
+    Assert.assertArrayEquals(chars, (char[]) ((SCOWrapper) wrapped).unwrap());
+  }
+
+  @Test
+  public void threshold(){
+    String s = json(600, 6);
+    Assert.assertSame(s, CompressedValue.wrap(s, s.length()+1));
+    Assert.assertTrue(CompressedValue.wrap(s, s.length()) instanceof CompressedValue);
+    Assert.assertSame(this, CompressedValue.wrap(this, 0));
+    Assert.assertNull(CompressedValue.wrap(null, 0));
+    Assert.assertSame(CachedX.NOT_PRESENT, CompressedValue.wrap(CachedX.NOT_PRESENT, 0));
+  }
+
+  @Test
+  public void cachedX(){
+    String s = json(2000, 8);
+    Object[] record = new Object[2+ArrayUtil.RESERVED];
+    record[0] = CompressedValue.wrap(s, 0);
+    record[1] = "small";
+    CachedX<Object> pc = new CachedX<Object>(Object.class, record, 2, null);
+    Assert.assertEquals(s, pc.getFieldValue(0));
+    Assert.assertEquals("small", pc.getFieldValue(1));
+  }
+}
@@ -0,0 +1,95 @@
+package bestsss.cache;
+
+import java.util.Random;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+/**
+ * JdoExtensions.COMPRESS: compression ratio, estimated footprint (Weigher) and get latency (CachedX.getFieldValue) per value size,
+ * plain vs compressed field. Data: json like text, prose like text (descriptions) and random bytes (incompressible, stored as is).
+ * args: comma separated sizes in chars/bytes (default 256,1024,4096,16384,65536)
+ *
+ * @author Stanimir Simeonoff
+ */
+public class CompressionBench {
+  static final int RECORDS = 256;
+  static final String[] WORDS = {"the", "cache", "record", "field", "value", "is", "stored", "in", "a", "compressed", "form", "and", "decoded", "on", "read", "large", "description", "of", "product", "with"};
+
+  public static void main(String[] args) {
+    String sizes = args.length>0? args[0] : "256,1024,4096,16384,65536";
+    for (int warmup=0; warmup<2; warmup++){
+      for (String s : sizes.split(",")){
+        int size = Integer.parseInt(s.trim());
+        run("json", size, warmup==0);
+        run("text", size, warmup==0);
+        run("random", size, warmup==0);
+      }
+    }
+  }
+
+  static Object value(String kind, int size, Random r){
+    switch (kind){
+      case "json": return CompressedValueTest.json(size, r.nextLong()).substring(0, size);
+      case "text":
+        StringBuilder b = new StringBuilder(size+16);
+        while (b.length()<size){
+          b.append(WORDS[r.nextInt(WORDS.length)]).append(r.nextInt(8)==0? ". " : " ");
+        }
+        return b.substring(0, size);
+      default:
+        byte[] bytes = new byte[size];
+        r.nextBytes(bytes);
+        return bytes;
+    }
+  }
+
+  static void run(String kind, int size, boolean quiet){
+    Random r = new Random(size);
+    CachedX<?>[] plain = new CachedX<?>[RECORDS];
+    CachedX<?>[] compressed = new CachedX<?>[RECORDS];
+    long rawWeight = 0;
+    long compressedWeight = 0;
+    long compressNanos = 0;
+    for (int i=0; i<RECORDS; i++){
+      Object value = value(kind, size, r);
+      long nanos = System.nanoTime();
+      Object wrapped = CompressedValue.wrap(value, CompressedValue.DEFAULT_THRESHOLD);
+      compressNanos += System.nanoTime()-nanos;
+      plain[i] = newCachedX(value);
+      compressed[i] = newCachedX(wrapped);
+      rawWeight += Weigher.weigh(value);
+      compressedWeight += Weigher.weigh(wrapped);
+    }
+    long plainNanos = get(plain);
+    long compressedNanos = get(compressed);
+    if (quiet)
+      return;
+
+    System.out.printf("%-6s %,7d: ratio %5.2f, footprint %,9d -> %,9d bytes, put +%,9.0f ns, get %,7.0f -> %,9.0f ns%n", kind, size,
+        (double) rawWeight/compressedWeight, rawWeight/RECORDS, compressedWeight/RECORDS, (double) compressNanos/RECORDS,
+        (double) plainNanos/RECORDS/ROUNDS, (double) compressedNanos/RECORDS/ROUNDS);
+  }
+
+  static final int ROUNDS = 20;
+  static int sink;
+
+  static long get(CachedX<?>[] records){
+    long nanos = System.nanoTime();
+    for (int round=0; round<ROUNDS; round++){
+      for (CachedX<?> pc : records){
+        Object value = pc.getFieldValue(0);
+        sink += value instanceof String? ((String) value).length() : ((byte[]) value).length;
+      }
+    }
+    return System.nanoTime()-nanos;
+  }
+
+  static CachedX<Object> newCachedX(Object value){
+    Object[] record = new Object[1+ArrayUtil.RESERVED];
+    record[0] = value;
+    return new CachedX<Object>(Object.class, record, 1, null);
+  }
+}
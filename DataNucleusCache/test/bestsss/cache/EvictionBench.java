@@ -0,0 +1,115 @@
+package bestsss.cache;
+
+import java.lang.management.ManagementFactory;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import jsr166e.ConcurrentHashMapV8;
+import bestsss.cache.sort.Scorer;
+import bestsss.cache.sort.Selection;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+/**
+ * Eviction candidate selection: getExpirable w/ a comparator (sample, CacheComparator.leastOf, Smoothsort - the former L2Cache path)
+ * vs getExpirable w/ a scorer (each sample scored once, primitive quickselect), ConcurrentHashMapV8 and ClosedHashTable.
+ * The score is L2Cache's eviction value (creation + 5*hits/4 + 2*access). Reports time and allocated bytes per call (com.sun.management.ThreadMXBean, HotSpot only)
+ * and the quality: the mean percentile of the victims' scores (lower is better, the ideal is ~0).
+ * args: entries (default 100000), comma separated batch sizes (default 1,16,128)
+ *
+ * @author Stanimir Simeonoff
+ */
+public class EvictionBench {
+  static final int CALLS = 20_000;
+
+  static int score(Object[] o){
+    return ArrayUtil.getCreationTime(o) + (ArrayUtil.getHits(o)*5 >> 2) + ArrayUtil.getAccessTime(o)*2;
+  }
+
+  static final Comparator<Object[]> COMPARATOR = new Comparator<Object[]>() {
+    @Override
+    public int compare(Object[] o1, Object[] o2) {
+      return score(o1)-score(o2);
+    }
+  };
+
+  static final Scorer<Object[]> SCORER = new Scorer<Object[]>() {
+    @Override
+    public int score(Object[] o) {
+      return EvictionBench.score(o);
+    }
+  };
+
+  public static void main(String[] args) {
+    final int entries = args.length>0? Integer.parseInt(args[0]) : 100_000;
+    final String batches = args.length>1? args[1] : "1,16,128";
+    final Random r = new Random(11);
+    final ConcurrentHashMapV8<Object, Object[]> chm = new ConcurrentHashMapV8<>();
+    final ClosedHashTable<Object, Object[]> closed = new ClosedHashTable<>();
+    final int[] scores = new int[entries];
+    for (int i=0; i<entries; i++){
+      final int created = r.nextInt(1<<16);
+      final Object[] record = ArrayUtil.restore(4+ArrayUtil.RESERVED, EvictionBench.class, 1L, r.nextInt(64), created, created+r.nextInt(1<<12));
+      scores[i] = score(record);
+      chm.put(i, record);
+      closed.put(i, record);
+    }
+    java.util.Arrays.sort(scores);
+
+    for (int warmup=0; warmup<2; warmup++){
+      for (String s : batches.split(",")){
+        final int batch = Integer.parseInt(s.trim());
+        run("CHMV8", chm, batch, scores, warmup==0);
+        run("Closed", closed, batch, scores, warmup==0);
+      }
+    }
+  }
+
+  static void run(String name, Table<Object, Object[]> table, int batch, int[] scores, boolean quiet){
+    final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    final long id = Thread.currentThread().getId();
+    final int calls = Math.max(200, CALLS/batch);
+
+    double rank = 0;
+    long bytes = threads.getThreadAllocatedBytes(id);
+    long nanos = System.nanoTime();
+    for (int i=0; i<calls; i++){
+      final List<Object> keys = table.getExpirable(batch, COMPARATOR);
+      for (Object key : keys){
+        rank += percentile(scores, score(table.get(key)));
+      }
+    }
+    final long comparatorNanos = System.nanoTime() - nanos;
+    final long comparatorBytes = threads.getThreadAllocatedBytes(id) - bytes;
+    final double comparatorRank = rank/(calls*batch);
+
+    rank = 0;
+    bytes = threads.getThreadAllocatedBytes(id);
+    nanos = System.nanoTime();
+    for (int i=0; i<calls; i++){
+      final Object[] victims = Selection.victims(batch);
+      final int count = table.getExpirable(batch, SCORER, victims);
+      for (int j=0; j<count; j++){
+        rank += percentile(scores, score(table.get(victims[j])));
+        victims[j] = null;
+      }
+    }
+    final long scorerNanos = System.nanoTime() - nanos;
+    final long scorerBytes = threads.getThreadAllocatedBytes(id) - bytes;
+    final double scorerRank = rank/(calls*batch);
+    if (quiet)
+      return;
+
+    System.out.printf("%-6s batch: %3d comparator: %,9.0f ns %,7d bytes, pct %4.2f%% | scorer: %,9.0f ns %,7d bytes, pct %4.2f%%%n", name, batch,
+        (double) comparatorNanos/calls, comparatorBytes/calls, comparatorRank, (double) scorerNanos/calls, scorerBytes/calls, scorerRank);
+  }
+
+  static double percentile(int[] sorted, int score){
+    int i = java.util.Arrays.binarySearch(sorted, score);
+    return 100.0*(i<0? -i-1 : i)/sorted.length;
+  }
+}
@@ -0,0 +1,67 @@
+package bestsss.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+ /**
+  * @author Stanimir Simeonoff
+ */
+public class FrequencySketchTest {
+  @Test
+  public void increment(){
+    FrequencySketch sketch = new FrequencySketch(512);
+    Long key = 17L;
+    Assert.assertEquals(0, sketch.frequency(key));
+    for (int i=1; i<=10; i++){
+      sketch.increment(key);
+      Assert.assertEquals(i, sketch.frequency(key));
+    }
+  }
+
+  @Test
+  public void saturate(){
+    FrequencySketch sketch = new FrequencySketch(512);
+    Long key = 33L;
+    for (int i=0; i<100; i++){
+      sketch.increment(key);
+    }
+    Assert.assertEquals(15, sketch.frequency(key));
+  }
+
+  @Test
+  public void aging(){
+    final int max = 512;
+    FrequencySketch sketch = new FrequencySketch(max);
+    Long hot = -1L;
+    for (int i=0; i<15; i++){
+      sketch.increment(hot);
+    }
+    for (long i=0; i<max*10; i++){//one hit wonders, enough to trigger the reset
+      sketch.increment(i);
+    }
+    int frequency = sketch.frequency(hot);
+    Assert.assertTrue(frequency < 15 && frequency>=7);
+  }
+
+  @Test
+  public void admission(){
+    Admission admission = new Admission(1000);
+    Long hot = 1L, cold = 2L;
+    for (int i=0; i<5; i++){
+      admission.record(hot);
+    }
+    admission.record(cold);
+    Assert.assertTrue(admission.admit(hot, cold));
+    Assert.assertFalse(admission.admit(cold, hot));
+
+    for (long i=0; i<16; i++){//the window is at least 16
+      Assert.assertNull(admission.enterWindow(i));
+    }
+    Assert.assertEquals(0L, admission.enterWindow(100L));
+  }
+}
@@ -0,0 +1,55 @@
+package bestsss.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+ /**
+  * @author Stanimir Simeonoff
+ */
+public class InvalidationsTest {
+  @Test
+  public void versions(){
+    Invalidations invalidations = new Invalidations(2, 1024);
+    Assert.assertTrue(invalidations.isEmpty());
+    invalidations.invalidate("k", 5L, 10);
+    Assert.assertTrue(invalidations.isStale("k", 4L, 10));
+    Assert.assertTrue(invalidations.isStale("k", 5L, 11));
+    Assert.assertTrue(invalidations.isStale("k", null, 11));
+    Assert.assertTrue(invalidations.isStale("k", 6, 11));//different type, not comparable
+    Assert.assertFalse(invalidations.isStale("k", 6L, 11));
+    Assert.assertFalse(invalidations.isStale("other", 1L, 11));
+    Assert.assertFalse(invalidations.isStale("k", 4L, 13));//expired
+    Assert.assertTrue(invalidations.isEmpty());
+  }
+
+  @Test
+  public void unknownVersion(){
+    Invalidations invalidations = new Invalidations(2, 1024);
+    invalidations.invalidate("k", null, 10);
+    Assert.assertTrue(invalidations.isStale("k", 100L, 12));
+    Assert.assertFalse(invalidations.isStale("k", 100L, 13));
+  }
+
+  @Test
+  public void purge(){
+    Invalidations invalidations = new Invalidations(2, 4);
+    for (int i=0; i<10; i++){
+      invalidations.invalidate(i, null, 10);
+    }
+    Assert.assertEquals(4, invalidations.size());//the oldest dropped
+    Assert.assertFalse(invalidations.isStale(0, null, 10));
+    Assert.assertTrue(invalidations.isStale(9, null, 10));
+
+    invalidations.invalidate(9, null, 11);//re-invalidated, the old marker must not remove the new one
+    invalidations.purge(13);
+    Assert.assertEquals(1, invalidations.size());
+    Assert.assertTrue(invalidations.isStale(9, null, 13));
+    invalidations.purge(14);
+    Assert.assertTrue(invalidations.isEmpty());
+  }
+}
@@ -0,0 +1,527 @@
+package bestsss.cache;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import jsr166e.ConcurrentHashMapV8;
+
+import org.datanucleus.cache.CachedPC;
+import org.junit.Assert;
+import org.junit.Test;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+ /**
+  * L2Cache end to end, see TestCache
+  * @author Stanimir Simeonoff
+ */
+public class L2CacheTest {
+  static class Item{}
+  static class Sub extends Item{}
+  static class Other{}
+  static class SubSub extends Sub{}
+  static class Sibling extends Item{}
+
+  static TestCache cache(String... properties){
+    return new TestCache(TestCache.context((Object[]) properties)
+        .register(Item.class, 2, null, JdoExtensions.EXPIRATION, "10")
+        .register(Sub.class, 2, Item.class)
+        .register(SubSub.class, 2, Sub.class)
+        .register(Sibling.class, 2, Item.class)
+        .register(Other.class, 2, null));
+  }
+
+  @Test
+  public void readWithinIdleSurvives(){
+    for (String readBuffer : new String[]{"false", "true"}){
+      TestCache cache = new TestCache(TestCache.context("bestsss.l2cache.readBuffer", readBuffer).register(Item.class, 2, null, JdoExtensions.EXPIRATION, "10"));
+      cache.put("k", TestCache.pc(Item.class, 1L, "a", "b"));
+      cache.put("other", TestCache.pc(Item.class, 1L, "c", "d"));
+      cache.advance(1);
+      Assert.assertNotNull(cache.get("other"));//drains the buffered reads of this second, if any
+      Assert.assertNotNull(cache.get("k"));//buffered, not applied yet
+      cache.advance(10);//11 since the put, 10 since the read
+      Assert.assertNotNull(readBuffer, cache.get("k"));
+      cache.advance(11);
+      Assert.assertNull(readBuffer, cache.get("k"));
+    }
+  }
+
+  @Test
+  public void snapshotLoadedOnce() throws Exception{
+    Path dir = Files.createTempDirectory("l2cache");
+    Path file = dir.resolve("snapshot");
+    try{
+      TestCache cache = new TestCache(TestCache.context("bestsss.l2cache.snapshot", file.toString()).register(Item.class, 2, null));
+      cache.put("k", TestCache.pc(Item.class, 1L, "a", "b"));
+      cache.close();
+      Assert.assertTrue(Files.isRegularFile(file));
+
+      TestCache restarted = new TestCache(TestCache.context("bestsss.l2cache.snapshot", file.toString()).register(Item.class, 2, null));
+      Assert.assertEquals("a", restarted.get("k").getFieldValue(0));
+      Assert.assertFalse(Files.exists(file));//a crash now must not restore it again
+
+      TestCache crashed = new TestCache(TestCache.context("bestsss.l2cache.snapshot", file.toString()).register(Item.class, 2, null));
+      Assert.assertNull(crashed.get("k"));
+    }finally{
+      Files.deleteIfExists(file);
+      Files.delete(dir);
+    }
+  }
+
+  @Test
+  public void pinExemptsFromExpiration(){
+    TestCache cache = cache();
+    cache.put("k", TestCache.pc(Item.class, 1L, "a", "b"));
+    cache.put("other", TestCache.pc(Item.class, 1L, "c", "d"));
+    cache.pin("k");
+    Assert.assertEquals(1, cache.getNumberOfPinnedObjects());
+    Assert.assertEquals(1, cache.getNumberOfUnpinnedObjects());
+    cache.advance(100);
+    Assert.assertNotNull(cache.get("k"));
+    Assert.assertNull(cache.get("other"));
+
+    cache.put("k", TestCache.pc(Item.class, 2L, "e", "f"));//a put keeps it pinned
+    Assert.assertEquals(1, cache.getNumberOfPinnedObjects());
+    cache.unpin("k");
+    Assert.assertEquals(0, cache.getNumberOfPinnedObjects());
+    Assert.assertEquals("e", cache.get("k").getFieldValue(0));
+    cache.advance(100);
+    Assert.assertNull(cache.get("k"));
+  }
+
+  @Test
+  public void pinByClass(){
+    TestCache cache = cache();
+    cache.put("item", TestCache.pc(Item.class, 1L, "a", "b"));
+    cache.put("sub", TestCache.pc(Sub.class, 1L, "a", "b"));
+    cache.put("other", TestCache.pc(Other.class, 1L, "a", "b"));
+    cache.pinAll(Item.class, false);
+    Assert.assertEquals(1, cache.getNumberOfPinnedObjects());
+    cache.pinAll(Item.class, true);
+    Assert.assertEquals(2, cache.getNumberOfPinnedObjects());
+    cache.put("sub2", TestCache.pc(Sub.class, 1L, "a", "b"));//placed pinned
+    Assert.assertEquals(3, cache.getNumberOfPinnedObjects());
+
+    cache.unpinAll(Item.class, true);//the pin w/o subclasses remains
+    Assert.assertEquals(1, cache.getNumberOfPinnedObjects());
+    cache.unpinAll(Item.class, false);
+    Assert.assertEquals(0, cache.getNumberOfPinnedObjects());
+    Assert.assertEquals(4, cache.getSize());
+  }
+
+  @Test
+  public void evictClassIncludesPinned(){
+    TestCache cache = cache();
+    cache.put("item", TestCache.pc(Item.class, 1L, "a", "b"));
+    cache.put("pinned", TestCache.pc(Item.class, 1L, "a", "b"));
+    cache.put("sub", TestCache.pc(Sub.class, 1L, "a", "b"));
+    cache.put("other", TestCache.pc(Other.class, 1L, "a", "b"));
+    cache.pin("pinned");
+    cache.evictAll(Item.class, false);
+    Assert.assertNull(cache.get("item"));
+    Assert.assertNull(cache.get("pinned"));
+    Assert.assertNotNull(cache.get("sub"));
+    Assert.assertEquals(2, cache.getSize());
+
+    cache.put("pinned", TestCache.pc(Item.class, 2L, "a", "b"));//the pin remains
+    Assert.assertEquals(1, cache.getNumberOfPinnedObjects());
+  }
+
+  @Test
+  public void concurrentPutAndUnpin() throws Throwable{
+    final TestCache cache = cache();
+    final int keys = 16;
+    final AtomicLong version = new AtomicLong();
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    final CyclicBarrier start = new CyclicBarrier(3);
+    List<Thread> threads = new ArrayList<>();
+    for (int t=0; t<2; t++){
+      threads.add(new Thread(){
+        public void run(){
+          try{
+            start.await();
+            for (int i=0; i<50_000; i++){
+              cache.put(i % keys, TestCache.pc(Item.class, version.incrementAndGet(), "a", "b"));
+            }
+          }catch(Throwable _ex){
+            failure.compareAndSet(null, _ex);
+          }
+        }
+      });
+    }
+    threads.add(new Thread(){
+      public void run(){
+        try{
+          start.await();
+          ThreadLocalRandom r = ThreadLocalRandom.current();
+          for (int i=0; i<50_000; i++){
+            Integer oid = r.nextInt(keys);
+            if (r.nextBoolean()){
+              cache.pin(oid);
+            } else{
+              cache.unpin(oid);
+            }
+            if ((i & 1023)==0){
+              cache.pinAll(Item.class, false);
+              cache.unpinAll(Item.class, false);
+            }
+          }
+        }catch(Throwable _ex){
+          failure.compareAndSet(null, _ex);
+        }
+      }
+    });
+    for (Thread t : threads){
+      t.start();
+    }
+    for (Thread t : threads){
+      t.join();
+    }
+    if (failure.get()!=null)
+      throw failure.get();
+    for (int i=0; i<keys; i++){
+      cache.unpin(i);
+    }
+    Assert.assertEquals(0, cache.getNumberOfPinnedObjects());//none stuck in the pinned region
+    Assert.assertEquals(keys, cache.getNumberOfUnpinnedObjects());//and none in both
+  }
+
+  /**
+   * An oid w/ a one-off hook run when equals is called within the given method, e.g. in the middle of a put (w/ another instance of the oid)
+   */
+  static class HookKey{
+    final Class<?> clazz;
+    final String method;
+    volatile Runnable hook;
+
+    HookKey(Class<?> clazz, String method){
+      this.clazz = clazz;
+      this.method = method;
+    }
+
+    @Override
+    public int hashCode() {
+      return 1;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof HookKey))
+        return false;
+      final Runnable hook = this.hook;
+      if (hook!=null && calledFrom()){
+        this.hook = null;
+        hook.run();
+      }
+      return true;
+    }
+
+    private boolean calledFrom(){
+      for (StackTraceElement e : new Throwable().getStackTrace()){
+        if (method.equals(e.getMethodName()) && clazz.getName().equals(e.getClassName()))
+          return true;
+      }
+      return false;
+    }
+  }
+
+  @Test
+  public void unpinDuringPut(){
+    final TestCache cache = cache();
+    final HookKey pinned = new HookKey(L2Cache.class, "isPinned"), put = new HookKey(L2Cache.class, "isPinned");
+    cache.pin(pinned);
+    cache.put(pinned, TestCache.pc(Item.class, 1L, "a", "b"));
+    Assert.assertEquals(1, cache.getNumberOfPinnedObjects());
+
+    put.hook = new Runnable(){//after the put has chosen the pinned region, before the write
+      public void run(){
+        cache.unpin(pinned);
+      }
+    };
+    cache.put(put, TestCache.pc(Item.class, 2L, "c", "d"));
+    Assert.assertNull(put.hook);
+    Assert.assertEquals(0, cache.getNumberOfPinnedObjects());
+    Assert.assertEquals(1, cache.getNumberOfUnpinnedObjects());
+    Assert.assertEquals("c", cache.get(pinned).getFieldValue(0));
+  }
+
+
+  @Test
+  @SuppressWarnings("rawtypes")
+  public void putAllPinnedAndUnpinned(){
+    TestCache cache = cache();
+    cache.pin("pinned");
+    cache.pinAll(Sub.class, false);
+    Map<Object, CachedPC> objs = new LinkedHashMap<>();
+    objs.put("item", TestCache.pc(Item.class, 1L, "a", "b"));
+    objs.put("pinned", TestCache.pc(Item.class, 1L, "c", "d"));
+    objs.put("sub", TestCache.pc(Sub.class, 1L, "e", "f"));
+    cache.putAll(objs);
+    Assert.assertEquals(2, cache.getNumberOfPinnedObjects());
+    Assert.assertEquals(1, cache.getNumberOfUnpinnedObjects());
+    Assert.assertEquals("c", cache.get("pinned").getFieldValue(0));
+
+    cache.advance(100);
+    Assert.assertNull(cache.get("item"));
+    Assert.assertEquals("e", cache.get("sub").getFieldValue(0));
+    cache.unpinAll(Sub.class, false);
+    Assert.assertEquals(1, cache.getNumberOfPinnedObjects());
+  }
+
+  @Test
+  @SuppressWarnings("rawtypes")
+  public void putAllSkipsStale(){
+    TestCache cache = cache();
+    cache.pin("pinned");
+    cache.put("item", TestCache.pc(Item.class, 1L, "a", "b"));
+    cache.put("pinned", TestCache.pc(Item.class, 1L, "a", "b"));
+    cache.evict("item");
+    cache.evict("pinned");
+    Assert.assertEquals(0, cache.getSize());
+
+    Map<Object, CachedPC> objs = new LinkedHashMap<>();//read before the eviction
+    objs.put("item", TestCache.pc(Item.class, 1L, "a", "b"));
+    objs.put("pinned", TestCache.pc(Item.class, 1L, "a", "b"));
+    objs.put("fresh", TestCache.pc(Item.class, 1L, "a", "b"));
+    cache.putAll(objs);
+    Assert.assertNull(cache.get("item"));
+    Assert.assertNull(cache.get("pinned"));
+    Assert.assertNotNull(cache.get("fresh"));
+
+    objs.clear();//the updated state
+    objs.put("item", TestCache.pc(Item.class, 2L, "c", "d"));
+    objs.put("pinned", TestCache.pc(Item.class, 2L, "c", "d"));
+    cache.putAll(objs);
+    Assert.assertEquals("c", cache.get("item").getFieldValue(0));
+    Assert.assertEquals("c", cache.get("pinned").getFieldValue(0));
+    Assert.assertEquals(1, cache.getNumberOfPinnedObjects());
+  }
+
+  @Test
+  public void perClassIdle(){
+    TestCache cache = cache();
+    cache.put("item", TestCache.pc(Item.class, 1L, "a", "b"));
+    cache.put("sub", TestCache.pc(Sub.class, 1L, "a", "b"));
+    cache.put("other", TestCache.pc(Other.class, 1L, "a", "b"));
+    cache.advance(10);
+    Assert.assertNotNull(cache.get("item"));//read, idle since now
+    cache.advance(11);
+    Assert.assertNull(cache.get("item"));
+    Assert.assertNull(cache.get("sub"));//inherited
+    Assert.assertNotNull(cache.get("other"));//the default, 45
+    cache.advance(46);
+    Assert.assertNull(cache.get("other"));
+  }
+
+  @Test
+  public void perClassLifetime(){
+    TestCache cache = new TestCache(TestCache.context().register(Item.class, 2, null, JdoExtensions.EXPIRATION, "10", JdoExtensions.MAX_LIFETIME, "25"));
+    cache.put("item", TestCache.pc(Item.class, 1L, "a", "b"));
+    for (int i=0; i<5; i++){//never idle, until the lifetime
+      cache.advance(5);
+      Assert.assertNotNull(cache.get("item"));
+    }
+    cache.advance(1);
+    Assert.assertNull(cache.get("item"));
+  }
+
+  @Test
+  public void evictOnly(){
+    TestCache cache = new TestCache(TestCache.context()
+        .register(Item.class, 2, null, JdoExtensions.EXPIRATION, "1", JdoExtensions.EVICT_ONLY, "true")
+        .register(Sub.class, 2, Item.class));
+    cache.put("item", TestCache.pc(Item.class, 1L, "a", "b"));
+    cache.put("sub", TestCache.pc(Sub.class, 1L, "a", "b"));
+    cache.advance(100_000);
+    Assert.assertNotNull(cache.get("item"));
+    Assert.assertNotNull(cache.get("sub"));
+    cache.evict("item");//explicit eviction still applies
+    Assert.assertNull(cache.get("item"));
+  }
+
+  @Test
+  public void evictClassHierarchy(){
+    TestCache cache = cache();
+    cache.put("item", TestCache.pc(Item.class, 1L, "a", "b"));
+    cache.put("sub", TestCache.pc(Sub.class, 1L, "a", "b"));
+    cache.put("subSub", TestCache.pc(SubSub.class, 1L, "a", "b"));
+    cache.put("sibling", TestCache.pc(Sibling.class, 1L, "a", "b"));
+    cache.put("other", TestCache.pc(Other.class, 1L, "a", "b"));
+    cache.put("moved", TestCache.pc(Sub.class, 1L, "a", "b"));
+    cache.put("moved", TestCache.pc(Other.class, 1L, "a", "b"));//stale membership of Sub
+
+    cache.evictAll(Sub.class, false);
+    Assert.assertNull(cache.get("sub"));
+    Assert.assertNotNull(cache.get("subSub"));
+
+    cache.put("sub", TestCache.pc(Sub.class, 2L, "a", "b"));
+    cache.evictAll(Sub.class, true);
+    Assert.assertNull(cache.get("sub"));
+    Assert.assertNull(cache.get("subSub"));
+    Assert.assertNotNull(cache.get("item"));//the superclass
+    Assert.assertNotNull(cache.get("sibling"));
+    Assert.assertNotNull(cache.get("moved"));
+    Assert.assertEquals(4, cache.getSize());
+
+    cache.evictAll(Item.class, true);
+    Assert.assertNull(cache.get("item"));
+    Assert.assertNull(cache.get("sibling"));
+    Assert.assertEquals(2, cache.getSize());
+  }
+
+  @Test
+  public void outdatedPutSkipped(){
+    TestCache cache = cache();
+    cache.put("k", TestCache.pc(Item.class, 2L, "a", "b"));
+    cache.put("k", TestCache.pc(Item.class, 1L, "c", "d"));//read before the update
+    Assert.assertEquals("a", cache.get("k").getFieldValue(0));
+    Assert.assertEquals(1, cache.getCacheStatistics().getOutdatedPuts());
+
+    cache.put("k", TestCache.pc(Item.class, 3L, "e", "f"));
+    Assert.assertEquals("e", cache.get("k").getFieldValue(0));
+    cache.put("k", TestCache.pc(Item.class, null, "g", "h"));//w/o a version there is nothing to compare
+    Assert.assertEquals("g", cache.get("k").getFieldValue(0));
+    Assert.assertEquals(1, cache.getCacheStatistics().getOutdatedPuts());
+  }
+
+  @Test
+  public void redundantPutTouches(){
+    TestCache cache = cache();
+    cache.put("k", TestCache.pc(Item.class, 1L, "a", "b"));
+    Assert.assertEquals(1, cache.getCacheStatistics().getPuts());
+    final Object[] record = ((CachedX<?>) cache.get("k")).getArray();
+    final long weight = cache.getCacheStatistics().getTotalWeight();
+    cache.advance(8);
+    cache.put("k", TestCache.pc(Item.class, 1L, "a", "b"));//a read-only transaction
+    cache.put("k", TestCache.pc(Item.class, 1L, "c", null));//no new fields, the cached state is the same version
+    Assert.assertEquals(2, cache.getCacheStatistics().getRedundantPuts());
+    Assert.assertEquals(1, cache.getCacheStatistics().getPuts());
+    Assert.assertEquals(weight, cache.getCacheStatistics().getTotalWeight());
+    cache.advance(8);//16 since the put, 8 since the redundant ones
+    Assert.assertSame(record, ((CachedX<?>) cache.get("k")).getArray());//not rebuilt
+    Assert.assertEquals("a", cache.get("k").getFieldValue(0));
+  }
+
+  @Test
+  public void sameVersionMerges(){
+    TestCache cache = cache();
+    cache.put("k", TestCache.pc(Item.class, 1L, "a", null));
+    cache.put("k", TestCache.pc(Item.class, 1L, null, "b"));//another fetch plan
+    Assert.assertEquals("a", cache.get("k").getFieldValue(0));
+    Assert.assertEquals("b", cache.get("k").getFieldValue(1));
+    Assert.assertEquals(1, cache.getCacheStatistics().getMergedPuts());
+
+    cache.pin("p");
+    cache.put("p", TestCache.pc(Item.class, 1L, "a", null));
+    cache.put("p", TestCache.pc(Item.class, 1L, null, "b"));
+    Assert.assertEquals(1, cache.getNumberOfPinnedObjects());//merged in place
+    Assert.assertEquals("a", cache.get("p").getFieldValue(0));
+    Assert.assertEquals("b", cache.get("p").getFieldValue(1));
+
+    cache.put("k", TestCache.pc(Item.class, 2L, null, "c"));//a new version replaces, no merge
+    Assert.assertNull(cache.get("k").getFieldValue(0));
+    Assert.assertEquals(2, cache.getCacheStatistics().getMergedPuts());
+  }
+
+  @Test
+  public void mergeRetried(){
+    final TestCache cache = cache();
+    final HookKey cached = new HookKey(ConcurrentHashMapV8.class, "replaceNode"), put = new HookKey(ConcurrentHashMapV8.class, "replaceNode");
+    cache.put(cached, TestCache.pc(Item.class, 1L, "a", null));
+    put.hook = new Runnable(){//a concurrent merge wins the CAS
+      public void run(){
+        cache.put(cached, TestCache.pc(Item.class, 1L, null, "c"));
+      }
+    };
+    cache.put(put, TestCache.pc(Item.class, 1L, null, "b"));
+    Assert.assertNull(put.hook);
+    Assert.assertEquals(2, cache.getCacheStatistics().getMergedPuts());
+    Assert.assertEquals("a", cache.get(cached).getFieldValue(0));//merged w/ the current record, not put over it
+    Assert.assertEquals("b", cache.get(cached).getFieldValue(1));
+  }
+
+  @Test
+  public void concurrentMerges() throws Throwable{
+    final TestCache cache = new TestCache(TestCache.context().register(Item.class, 8, null));
+    final int fields = 8;
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    for (int round=0; round<200; round++){
+      final Object oid = round;
+      cache.put(oid, TestCache.pc(Item.class, 1L, new Object[fields]));
+      final CyclicBarrier start = new CyclicBarrier(fields);
+      List<Thread> threads = new ArrayList<>();
+      for (int f=0; f<fields; f++){
+        final Object[] values = new Object[fields];
+        values[f] = f;
+        threads.add(new Thread(){
+          public void run(){
+            try{
+              start.await();
+              cache.put(oid, TestCache.pc(Item.class, 1L, values));
+            }catch(Throwable _ex){
+              failure.compareAndSet(null, _ex);
+            }
+          }
+        });
+      }
+      for (Thread t : threads){
+        t.start();
+      }
+      for (Thread t : threads){
+        t.join();
+      }
+      if (failure.get()!=null)
+        throw failure.get();
+      CachedPC<?> pc = cache.get(oid);
+      Assert.assertEquals(1L, pc.getVersion());
+      for (int f=0; f<fields; f++){//the union of all the fetch plans
+        Assert.assertTrue("field "+f+", round "+round, pc.getLoadedFields()[f]);
+        Assert.assertEquals(f, pc.getFieldValue(f));
+      }
+    }
+  }
+
+  @Test
+  public void resumedExpirationKeepsReplaced(){
+    resumedExpirationKeepsReplaced("0");
+    resumedExpirationKeepsReplaced("64");//the removed records are recycled, the suspended iterator may hold one reused by another entry
+  }
+
+  private void resumedExpirationKeepsReplaced(String recycle){
+    TestCache cache = new TestCache(TestCache.context("bestsss.l2cache.recycle", recycle, "bestsss.l2cache.maintenance", new Executor(){//never runs, no expiration but the calls below
+      public void execute(Runnable command){
+      }
+    }).register(Item.class, 2, null, JdoExtensions.EXPIRATION, "10"));
+    final int n = 256;
+    for (int i=0; i<n; i++){
+      cache.put(i, TestCache.pc(Item.class, 1L, "a", "b"));
+    }
+    final long weight = cache.getCacheStatistics().getTotalWeight();
+    Assert.assertTrue(cache.sharedExpire());//nothing expired, the iterator is suspended
+    cache.advance(100);
+    for (int i=0; i<n; i++){//new entries (w/o an eviction marker), the suspended iterator still holds a removed one w/ its expired record
+      cache.pin(i);
+      cache.put(i, TestCache.pc(Item.class, 2L, "c", "d"));
+      cache.unpin(i);
+    }
+    while (cache.sharedExpire());
+    Assert.assertEquals(recycle, n, cache.getSize());
+    for (int i=0; i<n; i++){
+      Assert.assertEquals("c", cache.get(i).getFieldValue(0));
+    }
+    Assert.assertEquals(weight, cache.getCacheStatistics().getTotalWeight());
+  }
+}
@@ -0,0 +1,108 @@
+package bestsss.cache;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+ /**
+  * @author Stanimir Simeonoff
+ */
+public class MaintenanceTest {
+  static class Overshoot implements Maintenance.Task{
+    final AtomicInteger overshoot = new AtomicInteger();
+    final AtomicInteger rounds = new AtomicInteger();
+    @Override
+    public int maintain() {
+      rounds.incrementAndGet();
+      return Math.max(0, overshoot.addAndGet(-10));//10 elements per round
+    }
+  }
+
+  @Test
+  public void executor() throws Exception{
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try{
+      Overshoot task = new Overshoot();
+      Maintenance maintenance = new Maintenance(task, executor);
+      maintenance.start("test");
+      task.overshoot.set(100);
+      maintenance.signal();
+      maintenance.signal();//coalesced
+      awaitQuiet(executor);
+      Assert.assertTrue(task.overshoot.get()<=0);
+      Assert.assertTrue(task.rounds.get()>=10 && task.rounds.get()<=12);
+
+      task.overshoot.set(10_000);//more than MAX_ROUNDS at once, continues on the next signal
+      maintenance.signal();
+      awaitQuiet(executor);
+      Assert.assertTrue(task.overshoot.get()>0);
+      maintenance.signal();
+      awaitQuiet(executor);
+      maintenance.close();
+    }finally{
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void rejectingExecutor() throws Exception{
+    final AtomicInteger submitted = new AtomicInteger();
+    Executor rejecting = new Executor(){
+      @Override
+      public void execute(Runnable command) {
+        submitted.incrementAndGet();
+        throw new RejectedExecutionException();
+      }
+    };
+    Overshoot task = new Overshoot();
+    Maintenance maintenance = new Maintenance(task, rejecting);
+    maintenance.start("test");
+    task.overshoot.set(100);
+    maintenance.signal();//no exception, a round inline
+    Assert.assertEquals(1, task.rounds.get());
+    Assert.assertEquals(90, task.overshoot.get());
+
+    maintenance.signal();//not stuck as scheduled: the executor is tried again
+    Assert.assertEquals(2, submitted.get());
+    Assert.assertEquals(2, task.rounds.get());
+
+    maintenance.close();
+    maintenance.signal();
+    Assert.assertEquals(2, task.rounds.get());
+  }
+
+  @Test
+  public void thread() throws Exception{
+    Overshoot task = new Overshoot();
+    Maintenance maintenance = new Maintenance(task, null);
+    maintenance.start("test-maintenance");
+    try{
+      task.overshoot.set(1000);
+      maintenance.signal();
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+      while (task.overshoot.get()>0 && System.nanoTime() < deadline){
+        Thread.sleep(1);
+      }
+      Assert.assertTrue(task.overshoot.get()<=0);
+    }finally{
+      maintenance.close();
+    }
+  }
+
+  private static void awaitQuiet(ExecutorService executor) throws Exception{
+    for (int i=0; i<3; i++){//the task might resubmit itself
+      executor.submit(new Runnable(){public void run(){}}).get();
+    }
+  }
+}
@@ -0,0 +1,46 @@
+package bestsss.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+ /**
+  * @author Stanimir Simeonoff
+ */
+public class NegativeCacheTest {
+  @Test
+  public void addRemoveExpire(){
+    NegativeCache negative = new NegativeCache(1024, 5);
+    negative.add(42L, 100);
+    Assert.assertTrue(negative.contains(42L, 100));
+    Assert.assertTrue(negative.contains(42L, 105));
+    Assert.assertFalse(negative.contains(43L, 100));
+    Assert.assertFalse(negative.contains(42L, 106));//expired
+    Assert.assertFalse(negative.contains(42L, 100));//and cleared
+
+    negative.add(42L, 100);
+    negative.remove(42L);
+    Assert.assertFalse(negative.contains(42L, 100));
+  }
+
+  @Test
+  public void bounded(){
+    NegativeCache negative = new NegativeCache(64, 5);
+    for (long i=0; i<10000; i++){
+      negative.add(i, 0);
+    }
+    int present = 0;
+    for (long i=0; i<10000; i++){
+      if (negative.contains(i, 0))
+        present++;
+    }
+    Assert.assertTrue(present<=64);
+    Assert.assertTrue(negative.contains(9999L, 0));//the last one always stays
+    negative.clear();
+    Assert.assertFalse(negative.contains(9999L, 0));
+  }
+}
@@ -0,0 +1,137 @@
+package bestsss.cache;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+ /**
+  * @author Stanimir Simeonoff
+ */
+public class OffHeapTierTest {
+  @Test
+  public void codec() throws Exception{
+    RecordCodec codec = new RecordCodec();
+    HashMap<String, Integer> map = new HashMap<>();
+    map.put("a", 1);
+    Object[] fields = {null, CachedX.NOT_PRESENT, "\u017elu\u0165", 7, 8L, true, 1.5d, (short) 3, (byte) 4, 'c', 2.5f,
+        new Date(12345), new BigDecimal("12.340"), BigInteger.TEN, new byte[]{1, 2}, TimeUnit.DAYS,
+        MapReplacement.wrap(map), CollectionReplacement.wrap(new ArrayList<>(Arrays.asList("x", "y"))), new TreeSet<>(Arrays.asList(3, 1, 2))};
+    Object[] record = ArrayUtil.restore(fields.length + ArrayUtil.RESERVED, String.class, 5L, 3, 100, 110);
+    System.arraycopy(fields, 0, record, 0, fields.length);
+
+    Object[] decoded = codec.decode(codec.encode(record));
+    Assert.assertEquals(record.length, decoded.length);
+    Assert.assertSame(String.class, ArrayUtil.getClass(decoded));
+    Assert.assertEquals(5L, ArrayUtil.getVersion(decoded));
+    Assert.assertEquals(3, ArrayUtil.getHits(decoded));
+    Assert.assertEquals(100, ArrayUtil.getCreationTime(decoded));
+    Assert.assertEquals(110, ArrayUtil.getAccessTime(decoded));
+    for (int i=0; i<fields.length; i++){
+      Object expected = fields[i] instanceof SCOWrapper? ((SCOWrapper) fields[i]).unwrap() : fields[i];
+      Object actual = decoded[i] instanceof SCOWrapper? ((SCOWrapper) decoded[i]).unwrap() : decoded[i];
+      Assert.assertTrue("field "+i, Arrays.deepEquals(new Object[]{expected}, new Object[]{actual}));
+    }
+    Assert.assertTrue(decoded[16] instanceof SCOWrapper);
+
+    record[0] = new Object();//not serializable
+    Assert.assertNull(codec.encode(record));
+  }
+
+  @Test
+  public void putRemove(){
+    OffHeapTier tier = new OffHeapTier(1<<20);
+    for (int i=0; i<1000; i++){
+      Assert.assertEquals(0, tier.put(i, i&1, new byte[]{(byte) i, 1, 2}));
+    }
+    Assert.assertEquals(1000, tier.size());
+    Assert.assertArrayEquals(new byte[]{42, 1, 2}, tier.remove(42));
+    Assert.assertNull(tier.remove(42));
+    Assert.assertTrue(tier.delete(43));
+    Assert.assertFalse(tier.delete(43));
+
+    tier.put(44, 0, new byte[]{9});//replace
+    Assert.assertArrayEquals(new byte[]{9}, tier.remove(44));
+    Assert.assertEquals(997, tier.size());
+
+    Assert.assertEquals(499, tier.removeTags(new int[]{1}));//odd ones, minus 43
+    Assert.assertNull(tier.remove(45));
+    Assert.assertNotNull(tier.remove(46));
+    tier.clear();
+    Assert.assertTrue(tier.isEmpty());
+    Assert.assertNull(tier.remove(48));
+  }
+
+  @Test
+  public void budget(){
+    try{
+      new OffHeapTier(OffHeapTier.MIN_BUDGET-1);
+      Assert.fail();
+    }catch(IllegalArgumentException _expected){
+    }
+    for (long budget : new long[]{OffHeapTier.MIN_BUDGET, OffHeapTier.MIN_BUDGET*3-1, 1<<20, (1L<<32)+12345}){
+      OffHeapTier tier = new OffHeapTier(budget);
+      Assert.assertTrue(budget+": "+tier.capacity(), tier.capacity()<=budget && tier.capacity()>budget/2);
+    }
+  }
+
+  @Test
+  public void bounded(){
+    OffHeapTier tier = new OffHeapTier(1<<20);
+    final byte[] data = new byte[1000];
+    int evicted = 0;
+    for (int i=0; i<10000; i++){
+      evicted += tier.put(i, 0, data);
+    }
+    Assert.assertEquals(10000, tier.size() + evicted);
+    Assert.assertTrue(tier.size()*1004L <= tier.capacity());
+    Assert.assertNull(tier.remove(0));//FIFO
+    Assert.assertNotNull(tier.remove(9999));
+    Assert.assertEquals(-1, tier.put(-1, 0, new byte[(int) tier.capacity()]));
+  }
+
+  @Test
+  public void filter(){
+    OffHeapTier tier = new OffHeapTier(1<<20);
+    final byte[] data = new byte[100];
+    int evicted = 0;
+    for (int i=0; i<20000; i++){//rebuilds the index, recycles slabs
+      evicted += tier.put(i, i&1, data);
+    }
+    Assert.assertTrue(evicted > 0);
+    int present = 0, filtered = 0;
+    for (int i=0; i<20000; i++){
+      if (tier.mayContain(i)){
+        filtered++;
+      } else{
+        Assert.assertFalse(tier.delete(i));//never a false negative
+      }
+    }
+    for (int i=0; i<20000; i++){
+      if (tier.remove(i)!=null)
+        present++;
+    }
+    Assert.assertEquals(evicted+present, 20000);
+    Assert.assertTrue(filtered+" vs "+present, filtered < present*2);//absent keys are mostly filtered
+    for (int i=-1000; i<40000; i++){//nothing left, all counters are back to zero
+      Assert.assertFalse(tier.mayContain(i));
+    }
+
+    tier.put("k", 0, data);
+    Assert.assertTrue(tier.mayContain("k"));
+    tier.clear();
+    Assert.assertFalse(tier.mayContain("k"));
+  }
+}
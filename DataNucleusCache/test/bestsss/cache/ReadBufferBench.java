@@ -0,0 +1,98 @@
+package bestsss.cache;
+
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ThreadLocalRandom;
+
+import jsr166e.ConcurrentHashMapV8;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+/**
+ * MapLoops style: N threads reading a few hot records out of a ConcurrentHashMapV8, recording each access either
+ * directly into the shared record (ArrayUtil.setTimeAndHitCount) or via ReadBuffer (drained by the reader finding a full stripe).
+ * args: maxThreads (default 2*cpus), hot keys (default 16), ops per thread (default 20M)
+ *
+ * @author Stanimir Simeonoff
+ */
+public class ReadBufferBench {
+  static final int TIME = 1000;
+
+  public static void main(String[] args) throws Exception {
+    final int maxThreads = args.length>0? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors()*2;
+    final int keys = args.length>1? Integer.parseInt(args[1]) : 16;
+    final int ops = args.length>2? Integer.parseInt(args[2]) : 20_000_000;
+
+    final ConcurrentHashMapV8<Integer, Object[]> table = new ConcurrentHashMapV8<>();
+    for (int i=0; i<keys; i++){
+      Object[] record = new Object[4+ArrayUtil.RESERVED];
+      ArrayUtil.setTimeAndAccess(record, TIME);
+      table.put(i, record);
+    }
+    for (int warmup=0; warmup<2; warmup++){
+      System.out.println(warmup==0? "warmup" : "measure");
+      for (int threads=1; threads<=maxThreads; threads<<=1){
+        long direct = run(table, keys, threads, ops, null);
+        long buffered = run(table, keys, threads, ops, new ReadBuffer(Runtime.getRuntime().availableProcessors()));
+        System.out.printf("threads: %3d  direct: %8.1f Mops/s  buffered: %8.1f Mops/s%n", threads, mops(threads, ops, direct), mops(threads, ops, buffered));
+      }
+    }
+  }
+
+  static double mops(int threads, int ops, long nanos){
+    return threads * (double) ops * 1e3 / nanos;
+  }
+
+  static long run(final ConcurrentHashMapV8<Integer, Object[]> table, final int keys, int threads, final int ops, final ReadBuffer buffer) throws Exception{
+    final BarrierTimer timer = new BarrierTimer();
+    final CyclicBarrier barrier = new CyclicBarrier(threads, timer);
+    Thread[] workers = new Thread[threads];
+    for (int t=0; t<threads; t++){
+      workers[t] = new Thread(){
+        public void run(){
+          await(barrier);
+          int sum = 0;
+          ThreadLocalRandom r = ThreadLocalRandom.current();
+          for (int i=0; i<ops; i++){
+            Object[] record = table.get(r.nextInt(keys));
+            if (buffer==null){
+              ArrayUtil.setTimeAndHitCount(record, TIME);
+            } else if (buffer.record(record, TIME)){
+              buffer.drain(TIME);
+            }
+            sum += record.length;
+          }
+          if (sum==42)
+            System.out.print("");//keep the loop alive
+          await(barrier);
+        }
+      };
+      workers[t].start();
+    }
+    for (Thread t : workers){
+      t.join();
+    }
+    return timer.getTime();
+  }
+
+  private static void await(CyclicBarrier barrier){
+    try{
+      barrier.await();
+    }catch(Exception _ex){
+      throw new IllegalStateException(_ex);
+    }
+  }
+
+  static final class BarrierTimer implements Runnable{//as in test.LoopHelpers
+    volatile long start, end;
+    public void run(){
+      long now = System.nanoTime();
+      if (start==0) start = now; else end = now;
+    }
+    long getTime(){
+      return end - start;
+    }
+  }
+}
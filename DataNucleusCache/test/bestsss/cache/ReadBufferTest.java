@@ -0,0 +1,75 @@
+package bestsss.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+ /**
+  * @author Stanimir Simeonoff
+ */
+public class ReadBufferTest {
+  private static Object[] newRecord(int time){
+    Object[] record = new Object[2+ArrayUtil.RESERVED];
+    ArrayUtil.setTimeAndAccess(record, time);
+    return record;
+  }
+
+  @Test
+  public void appliedOnDrain(){
+    ReadBuffer buffer = new ReadBuffer(1);
+    Object[] record = newRecord(100);
+    buffer.drain(100);
+    for (int i=0; i<5; i++){
+      Assert.assertFalse(buffer.record(record, 100));
+    }
+    Assert.assertEquals(0, ArrayUtil.getHits(record));//not yet
+    Assert.assertEquals(5, buffer.drain(101));
+    Assert.assertEquals(5, ArrayUtil.getHits(record));
+    Assert.assertEquals(100, ArrayUtil.getAccessTime(record));//the time of the read, not of the drain
+    Assert.assertEquals(0, buffer.drain(101));
+    Assert.assertTrue(buffer.record(record, 102));//new second
+  }
+
+  @Test
+  public void lossy(){
+    ReadBuffer buffer = new ReadBuffer(1);
+    Object[] record = newRecord(100);
+    buffer.drain(100);
+    boolean due = false;
+    for (int i=0; i<1000; i++){
+      due |= buffer.record(record, 100);
+    }
+    Assert.assertTrue(due);//the stripe has filled
+    int drained = buffer.drain(100);
+    Assert.assertTrue(drained > 0 && drained <= 32);
+    Assert.assertEquals(drained, ArrayUtil.getHits(record));
+  }
+
+  @Test
+  public void concurrent() throws Exception{
+    final ReadBuffer buffer = new ReadBuffer(4);
+    final Object[] record = newRecord(0);
+    Thread[] threads = new Thread[4];
+    for (int t=0; t<threads.length; t++){
+      threads[t] = new Thread(){
+        public void run(){
+          for (int i=0; i<100000; i++){
+            if (buffer.record(record, 0))
+              buffer.drain(0);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread t : threads){
+      t.join();
+    }
+    buffer.drain(1);
+    Assert.assertTrue(ArrayUtil.getHits(record) > 0 && ArrayUtil.getHits(record) <= 400000);
+    Assert.assertEquals(0, buffer.drain(1));
+  }
+}
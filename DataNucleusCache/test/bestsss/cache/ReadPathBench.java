@@ -0,0 +1,71 @@
+package bestsss.cache;
+
+import java.lang.management.ManagementFactory;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+/**
+ * Allocation (and time) per get on the CachedX read path: construction plus what DataNucleus does with the result -
+ * getLoadedFields, getLoadedFieldNumbers and getFieldValue per loaded field.
+ * Records with precomputed loaded flags (as placed by L2Cache) vs records without (computed per call).
+ * The allocated bytes come from com.sun.management.ThreadMXBean, i.e. HotSpot only; run w/ -XX:-DoEscapeAnalysis to see the raw cost.
+ * args: comma separated field counts (default 8,32,128)
+ *
+ * @author Stanimir Simeonoff
+ */
+public class ReadPathBench {
+  static final int RECORDS = 1024;
+  static final int OPS = 500_000;
+  static long sink;
+
+  public static void main(String[] args) {
+    String sizes = args.length>0? args[0] : "8,32,128";
+    for (int warmup=0; warmup<3; warmup++){
+      for (String s : sizes.split(",")){
+        int fields = Integer.parseInt(s.trim());
+        run(fields, false, warmup<2);
+        run(fields, true, warmup<2);
+      }
+    }
+  }
+
+  static Object[][] records(int fields, boolean precomputed){
+    Object[][] records = new Object[RECORDS][];
+    for (int i=0; i<RECORDS; i++){
+      Object[] record = ArrayUtil.restore(fields+ArrayUtil.RESERVED, Object.class, 1L, 0, 100, 100);
+      for (int f=0; f<fields; f++){
+        if (f%4!=3)//a quarter not loaded
+          record[f] = f%2==0? "f"+f : Integer.valueOf(f);
+      }
+      if (precomputed)
+        ArrayUtil.setLoaded(record);
+      records[i] = record;
+    }
+    return records;
+  }
+
+  static void run(int fields, boolean precomputed, boolean quiet){
+    final Object[][] records = records(fields, precomputed);
+    final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    final long id = Thread.currentThread().getId();
+    long bytes = threads.getThreadAllocatedBytes(id);
+    long nanos = System.nanoTime();
+    for (int i=0; i<OPS; i++){
+      Object[] record = records[i & (RECORDS-1)];
+      CachedX<Object> pc = new CachedX<Object>(Object.class, record, ArrayUtil.maxLength(record), 1L);
+      sink += pc.getLoadedFields().length;
+      for (int f : pc.getLoadedFieldNumbers()){
+        sink += pc.getFieldValue(f).hashCode();
+      }
+    }
+    nanos = System.nanoTime() - nanos;
+    bytes = threads.getThreadAllocatedBytes(id) - bytes;
+    if (quiet)
+      return;
+
+    System.out.printf("fields: %3d %-11s: %,7.1f bytes/get, %,7.1f ns/get%n", fields, precomputed? "precomputed" : "computed", (double) bytes/OPS, (double) nanos/OPS);
+  }
+}
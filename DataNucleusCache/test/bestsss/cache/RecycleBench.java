@@ -0,0 +1,170 @@
+package bestsss.cache;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import bestsss.cache.alloc.DelayedAllocator;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+/**
+ * bestsss.l2cache.recycle: put/replace churn on a table of records (the way L2Cache places them) w/ and w/o recycling through DelayedAllocator.
+ * Writers build a record (allocate+fill) and replace a random slot, retiring the old record; a fraction of the records is exposed (handed to a CachedX) before being replaced,
+ * exposed records are never recycled. Readers (locked) keep walking the table, i.e. the epoch has to advance past them.
+ * Reports allocated bytes per put (com.sun.management.ThreadMXBean, HotSpot only), young GC count and time.
+ * Note: a reader preempted while locked holds the epoch back, retirements past the bucket capacity go to the GC - w/ more threads than CPUs the recycling rate drops.
+ * args: fields per record (default 16), exposed percent (default 10), readers (default 2)
+ *
+ * @author Stanimir Simeonoff
+ */
+public class RecycleBench {
+  static final int SLOTS = 1<<14;
+  static final int PUTS = 2_000_000;
+  static final int WRITERS = 2;
+  static volatile long sink;
+  static volatile boolean done;
+
+  public static void main(String[] args) throws Exception {
+    final int fields = args.length>0? Integer.parseInt(args[0]) : 16;
+    final int exposed = args.length>1? Integer.parseInt(args[1]) : 10;
+    final int readers = args.length>2? Integer.parseInt(args[2]) : 2;
+    for (int warmup=0; warmup<3; warmup++){
+      run(fields, exposed, readers, null, warmup<2);
+      run(fields, exposed, readers, new DelayedAllocator(1024, RECLAIMER), warmup<2);
+    }
+  }
+
+  static final DelayedAllocator.Reclaimer RECLAIMER = new DelayedAllocator.Reclaimer() {
+    @Override
+    public boolean reclaim(Object[] array) {
+      return ArrayUtil.recycle(array);
+    }
+  };
+
+  static Object[] newRecord(DelayedAllocator recycler, int length, int value){
+    Object[] record = recycler!=null? recycler.poll(length) : null;
+    if (record==null){
+      record = ArrayUtil.restore(length, RecycleBench.class, 1L, 0, 0, 0);
+    } else{
+      ArrayUtil.setTimeAndAccess(record, 0);//a fresh stamp, as init does
+    }
+    for (int i=0, len=ArrayUtil.maxLength(record); i<len; i++){
+      record[i] = (i&3)==0? null : Integer.valueOf(value+i & 127);//mostly cached boxes: the record is the churn
+    }
+    return record;
+  }
+
+  static void run(final int fields, final int exposed, final int readerCount, final DelayedAllocator recycler, boolean quiet) throws Exception{
+    final int length = fields+ArrayUtil.RESERVED;
+    final AtomicReferenceArray<Object[]> table = new AtomicReferenceArray<>(SLOTS);
+    for (int i=0; i<SLOTS; i++){
+      table.set(i, newRecord(null, length, i));
+    }
+    final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    final CountDownLatch start = new CountDownLatch(1);
+    final long[] allocated = new long[WRITERS];
+    done = false;
+    Thread[] writers = new Thread[WRITERS];
+    for (int w=0; w<WRITERS; w++){
+      final int id = w;
+      writers[w] = new Thread(){
+        public void run(){
+          try{
+            start.await();
+          }catch(InterruptedException _ex){
+            return;
+          }
+          final ThreadLocalRandom r = ThreadLocalRandom.current();
+          final long bytes = threads.getThreadAllocatedBytes(getId());
+          for (int i=0; i<PUTS/WRITERS; i++){
+            final long epoch = recycler!=null? recycler.lock() : 0;
+            try{
+              final Object[] record = newRecord(recycler, length, i);
+              if (r.nextInt(100)<exposed)
+                ArrayUtil.expose(record);
+              final Object[] old = table.getAndSet(r.nextInt(SLOTS), record);
+              if (recycler!=null)
+                recycler.offer(old);
+            }finally{
+              if (recycler!=null)
+                recycler.unlock(epoch);
+            }
+          }
+          allocated[id] = threads.getThreadAllocatedBytes(getId()) - bytes;
+        }
+      };
+      writers[w].start();
+    }
+    Thread[] readers = new Thread[readerCount];
+    for (int t=0; t<readerCount; t++){
+      readers[t] = new Thread(){
+        public void run(){
+          final ThreadLocalRandom r = ThreadLocalRandom.current();
+          long sum = 0;
+          while (!done){
+            final long epoch = recycler!=null? recycler.lock() : 0;
+            try{
+              for (int i=0; i<64; i++){
+                final Object[] record = table.get(r.nextInt(SLOTS));
+                final Object value = record[1];
+                sum += value==null? 0 : value.hashCode();
+              }
+            }finally{
+              if (recycler!=null)
+                recycler.unlock(epoch);
+            }
+          }
+          sink += sum;
+        }
+      };
+      readers[t].start();
+    }
+
+    System.gc();
+    final long gcCount = gcCount();
+    final long gcTime = gcTime();
+    final long nanos = System.nanoTime();
+    start.countDown();
+    for (Thread w : writers){
+      w.join();
+    }
+    final long elapsed = System.nanoTime() - nanos;
+    done = true;
+    for (Thread t : readers){
+      t.join();
+    }
+    final long gcs = gcCount() - gcCount;
+    final long gcMillis = gcTime() - gcTime;
+    if (quiet)
+      return;
+
+    long bytes = 0;
+    for (long b : allocated){
+      bytes += b;
+    }
+    System.out.printf("fields: %3d exposed: %2d%% readers: %d %-8s: %,7.1f bytes/put, %,5d GCs, %,5d ms GC, %,6.1f ns/put, pooled %,d%n", fields, exposed, readerCount, recycler!=null? "recycle" : "plain",
+        (double) bytes/PUTS, gcs, gcMillis, (double) elapsed/PUTS, recycler!=null? recycler.size() : 0);
+  }
+
+  static long gcCount(){
+    long count = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()){
+      count += Math.max(0, gc.getCollectionCount());
+    }
+    return count;
+  }
+
+  static long gcTime(){
+    long time = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()){
+      time += Math.max(0, gc.getCollectionTime());
+    }
+    return time;
+  }
+}
@@ -0,0 +1,91 @@
+package bestsss.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+ /**
+  * @author Stanimir Simeonoff
+ */
+public class RefreshAheadTest {
+  static class Recorder implements L2Cache.Refresher{
+    final List<Object> requested = new ArrayList<>();
+    @Override
+    public void refresh(L2Cache cache, Object oid, Class<?> pcClass) {
+      requested.add(oid);
+    }
+  }
+
+  @Test
+  public void hotAndNearExpiry(){
+    RefreshAhead refresh = new RefreshAhead(new Recorder(), 3, 5);
+    Object[] record = new Object[2+ArrayUtil.RESERVED];
+    ArrayUtil.setTimeAndAccess(record, 100);
+    ArrayUtil.setTimeAndHitCount(record, 101);
+    ArrayUtil.setTimeAndHitCount(record, 102);
+    Assert.assertFalse(refresh.isDue(record, 110, 105));//not hot enough
+    ArrayUtil.setTimeAndHitCount(record, 103);
+    Assert.assertFalse(refresh.isDue(record, 110, 104));//too early
+    Assert.assertTrue(refresh.isDue(record, 110, 105));
+  }
+
+  @Test
+  public void oncePerKey(){
+    Recorder recorder = new Recorder();
+    RefreshAhead refresh = new RefreshAhead(recorder, 1, 5);
+    Assert.assertFalse(refresh.isPending("k", 100));
+    Assert.assertTrue(refresh.request(null, "k", Object.class, 100));
+    Assert.assertFalse(refresh.request(null, "k", Object.class, 101));
+    Assert.assertEquals(1, recorder.requested.size());
+    Assert.assertTrue(refresh.isPending("k", 105));
+
+    refresh.done("k");//arrived
+    Assert.assertFalse(refresh.isPending("k", 105));
+    Assert.assertTrue(refresh.request(null, "k", Object.class, 106));
+    Assert.assertFalse(refresh.isPending("k", 112));//never came, stop deferring the expiration
+    Assert.assertTrue(refresh.request(null, "k", Object.class, 112));
+    Assert.assertEquals(3, recorder.requested.size());
+  }
+
+  @Test
+  public void clear(){
+    RefreshAhead refresh = new RefreshAhead(new Recorder(), 1, 5);
+    Assert.assertTrue(refresh.request(null, "k", Object.class, 100));
+    refresh.clear();
+    Assert.assertFalse(refresh.isPending("k", 101));
+    Assert.assertTrue(refresh.request(null, "k", Object.class, 101));
+  }
+
+  @Test
+  public void failingRefresher(){
+    RefreshAhead refresh = new RefreshAhead(new L2Cache.Refresher() {
+      @Override
+      public void refresh(L2Cache cache, Object oid, Class<?> pcClass) {
+        throw new IllegalStateException("test");
+      }
+    }, 1, 5);
+    Thread t = Thread.currentThread();
+    Thread.UncaughtExceptionHandler handler = t.getUncaughtExceptionHandler();
+    final List<Throwable> reported = new ArrayList<>();
+    t.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+      @Override
+      public void uncaughtException(Thread t, Throwable e) {
+        reported.add(e);
+      }
+    });
+    try{
+      Assert.assertFalse(refresh.request(null, "k", Object.class, 100));
+    }finally{
+      t.setUncaughtExceptionHandler(handler);
+    }
+    Assert.assertEquals(1, reported.size());
+    Assert.assertFalse(refresh.isPending("k", 100));
+  }
+}
@@ -0,0 +1,150 @@
+package bestsss.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+ /**
+  * @author Stanimir Simeonoff
+ */
+public class SingleFlightTest {
+  @Test
+  public void coalesce() throws Exception{
+    final SingleFlight flights = new SingleFlight(16);
+    final ConcurrentHashMap<Object, Object> cache = new ConcurrentHashMap<>();
+    final AtomicInteger loads = new AtomicInteger();
+    final AtomicInteger awaited = new AtomicInteger();
+    final CountDownLatch start = new CountDownLatch(1);
+    final int threads = 16;
+    Thread[] workers = new Thread[threads];
+    for (int t=0; t<threads; t++){
+      workers[t] = new Thread(){
+        public void run(){
+          try{
+            start.await();
+          }catch(InterruptedException _ex){
+            return;
+          }
+          if (cache.containsKey("k"))
+            return;
+          SingleFlight.Flight flight = flights.acquire("k");
+          if (flight==SingleFlight.AWAITED){
+            awaited.incrementAndGet();
+            Assert.assertEquals("v", cache.get("k"));
+            return;
+          }
+          try{
+            if (flight!=null && cache.containsKey("k"))
+              return;
+            loads.incrementAndGet();
+            sleep(50);//slow db
+            cache.put("k", "v");
+          }catch(InterruptedException _ex){
+          }finally{
+            flights.release(flight);
+          }
+        }
+      };
+      workers[t].start();
+    }
+    start.countDown();
+    for (Thread t : workers){
+      t.join();
+    }
+    Assert.assertEquals(1, loads.get());
+    Assert.assertTrue(awaited.get() > 0);
+  }
+
+  @Test
+  public void reentrantAndCollision(){
+    SingleFlight flights = new SingleFlight(1);//2 stripes
+    SingleFlight.Flight leader = flights.acquire(1);
+    Assert.assertNotNull(leader);
+    Assert.assertNull(flights.acquire(1));//same thread, no self-deadlock
+    Assert.assertNull(flights.acquire(3));//same stripe, different key
+    flights.release(leader);
+    SingleFlight.Flight next = flights.acquire(3);
+    Assert.assertNotNull(next);
+    Assert.assertNotSame(SingleFlight.AWAITED, next);
+    flights.release(next);
+  }
+
+  @Test
+  public void nestedLoadsDontWaitInCycle() throws Exception{
+    final SingleFlight flights = new SingleFlight(16);
+    final CyclicBarrier led = new CyclicBarrier(2);
+    final Object[] nested = {this, this};
+    Thread[] loaders = new Thread[2];
+    for (int t=0; t<2; t++){
+      final int id = t;
+      loaders[t] = new Thread(){
+        public void run(){
+          SingleFlight.Flight flight = flights.acquire(id==0? "a" : "b");//leads one key
+          try{
+            led.await();
+            nested[id] = flights.acquire(id==0? "b" : "a");//while loading, loads the other one
+            led.await();
+          }catch(Exception _ex){
+          }finally{
+            flights.release(flight);
+          }
+        }
+      };
+      loaders[t].start();
+    }
+    for (Thread t : loaders){
+      t.join(TimeUnit.SECONDS.toMillis(1));
+      Assert.assertFalse(t.isAlive());
+    }
+    Assert.assertNull(nested[0]);//no coalescing, loaded on their own
+    Assert.assertNull(nested[1]);
+  }
+
+  @Test
+  public void hungLeader() throws Exception{
+    final SingleFlight flights = new SingleFlight(16, TimeUnit.MILLISECONDS.toNanos(20));
+    Assert.assertNotNull(flights.acquire("k"));//never released
+    final Object[] result = {this};
+    Thread waiter = new Thread(){
+      public void run(){
+        result[0] = flights.acquire("k");
+      }
+    };
+    waiter.start();
+    waiter.join(TimeUnit.SECONDS.toMillis(1));
+    Assert.assertFalse(waiter.isAlive());
+    Assert.assertNull(result[0]);
+  }
+
+  @Test
+  public void interruptedWaiter() throws Exception{
+    final SingleFlight flights = new SingleFlight(16);
+    SingleFlight.Flight leader = flights.acquire("k");
+    final Object[] result = {this, null};
+    Thread waiter = new Thread(){
+      public void run(){
+        result[0] = flights.acquire("k");
+        result[1] = isInterrupted();
+      }
+    };
+    waiter.start();
+    while (waiter.getState()!=Thread.State.TIMED_WAITING){
+      Thread.sleep(1);
+    }
+    waiter.interrupt();
+    waiter.join(TimeUnit.SECONDS.toMillis(1));
+    Assert.assertNull(result[0]);
+    Assert.assertEquals(Boolean.TRUE, result[1]);
+    flights.release(leader);
+  }
+}
@@ -0,0 +1,84 @@
+package bestsss.cache;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+ /**
+  * @author Stanimir Simeonoff
+ */
+public class SnapshotTest {
+  static class Host implements Snapshot.Host{
+    final ConcurrentHashMap<Object, Object[]> restored = new ConcurrentHashMap<>();
+    long integerFingerprint = 1;
+    @Override
+    public long fingerprint(Class<?> clazz) {
+      return clazz==Integer.class? integerFingerprint : 0;
+    }
+    @Override
+    public Class<?> resolve(String name) {
+      try{
+        return Class.forName(name);
+      }catch(ClassNotFoundException _ex){
+        return null;
+      }
+    }
+    @Override
+    public boolean isLive(Object key, Object[] record) {
+      return ArrayUtil.getCreationTime(record) >= 0;
+    }
+    @Override
+    public void restore(Object key, Object[] record) {
+      restored.put(key, record);
+    }
+  }
+
+  private static Object[] record(Class<?> clazz, Object value, int time){
+    Object[] record = ArrayUtil.restore(1 + ArrayUtil.RESERVED, clazz, 1L, 2, time, time);
+    record[0] = value;
+    return record;
+  }
+
+  @Test
+  public void writeRead() throws Exception{
+    Path path = Files.createTempFile("l2cache", ".snapshot");
+    try{
+      HashMap<Object, Object[]> table = new HashMap<>();
+      final int n = 50_000;
+      for (int i=0; i<n; i++){
+        table.put((long) i, record(String.class, "value-"+i+"-0123456789012345678901234567890123456789", 100));
+      }
+      table.put(-1L, record(String.class, "expired", -1));
+      table.put(-2L, record(Integer.class, 42, 100));
+
+      Host host = new Host();
+      Assert.assertEquals(n + 1, Snapshot.write(path, 0, table.entrySet().iterator(), host));
+      Assert.assertTrue(Files.size(path) > 3<<20);//a few chunks
+
+      host.integerFingerprint = 2;//changed class
+      Assert.assertEquals(n, Snapshot.read(path, 10L<<10, host, 4));//the reader started 10 "seconds" later
+      Assert.assertEquals(n, host.restored.size());
+      for (Map.Entry<Object, Object[]> e : host.restored.entrySet()){
+        Object[] record = e.getValue();
+        Assert.assertEquals("value-"+e.getKey()+"-0123456789012345678901234567890123456789", record[0]);
+        Assert.assertEquals(90, ArrayUtil.getCreationTime(record));
+        Assert.assertEquals(2, ArrayUtil.getHits(record));
+      }
+
+      Files.write(path, new byte[]{1, 2, 3});
+      Assert.assertEquals(-1, Snapshot.read(path, 0, host, 4));
+    }finally{
+      Files.deleteIfExists(path);
+    }
+  }
+}
@@ -0,0 +1,110 @@
+package bestsss.cache;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.datanucleus.PersistenceNucleusContextImpl;
+import org.datanucleus.cache.CachedPC;
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.metadata.AbstractMemberMetaData;
+import org.datanucleus.metadata.ClassMetaData;
+import org.datanucleus.metadata.FileMetaData;
+import org.datanucleus.metadata.MetaDataManager;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+ /**
+  * L2Cache w/o a datastore for the tests: a NucleusContext w/ no API, the metadata is registered by hand (member count, class extensions, superclass),
+  * each cached class needs one (as the persistable classes do). The clock is manual (time()).
+  * @author Stanimir Simeonoff
+ */
+class TestCache extends L2Cache{
+  volatile int now = 1000;
+
+  TestCache(Context context){
+    super(context);
+  }
+
+  @Override
+  int time() {
+    return now;
+  }
+
+  void advance(int seconds){
+    now += seconds;
+  }
+
+  static Context context(Object... properties){
+    Map<String, Object> props = new HashMap<>();
+    for (int i=0; i<properties.length; i+=2){
+      props.put((String) properties[i], properties[i+1]);
+    }
+    return new Context(props);
+  }
+
+  @SuppressWarnings({ "rawtypes", "unchecked" })
+  static CachedPC pc(Class<?> clazz, Object version, Object... fields){
+    final boolean[] loaded = new boolean[fields.length];
+    final CachedPC pc = new CachedPC(clazz, loaded, version);
+    for (int i=0; i<fields.length; i++){
+      if (fields[i]!=null){
+        pc.setFieldValue(i, fields[i]);
+        pc.setLoadedField(i, true);
+      }
+    }
+    return pc;
+  }
+
+  static class Context extends PersistenceNucleusContextImpl{
+    private static final long serialVersionUID = 0;
+
+    final Map<Class<?>, AbstractClassMetaData> metas = new ConcurrentHashMap<>();
+    private final MetaDataManager metaDataManager = (MetaDataManager) Proxy.newProxyInstance(MetaDataManager.class.getClassLoader(), new Class<?>[]{MetaDataManager.class}, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if ("getMetaDataForClass".equals(method.getName()) && args[0] instanceof Class)
+          return metas.get(args[0]);
+        throw new UnsupportedOperationException(method.getName());
+      }
+    });
+
+    Context(Map<String, Object> props){
+      super(null, props);
+    }
+
+    @Override
+    public synchronized MetaDataManager getMetaDataManager() {
+      return metaDataManager;
+    }
+
+    /**
+     * @param extensions - key, value pairs, e.g. JdoExtensions.EXPIRATION, "10"
+     */
+    Context register(Class<?> clazz, int members, Class<?> superclass, String... extensions){
+      metas.put(clazz, new Meta(clazz, members, superclass!=null? metas.get(superclass) : null, extensions));
+      return this;
+    }
+  }
+
+  static class Meta extends ClassMetaData{
+    private static final long serialVersionUID = 0;
+
+    Meta(Class<?> clazz, int members, AbstractClassMetaData superclass, String... extensions){
+      super(new FileMetaData().newPackageMetadata(clazz.getPackage().getName()), clazz.getName().substring(clazz.getName().lastIndexOf('.')+1));
+      for (int i=0; i<extensions.length; i+=2){
+        addExtension(extensions[i], extensions[i+1]);
+      }
+      managedMembers = new AbstractMemberMetaData[0];
+      memberCount = members;
+      pcSuperclassMetaData = superclass;
+      metaDataState = METADATA_INITIALISED_STATE;
+    }
+  }
+}
@@ -0,0 +1,130 @@
+package bestsss.cache;
+
+import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
+
+import jsr166e.ConcurrentHashMapV8;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+/**
+ * Expiration cost: full sweep over the values (what sharedExpire does 1/16 at a time) vs TimerWheel.advance.
+ * Each tick ~1/EXPIRATION of the entries expires. Then churn: each tick 1/CHURN of the entries is put again (new record, new schedule)
+ * and the wheel's entries are reported against the live ones, the stale entries of the replaced records are compacted away.
+ * Run with enough heap for 10M entries, e.g. -Xmx4g; args: comma separated sizes (default 1000000,10000000)
+ *
+ * @author Stanimir Simeonoff
+ */
+public class TimerWheelBench {
+  static final int EXPIRATION = 45;
+  static final int START = 1000;
+  static final int TICKS = 5;
+  static final int CHURN = 10;
+
+  public static void main(String[] args) {
+    String sizes = args.length>0? args[0] : "1000000,10000000";
+    for (String s : sizes.split(",")){
+      int size = Integer.parseInt(s.trim());
+      for (int warmup=0; warmup<2; warmup++){
+        run(size, warmup==0);
+      }
+    }
+  }
+
+  static boolean isExpired(Object[] record, int time){
+    return time - ArrayUtil.getAccessTime(record) > EXPIRATION || time - ArrayUtil.getCreationTime(record) > EXPIRATION*4;
+  }
+
+  static int expiresAt(Object[] record){
+    return Math.min(ArrayUtil.getAccessTime(record) + EXPIRATION, ArrayUtil.getCreationTime(record) + EXPIRATION*4) + 1;
+  }
+
+  static ConcurrentHashMapV8<Long, Object[]> populate(int size){
+    ConcurrentHashMapV8<Long, Object[]> table = new ConcurrentHashMapV8<>(size);
+    ThreadLocalRandom r = ThreadLocalRandom.current();
+    for (long i=0; i<size; i++){
+      Object[] record = new Object[2+ArrayUtil.RESERVED];
+      ArrayUtil.setTimeAndAccess(record, START - r.nextInt(EXPIRATION));//alive at START, spread over the expiration period
+      table.put(i, record);
+    }
+    return table;
+  }
+
+  static void run(int size, boolean quiet){
+    ConcurrentHashMapV8<Long, Object[]> table = populate(size);
+    long sweepNanos = 0;
+    int sweepExpired = 0;
+    for (int t = START+1; t<=START+TICKS; t++){
+      long nanos = System.nanoTime();
+      for (Iterator<Object[]> i = table.values().iterator(); i.hasNext();){
+        if (isExpired(i.next(), t)){
+          i.remove();
+          sweepExpired++;
+        }
+      }
+      sweepNanos += System.nanoTime() - nanos;
+    }
+    table = null;
+
+    final ConcurrentHashMapV8<Long, Object[]> wheelTable = populate(size);
+    TimerWheel.Expiry expiry = new TimerWheel.Expiry() {
+      @Override
+      public int expire(Object key, int stamp, int time) {
+        Object[] record = wheelTable.get(key);
+        if (record==null || ArrayUtil.getCreationTime(record)!=stamp)
+          return TimerWheel.STALE;
+        if (!isExpired(record, time))
+          return expiresAt(record);
+        wheelTable.remove(key);
+        return TimerWheel.EXPIRED;
+      }
+      @Override
+      public boolean isLive(Object key, int stamp) {
+        Object[] record = wheelTable.get(key);
+        return record!=null && ArrayUtil.getCreationTime(record)==stamp;
+      }
+    };
+    TimerWheel wheel = new TimerWheel(START, expiry);
+    long scheduleNanos = System.nanoTime();
+    for (java.util.Map.Entry<Long, Object[]> e : wheelTable.entrySet()){
+      wheel.schedule(e.getKey(), ArrayUtil.getCreationTime(e.getValue()), expiresAt(e.getValue()));
+    }
+    scheduleNanos = System.nanoTime() - scheduleNanos;
+
+    long wheelNanos = 0;
+    int wheelExpired = 0;
+    int t = START+1;
+    for (; t<=START+TICKS; t++){
+      long nanos = System.nanoTime();
+      wheelExpired += wheel.advance(t);
+      wheelNanos += System.nanoTime() - nanos;
+    }
+
+    ThreadLocalRandom r = ThreadLocalRandom.current();
+    int maxWheel = 0;
+    long churnNanos = System.nanoTime();
+    for (final int end = t + EXPIRATION*2; t<end; t++){//the replaced records' entries would be due only after EXPIRATION
+      for (int i=size/CHURN; i-->0;){
+        final long key = r.nextInt(size);
+        Object[] record = new Object[2+ArrayUtil.RESERVED];
+        ArrayUtil.setTimeAndAccess(record, t);
+        wheelTable.put(key, record);
+        wheel.schedule(key, t, expiresAt(record));
+      }
+      wheel.advance(t);
+      maxWheel = Math.max(maxWheel, wheel.size());
+    }
+    churnNanos = System.nanoTime() - churnNanos;
+    if (quiet)
+      return;
+
+    System.out.printf("size: %,d ticks: %d%n", size, TICKS);
+    System.out.printf("  sweep: %,8.2f ms/tick, expired: %,d, %,.1f ns per expired%n", sweepNanos/1e6/TICKS, sweepExpired, (double) sweepNanos/Math.max(1, sweepExpired));
+    System.out.printf("  wheel: %,8.2f ms/tick, expired: %,d, %,.1f ns per expired (schedule: %,.1f ns per entry)%n", wheelNanos/1e6/TICKS, wheelExpired, (double) wheelNanos/Math.max(1, wheelExpired), (double) scheduleNanos/size);
+    System.out.printf("  churn: %d ticks, %,d puts/tick, %,.1f ns per put; wheel entries max %,d, live records %,d (w/o compaction ~%,d)%n", EXPIRATION*2, size/CHURN,
+        (double) churnNanos/(EXPIRATION*2L*(size/CHURN)), maxWheel, wheelTable.size(), wheelTable.size() + (long) EXPIRATION*(size/CHURN));
+  }
+}
@@ -0,0 +1,129 @@
+package bestsss.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+ /**
+  * @author Stanimir Simeonoff
+ */
+public class TimerWheelTest {
+  static class Recorder implements TimerWheel.Expiry{
+    final Map<Object, Integer> fired = new HashMap<>();
+    final Map<Object, Integer> extend = new HashMap<>();
+    final Map<Object, Integer> stamps = new HashMap<>();//if present, the only live stamp of the key
+    @Override
+    public int expire(Object key, int stamp, int time) {
+      if (!isLive(key, stamp))
+        return TimerWheel.STALE;
+      Integer next = extend.remove(key);
+      if (next!=null)
+        return next;
+      Assert.assertNull(fired.put(key, time));
+      return TimerWheel.EXPIRED;
+    }
+    @Override
+    public boolean isLive(Object key, int stamp) {
+      Integer live = stamps.get(key);
+      return live==null || live==stamp;
+    }
+  }
+
+  @Test
+  public void expireInOrder(){
+    Recorder r = new Recorder();
+    TimerWheel wheel = new TimerWheel(0, r);
+    int[] deadlines = {1, 5, 63, 64, 65, 200, 4095, 4096, 4097, 5000, 300000};
+    for (int d : deadlines){
+      wheel.schedule(d, 0, d);
+    }
+    Assert.assertEquals(deadlines.length, wheel.size());
+
+    int total = 0;
+    for (int t=1; t<=300000; t++){
+      int expired = wheel.advance(t);
+      Assert.assertTrue(expired>=0);
+      total+=expired;
+      Integer fired = r.fired.get(t);
+      if (fired!=null){
+        Assert.assertEquals(t, (int) fired);
+      }
+    }
+    Assert.assertEquals(deadlines.length, total);
+    for (int d : deadlines){
+      Assert.assertEquals(Integer.valueOf(d), r.fired.get(d));
+    }
+    Assert.assertEquals(0, wheel.size());
+  }
+
+  @Test
+  public void jump(){
+    Recorder r = new Recorder();
+    TimerWheel wheel = new TimerWheel(100, r);
+    wheel.schedule("a", 0, 150);
+    wheel.schedule("b", 0, 9000);
+    wheel.schedule("due", 0, 50);//in the past
+    Assert.assertEquals(1, wheel.advance(101));
+    Assert.assertEquals(2, wheel.advance(10000));//one large step
+    Assert.assertEquals(Integer.valueOf(150), r.fired.get("a"));
+    Assert.assertEquals(Integer.valueOf(9000), r.fired.get("b"));
+    Assert.assertFalse(wheel.isDue(10000));
+  }
+
+  @Test
+  public void reschedule(){
+    Recorder r = new Recorder();
+    TimerWheel wheel = new TimerWheel(0, r);
+    wheel.schedule("k", 0, 10);
+    r.extend.put("k", 100);
+    Assert.assertEquals(0, wheel.advance(50));
+    Assert.assertEquals(1, wheel.size());
+    Assert.assertEquals(1, wheel.advance(100));
+    Assert.assertEquals(Integer.valueOf(100), r.fired.get("k"));
+  }
+
+  @Test
+  public void stale(){
+    TimerWheel wheel = new TimerWheel(0, new TimerWheel.Expiry() {
+      @Override
+      public int expire(Object key, int stamp, int time) {
+        return TimerWheel.STALE;
+      }
+      @Override
+      public boolean isLive(Object key, int stamp) {
+        return false;
+      }
+    });
+    wheel.schedule("k", 0, 3);
+    Assert.assertEquals(0, wheel.advance(10));
+    Assert.assertEquals(0, wheel.size());
+  }
+
+  @Test
+  public void staleCompacted(){
+    Recorder r = new Recorder();
+    TimerWheel wheel = new TimerWheel(0, r);
+    Map<Object, Integer> deadlines = new HashMap<>();
+    for (int stamp=1; stamp<=10_000; stamp++){//re-put of the same keys, each put replaces the record (new stamp)
+      Object key = stamp & 7;
+      r.stamps.put(key, stamp);
+      deadlines.put(key, 30 + stamp%5000);//all the levels
+      wheel.schedule(key, stamp, deadlines.get(key));
+    }
+    Assert.assertEquals(10_000, wheel.size());
+    Assert.assertEquals(0, wheel.advance(1));//none due, the stale entries are gone
+    Assert.assertEquals(8, wheel.size());
+    Assert.assertEquals(8, wheel.advance(10_000));
+    Assert.assertEquals(0, wheel.size());
+    for (int k=0; k<8; k++){
+      Assert.assertEquals(deadlines.get(k), r.fired.get(k));
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package bestsss.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+ /**
+  * @author Stanimir Simeonoff
+ */
+public class WeigherTest {
+  @Test
+  public void primitives(){
+    Assert.assertEquals(0, Weigher.weigh(null));
+    Assert.assertEquals(0, Weigher.weigh(CachedX.NOT_PRESENT));
+    Assert.assertEquals(0, Weigher.weigh(Boolean.TRUE));
+    Assert.assertEquals(16, Weigher.weigh(1));
+    Assert.assertEquals(24, Weigher.weigh(1L));
+    Assert.assertEquals(24, Weigher.weigh(new byte[8]));
+    Assert.assertEquals(48, Weigher.weigh(""));
+  }
+
+  @Test
+  public void growsWithLength(){
+    char[] c = new char[1000];
+    Arrays.fill(c, 'x');
+    String large = new String(c);
+    Assert.assertTrue(Weigher.weigh(large) >= 2000);
+    Assert.assertTrue(Weigher.weigh(large) > Weigher.weigh("small"));
+    Assert.assertTrue(Weigher.weigh(new long[100]) > Weigher.weigh(new int[100]));
+  }
+
+  @Test
+  public void replacements(){
+    HashMap<Long, String> map = new HashMap<>();
+    for (long i=0; i<100; i++){
+      map.put(i, "value"+i);
+    }
+    ArrayList<Long> list = new ArrayList<>(map.keySet());
+    int mapWeight = Weigher.weigh(MapReplacement.wrap(map));
+    int listWeight = Weigher.weigh(CollectionReplacement.wrap(list));
+    Assert.assertTrue(mapWeight > 100*(24+48));
+    Assert.assertTrue(listWeight > 100*24);
+    Assert.assertTrue(mapWeight > listWeight);
+  }
+
+  @Test
+  public void record(){
+    Object[] small = {1L, "x", null, Long.class, Long.class, 0, null};//4 fields + header
+    Object[] large = {1L, MapReplacement.wrap(new HashMap<>(java.util.Collections.singletonMap("k", new byte[10000]))), null, Long.class, Long.class, 0, null};
+    Assert.assertEquals(3, ArrayUtil.RESERVED);
+    Assert.assertTrue(Weigher.weighRecord(small) < 256);//incl. the precomputed loaded flags/numbers
+    Assert.assertTrue(Weigher.weighRecord(large) > 10000);
+  }
+}
@@ -0,0 +1,126 @@
+package bestsss.cache.alloc;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+ /**
+  * @author Stanimir Simeonoff
+ */
+public class DelayedAllocatorTest {
+  static final Object CLEAR = "clear";
+
+  static class Recorder implements DelayedAllocator.Reclaimer{
+    @Override
+    public boolean reclaim(Object[] array) {
+      if (array.length>0 && array[0]=="keep")//stands for an exposed record
+        return false;
+      Arrays.fill(array, CLEAR);
+      return true;
+    }
+  }
+
+  /**
+   * Retires (and keeps retiring) filler arrays until the epoch has advanced enough to drain everything retired before
+   */
+  static void churn(DelayedAllocator allocator){
+    for (int i=0; i<200; i++){
+      long epoch = allocator.lock();
+      allocator.offer(new Object[3]);
+      allocator.unlock(epoch);
+    }
+  }
+
+  @Test
+  public void recycledOnceQuiescent(){
+    DelayedAllocator allocator = new DelayedAllocator(64, new Recorder());
+    Assert.assertNull(allocator.poll(5));
+    Object[] array = {"a", "b", "c", "d", "e"};
+    long epoch = allocator.lock();
+    Assert.assertTrue(allocator.offer(array));
+    allocator.unlock(epoch);
+    churn(allocator);
+    Object[] polled = allocator.poll(5);
+    Assert.assertSame(array, polled);
+    Assert.assertSame(CLEAR, polled[0]);
+    Assert.assertNull(allocator.poll(5));
+    Assert.assertNull(allocator.poll(4));//exact length only
+  }
+
+  @Test
+  public void readerBlocksReclamation() throws Exception{
+    final DelayedAllocator allocator = new DelayedAllocator(64, new Recorder());
+    final Object[] array = {"a", "b", "c", "d"};
+    final CountDownLatch locked = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicReference<Object> seen = new AtomicReference<>();
+    Thread reader = new Thread(){//saw the array before it was unlinked
+      public void run(){
+        long epoch = allocator.lock();
+        try{
+          locked.countDown();
+          release.await();
+          seen.set(array[0]);
+        }catch(InterruptedException _ex){
+        }finally{
+          allocator.unlock(epoch);
+        }
+      }
+    };
+    reader.start();
+    locked.await();
+
+    long epoch = allocator.lock();
+    allocator.offer(array);
+    allocator.unlock(epoch);
+    churn(allocator);
+    Assert.assertNull(allocator.poll(4));//the reader is still in
+    Assert.assertEquals("a", array[0]);
+
+    release.countDown();
+    reader.join();
+    Assert.assertEquals("a", seen.get());
+    churn(allocator);
+    Assert.assertSame(array, allocator.poll(4));
+  }
+
+  @Test
+  public void rejectedByReclaimer(){
+    DelayedAllocator allocator = new DelayedAllocator(64, new Recorder());
+    Object[] array = {"keep", "b"};
+    long epoch = allocator.lock();
+    allocator.offer(array);
+    allocator.unlock(epoch);
+    churn(allocator);
+    Assert.assertNull(allocator.poll(2));
+    Assert.assertEquals("keep", array[0]);
+    Assert.assertFalse(allocator.offer(new Object[256]));//too long
+  }
+
+  @Test
+  public void boundedRetirement(){
+    DelayedAllocator allocator = new DelayedAllocator(64, new Recorder());
+    long blocker = allocator.lock();//nothing gets reclaimed
+    int accepted = 0;
+    for (int i=0; i<1000; i++){
+      long epoch = allocator.lock();
+      if (allocator.offer(new Object[7]))
+        accepted++;
+      allocator.unlock(epoch);
+    }
+    Assert.assertTrue(accepted < 1000);
+    Assert.assertTrue(accepted <= 3*64);
+    Assert.assertEquals(0, allocator.size());
+    allocator.unlock(blocker);
+    churn(allocator);
+    Assert.assertTrue(allocator.size() > 0);
+  }
+}
@@ -0,0 +1,161 @@
+package bestsss.cache.alloc;
+
+import java.util.IdentityHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+ /**
+  * @author Stanimir Simeonoff
+ */
+public class MagazinePoolTest {
+  @Test
+  public void lifo(){
+    MagazinePool<Object> pool = new MagazinePool<>(64, 1);
+    Assert.assertNull(pool.poll());
+    Object a = new Object(), b = new Object();
+    Assert.assertTrue(pool.offer(a));
+    Assert.assertTrue(pool.offer(b));
+    Assert.assertEquals(2, pool.size());
+    Assert.assertSame(b, pool.poll());
+    Assert.assertSame(a, pool.poll());
+    Assert.assertNull(pool.poll());
+    Assert.assertEquals(0, pool.size());
+  }
+
+  @Test
+  public void bounded(){
+    for (int carriers : new int[]{1, 4, 16}){
+      for (int capacity : new int[]{1, 32, 100, 1024}){
+        MagazinePool<Object> pool = new MagazinePool<>(capacity, carriers);
+        Assert.assertTrue(pool.capacity() <= Math.max(capacity, 3*carriers));
+        IdentityHashMap<Object, Object> offered = new IdentityHashMap<>();
+        int accepted = 0;
+        for (int i=0; i<4*capacity+64; i++){
+          Object o = new Object();
+          if (pool.offer(o)){
+            offered.put(o, o);
+            accepted++;
+          }
+        }
+        Assert.assertTrue(accepted <= pool.capacity());
+        Assert.assertEquals(accepted, pool.size());
+        for (Object o; (o = pool.poll())!=null;){
+          Assert.assertNotNull(offered.remove(o));
+        }
+        Assert.assertTrue(offered.isEmpty());//single thread, everything is reachable via its magazines and the depot
+      }
+    }
+  }
+
+  @Test
+  public void depotExchange() throws Exception{
+    final MagazinePool<Object> pool = new MagazinePool<>(256, 2);
+    final int[] accepted = {0};
+    Thread producer = new Thread(){
+      public void run(){
+        for (int i=0; i<256; i++){
+          if (pool.offer(new Object()))
+            accepted[0]++;
+        }
+      }
+    };
+    producer.start();
+    producer.join();
+    int polled = 0;
+    while (pool.poll()!=null){
+      polled++;
+    }
+    Assert.assertTrue(polled > 0);
+    Assert.assertTrue(polled >= accepted[0]-2*pool.rounds);//the producer's own magazines are not in the depot
+  }
+
+  @Test
+  public void deadThreadTakenOver() throws Exception{
+    final MagazinePool<Object> pool = new MagazinePool<>(64, 1);
+    final Object[] offered = {new Object(), new Object(), new Object()};
+    Thread owner = new Thread(){
+      public void run(){
+        for (Object o : offered){
+          Assert.assertTrue(pool.offer(o));
+        }
+      }
+    };
+    owner.start();
+    owner.join();
+    for (int i=offered.length; i-->0;){//the lease and the magazines of the dead thread
+      Assert.assertSame(offered[i], pool.poll());
+    }
+    Assert.assertNull(pool.poll());
+
+    final Object[] result = {this};
+    Thread unleased = new Thread(){//the only lease is held by a live thread
+      public void run(){
+        result[0] = pool.offer(new Object())? this : pool.poll();
+      }
+    };
+    unleased.start();
+    unleased.join();
+    Assert.assertNull(result[0]);
+  }
+
+  @Test
+  public void exclusiveOwnership() throws Throwable{
+    final int tokens = 512;
+    final MagazinePool<Integer> pool = new MagazinePool<>(128, 4);
+    final AtomicIntegerArray owned = new AtomicIntegerArray(tokens);//1: out of the pool
+    for (int i=0; i<tokens; i++){
+      if (!pool.offer(i))
+        owned.set(i, 1);
+    }
+    final int threads = 8;
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread[] workers = new Thread[threads];
+    for (int t=0; t<threads; t++){
+      workers[t] = new Thread(){
+        public void run(){
+          try{
+            start.await();
+            ThreadLocalRandom r = ThreadLocalRandom.current();
+            Integer[] held = new Integer[8];
+            int n = 0;
+            for (int i=0; i<100_000; i++){
+              if (n<held.length && (n==0 || r.nextBoolean())){
+                Integer token = pool.poll();
+                if (token!=null){
+                  Assert.assertTrue("polled twice: "+token, owned.compareAndSet(token, 0, 1));
+                  held[n++] = token;
+                }
+              } else if (n>0){
+                Integer token = held[--n];
+                owned.set(token, 0);
+                if (!pool.offer(token))
+                  owned.set(token, 1);//dropped, still never pooled twice
+              }
+            }
+          }catch(Throwable _ex){
+            failure.compareAndSet(null, _ex);
+          }
+        }
+      };
+      workers[t].start();
+    }
+    start.countDown();
+    for (Thread t : workers){
+      t.join();
+    }
+    if (failure.get()!=null)
+      throw failure.get();
+    Assert.assertTrue(pool.size() <= pool.capacity());
+  }
+}
@@ -0,0 +1,115 @@
+package bestsss.cache.sort;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+ /**
+  * @author Stanimir Simeonoff
+ */
+public class SelectionTest {
+  @Test
+  public void quickselect(){
+    Random r = new Random(31);
+    for (int round=0; round<2000; round++){
+      long[] a = new long[1+r.nextInt(300)];
+      for (int i=0; i<a.length; i++){
+        a[i] = (long) (r.nextInt(20)-10)<<32 | i;//few distinct scores, distinct samples
+      }
+      long[] sorted = a.clone();
+      Arrays.sort(sorted);
+      int k = r.nextInt(a.length);
+      Selection.select(a, 0, a.length-1, k);
+      Assert.assertEquals(sorted[k], a[k]);
+      for (int i=0; i<k; i++){
+        Assert.assertTrue(a[i]<a[k]);
+      }
+      for (int i=k+1; i<a.length; i++){
+        Assert.assertTrue(a[i]>a[k]);
+      }
+    }
+  }
+
+  @Test
+  public void select(){
+    Selection s = Selection.begin(8);
+    String[] keys = {"a", "b", "c", "d", "e", "f", "g", "h"};
+    int[] scores = {5, -3, 5, Integer.MAX_VALUE, Integer.MIN_VALUE, 0, 5, 1};
+    for (int i=0; i<keys.length; i++){
+      Assert.assertTrue(s.add(keys[i], scores[i]));
+    }
+    Assert.assertTrue(s.isFull());
+    Assert.assertFalse(s.add("x", 0));
+
+    Object[] victims = Selection.victims(5);
+    Assert.assertSame(victims, Selection.victims(3));//reused
+    Assert.assertEquals(5, s.select(5, victims));
+    Assert.assertArrayEquals(new Object[]{"e", "b", "f", "h", "a"}, Arrays.copyOf(victims, 5));//equal scores: sampling order
+    Assert.assertEquals(0, s.size());
+
+    s = Selection.begin(4);
+    Assert.assertEquals(0, s.select(4, victims));
+    s.add("z", 1);
+    Assert.assertEquals(1, s.select(4, victims));
+    Assert.assertEquals("z", victims[0]);
+  }
+
+  @Test
+  public void bounded(){
+    Selection s = Selection.begin(Selection.MAX_SAMPLES*4);
+    int added = 0;
+    while (s.add(added, -added)){
+      added++;
+    }
+    Assert.assertEquals(Selection.MAX_SAMPLES, added);
+    Object[] victims = Selection.victims(Selection.MAX_SAMPLES*4);
+    Assert.assertEquals(Selection.MAX_SAMPLES, victims.length);
+    Assert.assertEquals(Selection.MAX_SAMPLES, s.select(Selection.MAX_SAMPLES*4, victims));
+    Assert.assertEquals(Selection.MAX_SAMPLES-1, victims[0]);
+    Arrays.fill(victims, null);
+
+    Assert.assertTrue(Selection.victims(8).length<=Selection.RETAINED);//the large buffers are dropped
+    s = Selection.begin(8);
+    s.add("a", 1);
+    Assert.assertEquals(1, s.select(1, Selection.victims(1)));
+  }
+
+  @Test
+  public void leastOf(){
+    CacheComparator<Integer> c = new CacheComparator<>();
+    Random r = new Random(17);
+    for (int round=0; round<200; round++){
+      Integer[] a = new Integer[1+r.nextInt(500)];
+      for (int i=0; i<a.length; i++){
+        a[i] = r.nextInt(1000);
+      }
+      int k = 1+r.nextInt(a.length);
+      java.util.List<Integer> least = c.leastOf(Arrays.asList(a).iterator(), k);
+      Arrays.sort(a);
+      Assert.assertEquals(Arrays.asList(a).subList(0, k), least);
+    }
+  }
+
+  @Test
+  public void marks(){
+    Selection s = Selection.begin(256);
+    for (int i=0; i<256; i++){
+      Assert.assertTrue(s.mark(i*1024));
+    }
+    for (int i=0; i<256; i++){
+      Assert.assertFalse(s.mark(i*1024));
+    }
+    Assert.assertTrue(s.mark(-1));
+    s.resetMarks();
+    Assert.assertTrue(s.mark(0));
+    Assert.assertTrue(s.mark(-1));
+    Assert.assertTrue(Selection.begin(16).mark(0));//begin resets
+  }
+}
@@ -0,0 +1,125 @@
+package bestsss.cache.test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import bestsss.cache.ClosedHashTable;
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+/**
+ * Eviction accuracy (hit ratio) and cost: ClosedHashTable.getExpirable (sampling, LRU alike comparator over the access tick) 
+ * vs ClosedHashTable.clockSweep (CLOCK mode). 
+ * Workloads: zipfian (s=0.99) and zipfian interleaved with a sequential scan (every 4th access).
+ * Single threaded; allocation is measured around the eviction calls only (com.sun.management.ThreadMXBean).
+ * args: keys capacity accesses (default 1000000 100000 5000000)
+ *
+ * @author Stanimir Simeonoff
+ */
+public class ClockBench {
+  static final int BATCH = 16;
+
+  public static void main(String[] args) {
+    final int keys = args.length>0? Integer.parseInt(args[0]) : 1000000;
+    final int capacity = args.length>1? Integer.parseInt(args[1]) : 100000;
+    final int accesses = args.length>2? Integer.parseInt(args[2]) : 5000000;
+
+    final double[] cdf = zipf(keys, 0.99);
+    for (String workload : new String[]{"zipf", "scan"}){
+      final int[] trace = trace(cdf, accesses, "scan".equals(workload), 77);
+      for (int warmup=0; warmup<2; warmup++){
+        Result sampling = run(trace, capacity, false);
+        Result clock = run(trace, capacity, true);
+        if (warmup==0)
+          continue;
+        System.out.printf("%s, keys: %,d capacity: %,d accesses: %,d%n", workload, keys, capacity, accesses);
+        System.out.println("  sampling: "+sampling);
+        System.out.println("  clock:    "+clock);
+      }
+    }
+  }
+
+  static double[] zipf(int n, double s){
+    double[] cdf = new double[n];
+    double sum = 0;
+    for (int i=0; i<n; i++){
+      cdf[i] = sum += 1/Math.pow(i+1, s);
+    }
+    for (int i=0; i<n; i++){
+      cdf[i]/=sum;
+    }
+    return cdf;
+  }
+
+  static int[] trace(double[] cdf, int accesses, boolean scan, long seed){
+    Random r = new Random(seed);
+    int[] trace = new int[accesses];
+    for (int i=0, next=cdf.length; i<accesses; i++){
+      if (scan && (i&3)==3){
+        trace[i] = next++;//never repeats
+        continue;
+      }
+      int idx = java.util.Arrays.binarySearch(cdf, r.nextDouble());
+      trace[i] = idx>=0? idx : Math.min(cdf.length-1, -idx-1);
+    }
+    return trace;
+  }
+
+  static final class Result{
+    long hits, misses, evictions, evictionNanos, evictionBytes;
+    @Override
+    public String toString() {
+      return String.format("hit ratio: %.4f, evicted: %,d, %,.1f ns and %,.1f bytes per evicted key", 
+          (double) hits/(hits+misses), evictions, (double) evictionNanos/Math.max(1, evictions), (double) evictionBytes/Math.max(1, evictions));
+    }
+  }
+
+  static Result run(int[] trace, int capacity, boolean clock){
+    final ClosedHashTable<Integer, long[]> table = new ClosedHashTable<>(clock);
+    final Comparator<long[]> lru = new Comparator<long[]>() {
+      @Override
+      public int compare(long[] o1, long[] o2) {
+        return Long.compare(o1[0], o2[0]);
+      }
+    };
+    final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    final long thread = Thread.currentThread().getId();
+    final Object[] victims = new Object[BATCH];
+    final Result result = new Result();
+    for (int tick=0; tick<trace.length; tick++){
+      final Integer key = trace[tick];
+      long[] value = table.get(key);
+      if (value!=null){
+        value[0] = tick;
+        result.hits++;
+        continue;
+      }
+      result.misses++;
+      table.put(key, new long[]{tick});
+      if (table.size() <= capacity)
+        continue;
+
+      final long bytes = threads.getThreadAllocatedBytes(thread);
+      final long nanos = System.nanoTime();
+      if (clock){
+        for (int i=0, count=table.clockSweep(victims); i<count; i++){
+          if (table.remove(victims[i])!=null)
+            result.evictions++;
+        }
+      } else{
+        final List<Integer> expirable = table.getExpirable(BATCH, lru);
+        for (Integer victim : expirable){
+          if (table.remove(victim)!=null)
+            result.evictions++;
+        }
+      }
+      result.evictionNanos += System.nanoTime() - nanos;
+      result.evictionBytes += threads.getThreadAllocatedBytes(thread) - bytes;
+    }
+    return result;
+  }
+}
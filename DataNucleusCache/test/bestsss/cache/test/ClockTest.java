@@ -0,0 +1,62 @@
+package bestsss.cache.test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bestsss.cache.ClosedHashTable;
+/*
+ * Written by Stanimir Simeonoff and released as public domain as described at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+ /**
+  * @author Stanimir Simeonoff
+ */
+public class ClockTest {
+  @Test
+  public void secondChance(){
+    ClosedHashTable<Integer, Integer> table = new ClosedHashTable<>(true);
+    for (int i=0; i<10000; i++){
+      table.put(i, i);
+    }
+    for (int i=0; i<1000; i++){//hot
+      Assert.assertEquals(Integer.valueOf(i), table.get(i));
+    }
+    Object[] victims = new Object[64];
+    Set<Object> seen = new HashSet<>();
+    for (int evicted=0; evicted < 8000;){
+      int count = table.clockSweep(victims);
+      Assert.assertTrue(count>0);
+      for (int i=0; i<count; i++){
+        Assert.assertTrue("hot key evicted: "+victims[i], (Integer) victims[i] >= 1000);
+        if (table.remove(victims[i])!=null){
+          evicted++;
+          Assert.assertTrue(seen.add(victims[i]));
+        }
+      }
+    }
+    Assert.assertEquals(2000, table.size());
+    for (int i=0; i<1000; i++){
+      Assert.assertEquals(Integer.valueOf(i), table.get(i));
+    }
+  }
+
+  @Test
+  public void allReferenced(){
+    ClosedHashTable<Integer, Integer> table = new ClosedHashTable<>(true);
+    for (int i=0; i<100; i++){
+      table.put(i, i);
+      table.get(i);
+    }
+    Object[] victims = new Object[10];
+    Assert.assertEquals(10, table.clockSweep(victims));//the bits get cleared, the hand finds victims on the next rotation
+  }
+
+  @Test(expected=IllegalStateException.class)
+  public void notClock(){
+    new ClosedHashTable<Integer, Integer>().clockSweep(new Object[1]);
+  }
+}
@@ -11,7 +11,9 @@ import jsr166e.ConcurrentHashMapV8;
 import org.junit.Assert;
 import org.junit.Test;
 
+import bestsss.cache.ClosedHashTable;
 import bestsss.cache.Table;
+import bestsss.cache.sort.Scorer;
 import bestsss.cache.sort.Smoothsort;
 /*
  * Written by Stanimir Simeonoff and released as public domain as described at
@@ -64,6 +66,59 @@ public class EvictionTest {
     Assert.assertTrue( overThreshold.size()<expired/3);
   }
 
+  static final Scorer<Integer> IDENTITY = new Scorer<Integer>() {
+    @Override
+    public int score(Integer value) {
+      return value;
+    }
+  };
+
+  @Test
+  public void scored(){
+    scored(new ConcurrentHashMapV8<Integer, Integer>(), true);
+    scored(new ClosedHashTable<Integer, Integer>(), false);
+  }
+
+  /**
+   * @param complete - a small table is sampled entirely (ClosedHashTable probes randomly up to 4 segments, a sparse one may yield none)
+   */
+  private void scored(Table<Integer, Integer> m, boolean complete){
+    final int max = 200000;
+    for (int i=0; i<max; i++){
+      m.put(i, i);
+    }
+    Object[] victims = new Object[40];
+    Assert.assertEquals(0, m.getExpirable(0, IDENTITY, victims));
+    int picked = 0, over = 0;
+    for (int round=0; round<20; round++){
+      int count = m.getExpirable(32, IDENTITY, victims);
+      Assert.assertTrue(count>0 && count<=32);
+      Assert.assertNull(victims[count]);//entries, not the length
+      for (int i=0; i<count; i++){
+        Integer n = (Integer) victims[i];
+        Assert.assertEquals(n, m.get(n));
+        if (i>0)
+          Assert.assertTrue("lowest first", (Integer) victims[i-1] < n);//distinct, too
+        if (n>0.2*max)
+          over++;
+        picked++;
+      }
+    }
+    Assert.assertTrue(over+" of "+picked, over<picked/3);
+
+    m.clear();
+    for (int i=0; i<5; i++){
+      m.put(i, 4-i);
+    }
+    int count = m.getExpirable(32, IDENTITY, victims);//no duplicates
+    Assert.assertTrue(count<=5);
+    if (complete)//the cleared table keeps its capacity, still sampled entirely
+      Assert.assertEquals(5, count);
+    for (int i=1; i<count; i++){//the keys, ordered by value
+      Assert.assertTrue((Integer) victims[i-1] > (Integer) victims[i]);
+    }
+  }
+
   private void  checkExp(List<Integer> expirable, int max, List<Integer> over) {
     int threshold = (int) (0.2*max);
     for (Integer n : expirable){